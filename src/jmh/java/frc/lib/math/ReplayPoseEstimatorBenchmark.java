@@ -0,0 +1,73 @@
+package frc.lib.math;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of one robot loop of the pose estimator with a full history: the odometry steps of a 20 ms
+ * loop at 250 Hz, a vision batch of four cameras, and a replay from the oldest measurement that is
+ * still within the replay limit, the worst case the limit allows. Run with {@code ./gradlew jmh},
+ * the score divided by {@link #MAX_REPLAY_STEPS} is the per-step cost {@code Odometry} budgets for.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReplayPoseEstimatorBenchmark {
+  private static final double HISTORY_SEC = 2.0;
+  private static final double STEP_SEC = 0.004;
+  private static final int STEP_CAPACITY = 564;
+  private static final int MEAS_CAPACITY = 512;
+  private static final int STEPS_PER_LOOP = 5;
+  private static final int CAMERAS = 4;
+  private static final int MAX_REPLAY_STEPS = 500;
+
+  @Param({"diagonal", "ekf"})
+  public String filter;
+
+  private ReplayPoseEstimator estimator;
+  private double timestamp;
+
+  @Setup
+  public void setup() {
+    final double[] initialStdDevs = {0.05, 0.05, Math.toRadians(2.0)};
+    estimator =
+        new ReplayPoseEstimator(
+            HISTORY_SEC,
+            STEP_CAPACITY,
+            MEAS_CAPACITY,
+            filter.equals("ekf")
+                ? new EkfPoseFilter(0.02, 0.005, 0.02, Math.toRadians(0.5), initialStdDevs)
+                : new DiagonalPoseFilter(0.003, 0.003, 0.0002, initialStdDevs));
+    estimator.setMaxReplaySteps(MAX_REPLAY_STEPS);
+    estimator.reset(1.0, 1.0, 0.0);
+    timestamp = 0.0;
+    for (int i = 0; i < STEP_CAPACITY; ++i) {
+      addStep();
+    }
+  }
+
+  private void addStep() {
+    timestamp += STEP_SEC;
+    estimator.addOdometry(timestamp, 0.01, 0.0, 0.002, 0.002 * timestamp / STEP_SEC);
+  }
+
+  @Benchmark
+  public int loop() {
+    for (int i = 0; i < STEPS_PER_LOOP; ++i) {
+      addStep();
+    }
+    final var oldest = timestamp - (MAX_REPLAY_STEPS - 1) * STEP_SEC;
+    for (int c = 0; c < CAMERAS; ++c) {
+      estimator.insertMeasurement(
+          oldest + c * STEP_SEC, 1.0 + timestamp * 2.5, 1.0, 0.0, 0.3, 0.3, 0.5);
+    }
+    return estimator.replay();
+  }
+}
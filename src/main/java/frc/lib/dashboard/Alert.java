@@ -5,6 +5,7 @@ import edu.wpi.first.util.sendable.SendableBuilder;
 import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj.Timer;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+import frc.lib.utils.DeferredWorkQueue;
 import java.util.*;
 import java.util.function.Predicate;
 
@@ -54,17 +55,7 @@ public class Alert {
   public void set(boolean active) {
     if (active && !this.active) {
       activeStartTime = Timer.getFPGATimestamp();
-      switch (type) {
-        case ERROR:
-          DriverStation.reportError(text, false);
-          break;
-        case WARNING:
-          DriverStation.reportWarning(text, false);
-          break;
-        case INFO:
-          System.out.println(text);
-          break;
-      }
+      report(text);
     }
     this.active = active;
   }
@@ -72,21 +63,30 @@ public class Alert {
   /** Updates current alert text. */
   public void setText(String text) {
     if (active && !text.equals(this.text)) {
-      switch (type) {
-        case ERROR:
-          DriverStation.reportError(text, false);
-          break;
-        case WARNING:
-          DriverStation.reportWarning(text, false);
-          break;
-        case INFO:
-          System.out.println(text);
-          break;
-      }
+      report(text);
     }
     this.text = text;
   }
 
+  /** Console output is slow and never urgent, it goes out when the loop has slack. */
+  private void report(String text) {
+    DeferredWorkQueue.submit(
+        DeferredWorkQueue.Priority.NORMAL,
+        () -> {
+          switch (type) {
+            case ERROR:
+              DriverStation.reportError(text, false);
+              break;
+            case WARNING:
+              DriverStation.reportWarning(text, false);
+              break;
+            case INFO:
+              System.out.println(text);
+              break;
+          }
+        });
+  }
+
   private static class SendableAlerts implements Sendable {
     public final List<Alert> alerts = new ArrayList<>();
 
@@ -0,0 +1,23 @@
+package frc.lib.interfaces;
+
+import edu.wpi.first.wpilibj2.command.SubsystemBase;
+import frc.lib.utils.LoopProfiler;
+
+/**
+ * Subsystem whose periodic is timed by {@link LoopProfiler} as "Subsystem/" plus the class name.
+ * Subclasses put their periodic work in {@link #profiledPeriodic()}.
+ */
+public abstract class ProfiledSubsystem extends SubsystemBase {
+  private final LoopProfiler.Section periodicSection =
+      LoopProfiler.section("Subsystem/" + getClass().getSimpleName());
+
+  @Override
+  public final void periodic() {
+    final var start = System.nanoTime();
+    profiledPeriodic();
+    periodicSection.record(start);
+  }
+
+  /** Called once per scheduler run, in place of {@link #periodic()}. */
+  protected void profiledPeriodic() {}
+}
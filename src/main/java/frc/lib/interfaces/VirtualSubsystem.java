@@ -3,31 +3,267 @@ package frc.lib.interfaces;
 import edu.wpi.first.wpilibj2.command.Command;
 import edu.wpi.first.wpilibj2.command.Commands;
 import edu.wpi.first.wpilibj2.command.Subsystem;
+import frc.lib.utils.LoopProfiler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+/**
+ * Service run once per loop ahead of the command scheduler. A service that does not need the full
+ * loop rate runs every {@code rateDivisor} loops, at loops where {@code loop % rateDivisor ==
+ * phase}. Without an explicit phase the least loaded one is picked, so low rate services spread
+ * over the loops instead of all landing on the same one.
+ *
+ * <p>A service may also split off a {@link #concurrentPeriodic()} stage that runs on a worker
+ * thread ahead of every {@link #periodic()}. Stages are grouped into waves by their declared read
+ * and write dependencies, the stages of one wave share nothing and run in parallel, and all of them
+ * are joined before the first {@link #periodic()}, which stays on the main thread with the logger.
+ * The pool is idle from then on, so fan-outs joined inside a {@link #periodic()} run on it too
+ * through {@link #getPool()} instead of bringing their own threads.
+ */
 public abstract class VirtualSubsystem implements Subsystem {
+  // Every rate divisor must divide this, phases are balanced over one such cycle
+  public static final int HYPERPERIOD_LOOPS = 60;
+
   // Thread-safe list implementation to prevent ConcurrentModificationException
   private static final List<VirtualSubsystem> subsystems = new CopyOnWriteArrayList<>();
+  // Services run at each loop of the hyperperiod
+  private static final int[] loadPerLoop = new int[HYPERPERIOD_LOOPS];
+  private static long loopCount = 0;
+
+  // Concurrent stages in dependency order, rebuilt whenever registrations change
+  private static final List<List<VirtualSubsystem>> waves = new ArrayList<>();
+  private static final List<RecursiveAction> dueStages = new ArrayList<>();
+  private static final RecursiveAction runDueStages =
+      new RecursiveAction() {
+        @Override
+        protected void compute() {
+          invokeAll(dueStages);
+        }
+      };
+  private static boolean wavesDirty = true;
+  private static ForkJoinPool pool = null;
+
+  private final LoopProfiler.Section profilerSection =
+      LoopProfiler.section("VirtualSubsystem/" + getClass().getSimpleName());
+  private final int rateDivisor;
+  private final int phase;
+
+  private final Set<Object> readDependencies = new HashSet<>();
+  private final Set<Object> writeDependencies = new HashSet<>(Collections.singleton(this));
+  private boolean concurrent = false;
+  private LoopProfiler.Section concurrentSection = null;
+  private long concurrentNanos = 0;
+  private final RecursiveAction concurrentStage =
+      new RecursiveAction() {
+        @Override
+        protected void compute() {
+          final var start = System.nanoTime();
+          concurrentPeriodic();
+          concurrentNanos = System.nanoTime() - start;
+        }
+      };
 
   public VirtualSubsystem() {
+    this(1, 0);
+  }
+
+  /** Runs every {@code rateDivisor} loops at the least loaded phase. */
+  protected VirtualSubsystem(int rateDivisor) {
+    this(rateDivisor, leastLoadedPhase(rateDivisor));
+  }
+
+  /**
+   * Runs every {@code rateDivisor} loops.
+   *
+   * @param rateDivisor Divisor of {@link #HYPERPERIOD_LOOPS}
+   * @param phase Loop within the divisor to run at, from 0
+   */
+  protected VirtualSubsystem(int rateDivisor, int phase) {
+    if (rateDivisor < 1 || HYPERPERIOD_LOOPS % rateDivisor != 0) {
+      throw new IllegalArgumentException(
+          "[VirtualSubsystem]: rate divisor " + rateDivisor + " does not divide the hyperperiod");
+    }
+    if (phase < 0 || phase >= rateDivisor) {
+      throw new IllegalArgumentException("[VirtualSubsystem]: phase " + phase + " out of range");
+    }
+    this.rateDivisor = rateDivisor;
+    this.phase = phase;
+    addLoad(1);
     subsystems.add(this);
+    wavesDirty = true;
+  }
+
+  /**
+   * Runs the concurrent stages on a pool, the stages of each wave in parallel.
+   *
+   * @param threads 1 runs every stage on the calling thread
+   */
+  public static void setParallelism(int threads) {
+    if (pool != null) {
+      pool.shutdown();
+    }
+    pool = threads > 1 ? new ForkJoinPool(threads) : null;
+  }
+
+  /** Worker pool shared by every service, null when single threaded. */
+  public static ForkJoinPool getPool() {
+    return pool;
+  }
+
+  private static int leastLoadedPhase(int rateDivisor) {
+    if (rateDivisor < 1 || HYPERPERIOD_LOOPS % rateDivisor != 0) {
+      return 0; // Rejected by the constructor
+    }
+    var bestPhase = 0;
+    var bestLoad = Integer.MAX_VALUE;
+    for (int phase = 0; phase < rateDivisor; ++phase) {
+      // The busiest loop this phase would add to
+      var load = 0;
+      for (int loop = phase; loop < HYPERPERIOD_LOOPS; loop += rateDivisor) {
+        load = Math.max(load, loadPerLoop[loop]);
+      }
+      if (load < bestLoad) {
+        bestLoad = load;
+        bestPhase = phase;
+      }
+    }
+    return bestPhase;
+  }
+
+  /** Adds {@code delta} services at every loop this service runs at. */
+  private void addLoad(int delta) {
+    for (int loop = phase; loop < HYPERPERIOD_LOOPS; loop += rateDivisor) {
+      loadPerLoop[loop] += delta;
+    }
   }
 
   public static void periodicAll() {
+    final var loop = (int) (loopCount++ % HYPERPERIOD_LOOPS);
+    if (wavesDirty) {
+      buildWaves();
+    }
+
+    for (final var wave : waves) {
+      dueStages.clear();
+      for (final var subsystem : wave) {
+        if (subsystem.isDue(loop)) {
+          subsystem.concurrentStage.reinitialize();
+          dueStages.add(subsystem.concurrentStage);
+        }
+      }
+      if (pool != null && dueStages.size() > 1) {
+        runDueStages.reinitialize();
+        pool.invoke(runDueStages);
+      } else {
+        for (final var stage : dueStages) {
+          stage.invoke();
+        }
+      }
+    }
+
     // CopyOnWriteArrayList is already thread-safe for iteration
     for (VirtualSubsystem subsystem : subsystems) {
+      if (!subsystem.isDue(loop)) {
+        continue;
+      }
+      if (subsystem.concurrent) {
+        subsystem.concurrentSection.recordNanos(subsystem.concurrentNanos);
+      }
+      final var start = System.nanoTime();
       subsystem.periodic();
+      subsystem.profilerSection.record(start);
     }
   }
 
+  private boolean isDue(int loop) {
+    return loop % rateDivisor == phase;
+  }
+
+  /**
+   * Each stage goes one wave after the latest earlier stage it conflicts with, stages conflict if
+   * one writes what the other reads or writes.
+   */
+  private static void buildWaves() {
+    waves.clear();
+    final var placed = new ArrayList<VirtualSubsystem>();
+    final var placedWave = new ArrayList<Integer>();
+    for (final var subsystem : subsystems) {
+      if (!subsystem.concurrent) {
+        continue;
+      }
+      var wave = 0;
+      for (int i = 0; i < placed.size(); ++i) {
+        if (subsystem.conflictsWith(placed.get(i))) {
+          wave = Math.max(wave, placedWave.get(i) + 1);
+        }
+      }
+      if (wave == waves.size()) {
+        waves.add(new ArrayList<>());
+      }
+      waves.get(wave).add(subsystem);
+      placed.add(subsystem);
+      placedWave.add(wave);
+    }
+    wavesDirty = false;
+  }
+
+  private boolean conflictsWith(VirtualSubsystem other) {
+    for (final var resource : writeDependencies) {
+      if (other.readDependencies.contains(resource) || other.writeDependencies.contains(resource)) {
+        return true;
+      }
+    }
+    for (final var resource : other.writeDependencies) {
+      if (readDependencies.contains(resource)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public abstract void periodic();
 
+  /**
+   * Stage run on a worker thread ahead of {@link #periodic()}, at the same rate, once {@link
+   * #enableConcurrentPeriodic()} was called. It must not use the logger, and may only touch state
+   * of this service or declared as a dependency.
+   */
+  protected void concurrentPeriodic() {}
+
+  /** Runs {@link #concurrentPeriodic()} every time this service is due, call in the constructor. */
+  protected final void enableConcurrentPeriodic() {
+    concurrent = true;
+    concurrentSection =
+        LoopProfiler.section("VirtualSubsystem/" + getClass().getSimpleName() + "/Concurrent");
+    wavesDirty = true;
+  }
+
+  /** Declares that {@link #concurrentPeriodic()} reads a shared resource, any object naming it. */
+  public final void addReadDependency(Object resource) {
+    readDependencies.add(resource);
+    wavesDirty = true;
+  }
+
+  /** Declares that {@link #concurrentPeriodic()} writes a shared resource. */
+  public final void addWriteDependency(Object resource) {
+    writeDependencies.add(resource);
+    wavesDirty = true;
+  }
+
   public final Command run() {
     return Commands.runOnce(
         () -> {
           if (!subsystems.contains(this)) {
             subsystems.add(this);
+            addLoad(1);
+            wavesDirty = true;
           }
           onRun();
         },
@@ -38,7 +274,10 @@ public abstract class VirtualSubsystem implements Subsystem {
   public final Command stop() {
     return Commands.runOnce(
         () -> {
-          subsystems.remove(this);
+          if (subsystems.remove(this)) {
+            addLoad(-1);
+            wavesDirty = true;
+          }
           onStop();
         },
         this // Requires this subsystem
@@ -57,5 +296,7 @@ public abstract class VirtualSubsystem implements Subsystem {
   /** Clears all registered subsystems (for testing purposes) */
   public static void clearAllSubsystems() {
     subsystems.clear();
+    Arrays.fill(loadPerLoop, 0);
+    wavesDirty = true;
   }
 }
@@ -12,6 +12,8 @@ public interface GenericWheelIO {
     public double outputVoltageVolt;
     public double supplyCurrentAmp;
     public double statorCurrentAmp;
+    // False if the IO does not model stator current, e.g. in sim
+    public boolean statorCurrentMeasured;
   }
 
   default void updateInputs(GenericWheelIOInputs inputs) {}
@@ -28,7 +28,7 @@ public class GenericWheelIOKraken implements GenericWheelIO {
   private final List<Follower> slaveSetters = new ArrayList<>();
 
   // Signal
-  private final StatusSignal<AngularVelocity> vel;
+  @Getter private final StatusSignal<AngularVelocity> vel;
   @Getter private final StatusSignal<Angle> position;
   private final StatusSignal<Voltage> outputVoltage;
   private final StatusSignal<Current> supplyCurrent;
@@ -106,6 +106,7 @@ public class GenericWheelIOKraken implements GenericWheelIO {
     inputs.outputVoltageVolt = outputVoltage.getValueAsDouble();
     inputs.supplyCurrentAmp = supplyCurrent.getValueAsDouble();
     inputs.statorCurrentAmp = statorCurrent.getValueAsDouble();
+    inputs.statorCurrentMeasured = true;
   }
 
   @Override
@@ -16,7 +16,7 @@ public class GyroIOPigeon2 implements GyroIO {
   private final Pigeon2 pigeon;
 
   @Getter private final StatusSignal<Angle> yaw;
-  private final StatusSignal<AngularVelocity> yawVelocity;
+  @Getter private final StatusSignal<AngularVelocity> yawVelocity;
 
   public GyroIOPigeon2(CanId id) {
     pigeon = new Pigeon2(id.id(), id.bus());
@@ -0,0 +1,137 @@
+package frc.lib.math;
+
+import java.util.Arrays;
+
+/**
+ * 3-state pose filter with uncorrelated, constant process noise. The Kalman gain of each axis is
+ * the steady-state scalar {@code q / (q + sqrt(q * r))}, so every update is a handful of primitive
+ * operations.
+ *
+ * <p>The variance of each axis is still tracked so consumers can gate on it: every step adds the
+ * process noise, every correction applies the Joseph form {@code (1 - k)^2 p + k^2 r} of the gain
+ * actually used. Variances are kept along the robot axes the corrections work in and rotated into
+ * the field frame when read.
+ *
+ * <p>State block: x, y, theta, the variance scale of the step, then the x, y and theta variances.
+ */
+public final class DiagonalPoseFilter implements PoseFilter {
+  private static final int VARIANCE_SCALE = 3;
+  private static final int VAR_X = 4;
+  private static final int VAR_Y = 5;
+  private static final int VAR_THETA = 6;
+
+  private final double qX;
+  private final double qY;
+  private final double qTheta;
+  private final double[] initialVariance = new double[3];
+  private final double[] scratch = new double[3];
+
+  /**
+   * Creates a filter.
+   *
+   * @param stdDevX Odometry standard deviation along x per step (m)
+   * @param stdDevY Odometry standard deviation along y per step (m)
+   * @param stdDevTheta Odometry standard deviation of heading per step (rad)
+   * @param initialStdDevs Uncertainty of a reset pose, x (m), y (m), theta (rad)
+   */
+  public DiagonalPoseFilter(
+      double stdDevX, double stdDevY, double stdDevTheta, double[] initialStdDevs) {
+    qX = stdDevX * stdDevX;
+    qY = stdDevY * stdDevY;
+    qTheta = stdDevTheta * stdDevTheta;
+    for (int i = 0; i < 3; ++i) {
+      initialVariance[i] = initialStdDevs[i] * initialStdDevs[i];
+    }
+  }
+
+  @Override
+  public int stateSize() {
+    return 7;
+  }
+
+  @Override
+  public void reset(double x, double y, double theta, double[] state, int offset) {
+    state[offset + X] = x;
+    state[offset + Y] = y;
+    state[offset + THETA] = theta;
+    state[offset + VARIANCE_SCALE] = 1.0;
+    state[offset + VAR_X] = initialVariance[0];
+    state[offset + VAR_Y] = initialVariance[1];
+    state[offset + VAR_THETA] = initialVariance[2];
+  }
+
+  @Override
+  public void predict(
+      double[] state, int from, int to, double dx, double dy, double dtheta, double noiseScale) {
+    SE2Util.exp(state[from + X], state[from + Y], state[from + THETA], dx, dy, dtheta, scratch);
+    state[to + X] = scratch[0];
+    state[to + Y] = scratch[1];
+    state[to + THETA] = scratch[2];
+    final var scale = noiseScale * noiseScale;
+    state[to + VARIANCE_SCALE] = scale;
+    state[to + VAR_X] = state[from + VAR_X] + qX * scale;
+    state[to + VAR_Y] = state[from + VAR_Y] + qY * scale;
+    state[to + VAR_THETA] = state[from + VAR_THETA] + qTheta * scale;
+  }
+
+  @Override
+  public void correct(
+      double[] state,
+      int offset,
+      double x,
+      double y,
+      double theta,
+      double stdDevX,
+      double stdDevY,
+      double stdDevTheta) {
+    final var poseX = state[offset + X];
+    final var poseY = state[offset + Y];
+    final var poseTheta = state[offset + THETA];
+    final var scale = state[offset + VARIANCE_SCALE];
+
+    final var kX = gain(qX * scale, stdDevX);
+    final var kY = gain(qY * scale, stdDevY);
+    final var kTheta = gain(qTheta * scale, stdDevTheta);
+
+    // Innovation in the robot frame, scaled per axis, applied back in the robot frame
+    SE2Util.relative(poseX, poseY, poseTheta, x, y, theta, scratch);
+    SE2Util.compose(
+        poseX, poseY, poseTheta, kX * scratch[0], kY * scratch[1], kTheta * scratch[2], scratch);
+
+    state[offset + X] = scratch[0];
+    state[offset + Y] = scratch[1];
+    state[offset + THETA] = scratch[2];
+    state[offset + VAR_X] = joseph(state[offset + VAR_X], kX, stdDevX);
+    state[offset + VAR_Y] = joseph(state[offset + VAR_Y], kY, stdDevY);
+    state[offset + VAR_THETA] = joseph(state[offset + VAR_THETA], kTheta, stdDevTheta);
+  }
+
+  @Override
+  public void getCovariance(double[] state, int offset, double[] out) {
+    final var varX = state[offset + VAR_X];
+    final var varY = state[offset + VAR_Y];
+    final var cos = Math.cos(state[offset + THETA]);
+    final var sin = Math.sin(state[offset + THETA]);
+    Arrays.fill(out, 0, 9, 0.0);
+    out[0] = varX * cos * cos + varY * sin * sin;
+    out[1] = (varX - varY) * cos * sin;
+    out[3] = out[1];
+    out[4] = varX * sin * sin + varY * cos * cos;
+    out[8] = state[offset + VAR_THETA];
+  }
+
+  private static double gain(double q, double stdDev) {
+    if (q == 0.0) {
+      return 0.0;
+    }
+    return q / (q + Math.sqrt(q * stdDev * stdDev));
+  }
+
+  /** Variance after a correction with gain k against a measurement of the given noise. */
+  private static double joseph(double variance, double k, double stdDev) {
+    if (k == 0.0) {
+      return variance;
+    }
+    return (1.0 - k) * (1.0 - k) * variance + k * k * stdDev * stdDev;
+  }
+}
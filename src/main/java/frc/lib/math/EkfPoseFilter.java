@@ -0,0 +1,192 @@
+package frc.lib.math;
+
+import edu.wpi.first.math.MathUtil;
+
+/**
+ * Extended Kalman filter on (x, y, theta) with a full 3x3 covariance. Wheel odometry drives the
+ * prediction through the differential-drive motion model, so translation and heading uncertainty
+ * become correlated as the robot moves. Gyro heading and vision poses are fused as measurements
+ * with diagonal noise, processed one axis at a time, which is exact for diagonal R and lets an
+ * infinite standard deviation simply skip that axis.
+ *
+ * <p>State block: x, y, theta, then the upper triangle of P (xx, xy, xtheta, yy, ytheta,
+ * thetatheta).
+ */
+public final class EkfPoseFilter implements PoseFilter {
+  private static final int XX = 3;
+  private static final int XY = 4;
+  private static final int XT = 5;
+  private static final int YY = 6;
+  private static final int YT = 7;
+  private static final int TT = 8;
+
+  private final double longStdDevPerMeter;
+  private final double latStdDevPerMeter;
+  private final double thetaStdDevPerRad;
+  private final double gyroVariance;
+  private final double[] initialVariance = new double[3];
+
+  private final double[] scratch = new double[3];
+  private final double[] p = new double[9];
+  private final double[] k = new double[3];
+
+  /**
+   * Creates a filter.
+   *
+   * @param longStdDevPerMeter Wheel slip along the robot heading per meter driven
+   * @param latStdDevPerMeter Side drift per meter driven
+   * @param thetaStdDevPerRad Heading error per radian turned
+   * @param gyroStdDev Noise of the absolute gyro heading (rad)
+   * @param initialStdDevs Uncertainty of a reset pose, x (m), y (m), theta (rad)
+   */
+  public EkfPoseFilter(
+      double longStdDevPerMeter,
+      double latStdDevPerMeter,
+      double thetaStdDevPerRad,
+      double gyroStdDev,
+      double[] initialStdDevs) {
+    this.longStdDevPerMeter = longStdDevPerMeter;
+    this.latStdDevPerMeter = latStdDevPerMeter;
+    this.thetaStdDevPerRad = thetaStdDevPerRad;
+    this.gyroVariance = gyroStdDev * gyroStdDev;
+    for (int i = 0; i < 3; ++i) {
+      initialVariance[i] = initialStdDevs[i] * initialStdDevs[i];
+    }
+  }
+
+  @Override
+  public int stateSize() {
+    return 9;
+  }
+
+  @Override
+  public void reset(double x, double y, double theta, double[] state, int offset) {
+    state[offset + X] = x;
+    state[offset + Y] = y;
+    state[offset + THETA] = theta;
+    state[offset + XX] = initialVariance[0];
+    state[offset + XY] = 0.0;
+    state[offset + XT] = 0.0;
+    state[offset + YY] = initialVariance[1];
+    state[offset + YT] = 0.0;
+    state[offset + TT] = initialVariance[2];
+  }
+
+  @Override
+  public void predict(
+      double[] state, int from, int to, double dx, double dy, double dtheta, double noiseScale) {
+    final var x = state[from + X];
+    final var y = state[from + Y];
+    final var theta = state[from + THETA];
+
+    SE2Util.exp(x, y, theta, dx, dy, dtheta, scratch);
+    // Field frame displacement gives the heading column of the Jacobian
+    final var fx = -(scratch[1] - y);
+    final var fy = scratch[0] - x;
+
+    final var pxx = state[from + XX];
+    final var pxy = state[from + XY];
+    final var pxt = state[from + XT];
+    final var pyy = state[from + YY];
+    final var pyt = state[from + YT];
+    final var ptt = state[from + TT];
+
+    // F = [[1, 0, -dy_field], [0, 1, dx_field], [0, 0, 1]], P' = F P F^T
+    final var nxt = pxt + fx * ptt;
+    final var nyt = pyt + fy * ptt;
+    var nxx = pxx + 2.0 * fx * pxt + fx * fx * ptt;
+    var nxy = pxy + fx * pyt + fy * pxt + fx * fy * ptt;
+    var nyy = pyy + 2.0 * fy * pyt + fy * fy * ptt;
+    var ntt = ptt;
+
+    // Q grows with the distance driven, longitudinal/lateral axes rotated into the field frame
+    final var distance = Math.hypot(dx, dy) * noiseScale;
+    final var qLong = sq(longStdDevPerMeter * distance);
+    final var qLat = sq(latStdDevPerMeter * distance);
+    final var cos = Math.cos(theta);
+    final var sin = Math.sin(theta);
+    nxx += qLong * cos * cos + qLat * sin * sin;
+    nxy += (qLong - qLat) * cos * sin;
+    nyy += qLong * sin * sin + qLat * cos * cos;
+    ntt += sq(thetaStdDevPerRad * dtheta * noiseScale);
+
+    state[to + X] = scratch[0];
+    state[to + Y] = scratch[1];
+    state[to + THETA] = scratch[2];
+    state[to + XX] = nxx;
+    state[to + XY] = nxy;
+    state[to + XT] = nxt;
+    state[to + YY] = nyy;
+    state[to + YT] = nyt;
+    state[to + TT] = ntt;
+  }
+
+  @Override
+  public void correct(
+      double[] state,
+      int offset,
+      double x,
+      double y,
+      double theta,
+      double stdDevX,
+      double stdDevY,
+      double stdDevTheta) {
+    correctAxis(state, offset, X, x, stdDevX * stdDevX);
+    correctAxis(state, offset, Y, y, stdDevY * stdDevY);
+    correctAxis(state, offset, THETA, theta, stdDevTheta * stdDevTheta);
+  }
+
+  @Override
+  public void correctHeading(double[] state, int offset, double theta) {
+    correctAxis(state, offset, THETA, theta, gyroVariance);
+  }
+
+  @Override
+  public void getCovariance(double[] state, int offset, double[] out) {
+    out[0] = state[offset + XX];
+    out[1] = state[offset + XY];
+    out[2] = state[offset + XT];
+    out[3] = state[offset + XY];
+    out[4] = state[offset + YY];
+    out[5] = state[offset + YT];
+    out[6] = state[offset + XT];
+    out[7] = state[offset + YT];
+    out[8] = state[offset + TT];
+  }
+
+  /** Scalar Kalman update of one state axis, z = state[axis] + v, v ~ N(0, r). */
+  private void correctAxis(double[] state, int offset, int axis, double z, double r) {
+    if (!Double.isFinite(r)) {
+      return;
+    }
+
+    getCovariance(state, offset, p);
+    final var s = p[axis * 3 + axis] + r;
+    if (s <= 0.0) {
+      return;
+    }
+    for (int i = 0; i < 3; ++i) {
+      k[i] = p[i * 3 + axis] / s;
+    }
+
+    var innovation = z - state[offset + axis];
+    if (axis == THETA) {
+      innovation = MathUtil.angleModulus(innovation);
+    }
+    state[offset + X] += k[0] * innovation;
+    state[offset + Y] += k[1] * innovation;
+    state[offset + THETA] = MathUtil.angleModulus(state[offset + THETA] + k[2] * innovation);
+
+    // P = P - K * P[axis, :]
+    state[offset + XX] = p[0] - k[0] * p[axis * 3];
+    state[offset + XY] = p[1] - k[0] * p[axis * 3 + 1];
+    state[offset + XT] = p[2] - k[0] * p[axis * 3 + 2];
+    state[offset + YY] = p[4] - k[1] * p[axis * 3 + 1];
+    state[offset + YT] = p[5] - k[1] * p[axis * 3 + 2];
+    state[offset + TT] = p[8] - k[2] * p[axis * 3 + 2];
+  }
+
+  private static double sq(double value) {
+    return value * value;
+  }
+}
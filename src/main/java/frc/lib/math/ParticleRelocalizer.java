@@ -0,0 +1,602 @@
+package frc.lib.math;
+
+import edu.wpi.first.math.MathUtil;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Global pose relocalizer built on a particle filter. Unlike the Kalman estimators it can recover
+ * from an arbitrarily wrong prior, e.g. after a collision or a reset at the wrong spot.
+ *
+ * <p>The owner thread stages odometry motion and measurements, {@link #update()} hands them to a
+ * small fork-join pool which moves, scores and resamples all particles in parallel chunks, then
+ * publishes the weighted mean once the cloud has collapsed. Each iteration has a time budget,
+ * particles not scored in time take the lowest log-weight of the scored ones. Nothing is allocated
+ * after construction.
+ *
+ * <p>Every measurement carries the robot pose at its capture time relative to the latest odometry
+ * pose, so particles, which live at the latest odometry time, are moved back before scoring.
+ *
+ * <p>Random numbers come from a seeded stream per particle plus one for resampling, so the same
+ * inputs handed to the same iterations give the same particles however the chunks are scheduled.
+ * Which staged inputs reach which iteration still depends on timing, owners that need replay to
+ * reproduce a run should log the converged pose.
+ */
+public class ParticleRelocalizer {
+  private static final int TYPE = 0;
+  private static final int BACK_DX = 1;
+  private static final int BACK_DY = 2;
+  private static final int BACK_DTHETA = 3;
+  private static final int ROW = 13;
+  private static final double POSE = 0.0;
+  private static final double BEARING = 1.0;
+
+  // Motion noise, relative to the motion plus a floor so the cloud keeps exploring at rest
+  private static final double MOTION_TRANSLATION_STD_DEV_RATIO = 0.1;
+  private static final double MOTION_ROTATION_STD_DEV_RATIO = 0.1;
+  private static final double MOTION_TRANSLATION_STD_DEV_FLOOR = 0.02;
+  private static final double MOTION_ROTATION_STD_DEV_FLOOR = Math.toRadians(2.0);
+  // Share of particles re-drawn uniformly on every resample to recover from a wrong collapse
+  private static final double RANDOM_INJECTION_RATIO = 0.01;
+  private static final double CONVERGED_TRANSLATION_STD_DEV = 0.15;
+  private static final double CONVERGED_ROTATION_STD_DEV = Math.toRadians(5.0);
+  // Mean normalized squared residual at the converged pose, rejects a collapse onto a local fit
+  private static final double CONVERGED_MAX_RESIDUAL = 4.0;
+  private static final int MIN_SCORED_ITERATIONS = 10;
+  // The likelihood is tempered over the first iterations so the cloud does not collapse early
+  private static final int ANNEALING_ITERATIONS = 10;
+  // SplitMix64 increment
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+  private final int particleCount;
+  private final int maxMeasurements;
+  private final long budgetNanos;
+  private final long seed;
+  private final ForkJoinPool pool;
+  private final Chunk[] chunks;
+  private final Runnable iteration = this::iterate;
+  private final AtomicBoolean busy = new AtomicBoolean(false);
+
+  // Owned by the owner thread
+  private final double[] stagedMeasurements;
+  private int stagedCount = 0;
+  private final double[] stagedMotion = new double[3];
+  private final double[] stagedBounds = new double[4];
+  private boolean active = false;
+  // Bumped by every start, results of an older run are ignored
+  private int generation = 0;
+  private int scatteredGeneration = -1;
+
+  // Owned by the worker while busy, by the owner thread otherwise
+  private final double[] measurements;
+  private int measurementCount = 0;
+  private final double[] motion = new double[3];
+  private final double[] bounds = new double[4];
+  private int workGeneration = -1;
+  private boolean reinitialize = false;
+  private double[] x;
+  private double[] y;
+  private double[] theta;
+  private double[] nextX;
+  private double[] nextY;
+  private double[] nextTheta;
+  private final double[] logWeight;
+  private final double[] weight;
+  // Random stream state per particle, only advanced by the chunk owning the particle
+  private final long[] particleRandom;
+  private long resampleRandom = 0;
+  private int scoredIterations = 0;
+  private double likelihoodScale = 1.0;
+
+  // Published by the worker, the generation is written last
+  private volatile int convergedGeneration = -1;
+  private volatile double meanX = 0.0;
+  private volatile double meanY = 0.0;
+  private volatile double meanTheta = 0.0;
+  private volatile double translationStdDev = Double.POSITIVE_INFINITY;
+  private volatile double rotationStdDev = Double.POSITIVE_INFINITY;
+  private volatile double lastIterationSec = 0.0;
+  private volatile int timedOutCount = 0;
+
+  /**
+   * Creates a relocalizer, the worker threads are spawned on the first {@link #update()}.
+   *
+   * @param particleCount Number of pose hypotheses
+   * @param maxMeasurements Measurements kept per iteration, extra ones are dropped
+   * @param parallelism Worker threads
+   * @param budgetSec Time limit of one iteration
+   * @param seed Seed of the random streams, every start derives its own streams from it
+   */
+  public ParticleRelocalizer(
+      int particleCount, int maxMeasurements, int parallelism, double budgetSec, long seed) {
+    this.particleCount = particleCount;
+    this.maxMeasurements = maxMeasurements;
+    this.budgetNanos = (long) (budgetSec * 1e9);
+    this.seed = seed;
+    pool = new ForkJoinPool(parallelism);
+    stagedMeasurements = new double[maxMeasurements * ROW];
+    measurements = new double[maxMeasurements * ROW];
+    x = new double[particleCount];
+    y = new double[particleCount];
+    theta = new double[particleCount];
+    nextX = new double[particleCount];
+    nextY = new double[particleCount];
+    nextTheta = new double[particleCount];
+    logWeight = new double[particleCount];
+    weight = new double[particleCount];
+    particleRandom = new long[particleCount];
+
+    // A few chunks per thread so a descheduled worker does not stall the iteration
+    final var chunkCount = Math.max(1, Math.min(particleCount, parallelism * 4));
+    chunks = new Chunk[chunkCount];
+    for (int i = 0; i < chunkCount; ++i) {
+      chunks[i] =
+          new Chunk(
+              (int) ((long) particleCount * i / chunkCount),
+              (int) ((long) particleCount * (i + 1) / chunkCount));
+    }
+  }
+
+  /**
+   * Spreads the particles uniformly over a rectangle with random headings and starts iterating.
+   * The particles are drawn by the worker on the next {@link #update()}.
+   */
+  public void start(double minX, double minY, double maxX, double maxY) {
+    stagedCount = 0;
+    stagedMotion[0] = 0.0;
+    stagedMotion[1] = 0.0;
+    stagedMotion[2] = 0.0;
+    stagedBounds[0] = minX;
+    stagedBounds[1] = minY;
+    stagedBounds[2] = maxX;
+    stagedBounds[3] = maxY;
+    generation++;
+    active = true;
+  }
+
+  /** Stops iterating, an iteration in flight still finishes. */
+  public void stop() {
+    active = false;
+  }
+
+  public boolean isActive() {
+    return active;
+  }
+
+  /** True while the worker runs an iteration, {@link #update()} then only keeps staging. */
+  public boolean isIterating() {
+    return busy.get();
+  }
+
+  /** Accumulates an odometry twist driven since the last call. */
+  public void addMotion(double dx, double dy, double dtheta) {
+    if (!active) {
+      return;
+    }
+    SE2Util.exp(stagedMotion[0], stagedMotion[1], stagedMotion[2], dx, dy, dtheta, stagedMotion);
+  }
+
+  /**
+   * Stages an absolute pose measurement.
+   *
+   * @param back Robot pose at capture time relative to the latest pose, x, y, theta
+   */
+  public void addPoseMeasurement(
+      double[] back,
+      double poseX,
+      double poseY,
+      double poseTheta,
+      double stdDevX,
+      double stdDevY,
+      double stdDevTheta) {
+    final var row = stageRow(POSE, back);
+    if (row < 0) {
+      return;
+    }
+    stagedMeasurements[row + 4] = poseX;
+    stagedMeasurements[row + 5] = poseY;
+    stagedMeasurements[row + 6] = poseTheta;
+    stagedMeasurements[row + 7] = information(stdDevX);
+    stagedMeasurements[row + 8] = information(stdDevY);
+    stagedMeasurements[row + 9] = information(stdDevTheta);
+  }
+
+  /**
+   * Stages a bearing and range to a known landmark seen by a sensor mounted on the robot.
+   *
+   * @param back Robot pose at capture time relative to the latest pose, x, y, theta
+   * @param bearing Landmark angle in the sensor frame, counter-clockwise positive
+   */
+  public void addBearingMeasurement(
+      double[] back,
+      double sensorX,
+      double sensorY,
+      double sensorYaw,
+      double landmarkX,
+      double landmarkY,
+      double bearing,
+      double range,
+      double stdDevBearing,
+      double stdDevRange) {
+    final var row = stageRow(BEARING, back);
+    if (row < 0) {
+      return;
+    }
+    stagedMeasurements[row + 4] = sensorX;
+    stagedMeasurements[row + 5] = sensorY;
+    stagedMeasurements[row + 6] = sensorYaw;
+    stagedMeasurements[row + 7] = landmarkX;
+    stagedMeasurements[row + 8] = landmarkY;
+    stagedMeasurements[row + 9] = bearing;
+    stagedMeasurements[row + 10] = range;
+    stagedMeasurements[row + 11] = information(stdDevBearing);
+    stagedMeasurements[row + 12] = information(stdDevRange);
+  }
+
+  /**
+   * Hands the staged motion and measurements to the worker if it is idle, otherwise keeps staging
+   * them for the next call. Once converged it waits for {@link #pollConverged}. Never blocks.
+   *
+   * @return true if an iteration was started
+   */
+  public boolean update() {
+    // A converged mean waits for its poll, with the motion staged since it was computed
+    if (!active || convergedGeneration == generation || !busy.compareAndSet(false, true)) {
+      return false;
+    }
+
+    System.arraycopy(stagedMeasurements, 0, measurements, 0, stagedCount * ROW);
+    measurementCount = stagedCount;
+    System.arraycopy(stagedMotion, 0, motion, 0, 3);
+    if (scatteredGeneration != generation) {
+      System.arraycopy(stagedBounds, 0, bounds, 0, 4);
+      scatteredGeneration = generation;
+      reinitialize = true;
+    }
+    workGeneration = generation;
+    stagedCount = 0;
+    stagedMotion[0] = 0.0;
+    stagedMotion[1] = 0.0;
+    stagedMotion[2] = 0.0;
+
+    pool.execute(iteration);
+    return true;
+  }
+
+  /**
+   * Reads the converged pose once, moved by the motion staged since it was computed.
+   *
+   * @param out Receives x, y, theta at {@code out[0..2]}
+   * @return false if the particles have not converged yet
+   */
+  public boolean pollConverged(double[] out) {
+    if (!active || convergedGeneration != generation) {
+      return false;
+    }
+    SE2Util.compose(
+        meanX, meanY, meanTheta, stagedMotion[0], stagedMotion[1], stagedMotion[2], out);
+    active = false;
+    return true;
+  }
+
+  public double getTranslationStdDev() {
+    return translationStdDev;
+  }
+
+  public double getRotationStdDev() {
+    return rotationStdDev;
+  }
+
+  public double getLastIterationSec() {
+    return lastIterationSec;
+  }
+
+  /** Iterations that ran out of budget before every particle was scored. */
+  public int getTimedOutCount() {
+    return timedOutCount;
+  }
+
+  private int stageRow(double type, double[] back) {
+    if (!active || stagedCount == maxMeasurements) {
+      return -1;
+    }
+    final var row = stagedCount * ROW;
+    stagedMeasurements[row + TYPE] = type;
+    stagedMeasurements[row + BACK_DX] = back[0];
+    stagedMeasurements[row + BACK_DY] = back[1];
+    stagedMeasurements[row + BACK_DTHETA] = back[2];
+    stagedCount++;
+    return row;
+  }
+
+  private static double information(double stdDev) {
+    return Double.isFinite(stdDev) && stdDev > 0.0 ? 1.0 / (stdDev * stdDev) : 0.0;
+  }
+
+  /** One predict/score/resample pass, runs on a pool thread. */
+  private void iterate() {
+    final var start = System.nanoTime();
+    try {
+      if (reinitialize) {
+        scatter();
+        reinitialize = false;
+      }
+
+      likelihoodScale = Math.min(1.0, (scoredIterations + 1.0) / ANNEALING_ITERATIONS);
+      final var deadline = start + budgetNanos;
+      for (var chunk : chunks) {
+        chunk.deadline = deadline;
+        chunk.timedOut = false;
+        chunk.scoredTo = chunk.to;
+        chunk.reinitialize();
+      }
+      ForkJoinTask.invokeAll(chunks);
+
+      var timedOut = false;
+      for (var chunk : chunks) {
+        timedOut |= chunk.timedOut;
+      }
+      if (timedOut) {
+        timedOutCount++;
+      }
+      if (measurementCount > 0) {
+        if (timedOut) {
+          weighUnscored();
+        }
+        scoredIterations++;
+        resample();
+      }
+    } finally {
+      lastIterationSec = (System.nanoTime() - start) * 1e-9;
+      busy.set(false);
+    }
+  }
+
+  private void scatter() {
+    final var base = mix(seed + mix(workGeneration));
+    resampleRandom = mix(base - 1);
+    for (int i = 0; i < particleCount; ++i) {
+      particleRandom[i] = mix(base + i);
+      x[i] = bounds[0] + uniform(i) * (bounds[2] - bounds[0]);
+      y[i] = bounds[1] + uniform(i) * (bounds[3] - bounds[1]);
+      theta[i] = MathUtil.angleModulus(uniform(i) * 2.0 * Math.PI);
+      logWeight[i] = 0.0;
+    }
+    scoredIterations = 0;
+  }
+
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  private static double toUniform(long bits) {
+    return (bits >>> 11) * 0x1.0p-53;
+  }
+
+  /** Next double in [0, 1) of a particle's stream. */
+  private double uniform(int i) {
+    particleRandom[i] += GOLDEN_GAMMA;
+    return toUniform(mix(particleRandom[i]));
+  }
+
+  /** Next standard normal of a particle's stream, Box-Muller without caching the pair. */
+  private double gaussian(int i) {
+    final var radius = Math.sqrt(-2.0 * Math.log(1.0 - uniform(i)));
+    return radius * Math.cos(2.0 * Math.PI * uniform(i));
+  }
+
+  private double resampleUniform() {
+    resampleRandom += GOLDEN_GAMMA;
+    return toUniform(mix(resampleRandom));
+  }
+
+  /**
+   * Gives the particles left unscored the lowest log-weight of the scored ones. Weights restart at
+   * 0, the best a score can give, so unscored particles would otherwise win the resample.
+   */
+  private void weighUnscored() {
+    var min = Double.POSITIVE_INFINITY;
+    for (var chunk : chunks) {
+      for (int i = chunk.from; i < chunk.scoredTo; ++i) {
+        min = Math.min(min, logWeight[i]);
+      }
+    }
+    for (var chunk : chunks) {
+      for (int i = chunk.scoredTo; i < chunk.to; ++i) {
+        logWeight[i] = min;
+      }
+    }
+  }
+
+  /** Weighted mean and spread, then systematic resampling into the back buffers. */
+  private void resample() {
+    var maxLogWeight = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < particleCount; ++i) {
+      maxLogWeight = Math.max(maxLogWeight, logWeight[i]);
+    }
+    var sum = 0.0;
+    for (int i = 0; i < particleCount; ++i) {
+      weight[i] = Math.exp(logWeight[i] - maxLogWeight);
+      sum += weight[i];
+    }
+
+    var sumX = 0.0;
+    var sumY = 0.0;
+    var sumCos = 0.0;
+    var sumSin = 0.0;
+    for (int i = 0; i < particleCount; ++i) {
+      weight[i] /= sum;
+      sumX += weight[i] * x[i];
+      sumY += weight[i] * y[i];
+      sumCos += weight[i] * Math.cos(theta[i]);
+      sumSin += weight[i] * Math.sin(theta[i]);
+    }
+    var variance = 0.0;
+    for (int i = 0; i < particleCount; ++i) {
+      final var dx = x[i] - sumX;
+      final var dy = y[i] - sumY;
+      variance += weight[i] * (dx * dx + dy * dy);
+    }
+    // Circular standard deviation from the mean resultant length
+    final var resultant = Math.min(1.0, Math.hypot(sumCos, sumSin));
+    final var angularStdDev = Math.sqrt(-2.0 * Math.log(Math.max(resultant, 1e-12)));
+
+    meanX = sumX;
+    meanY = sumY;
+    meanTheta = Math.atan2(sumSin, sumCos);
+    translationStdDev = Math.sqrt(variance);
+    rotationStdDev = angularStdDev;
+    if (scoredIterations >= MIN_SCORED_ITERATIONS
+        && translationStdDev < CONVERGED_TRANSLATION_STD_DEV
+        && rotationStdDev < CONVERGED_ROTATION_STD_DEV
+        && chunks[0].meanResidual(sumX, sumY, meanTheta) < CONVERGED_MAX_RESIDUAL) {
+      convergedGeneration = workGeneration;
+    }
+
+    final var step = 1.0 / particleCount;
+    var target = resampleUniform() * step;
+    var cumulative = weight[0];
+    var j = 0;
+    for (int i = 0; i < particleCount; ++i) {
+      while (target > cumulative && j < particleCount - 1) {
+        cumulative += weight[++j];
+      }
+      if (resampleUniform() < RANDOM_INJECTION_RATIO) {
+        nextX[i] = bounds[0] + resampleUniform() * (bounds[2] - bounds[0]);
+        nextY[i] = bounds[1] + resampleUniform() * (bounds[3] - bounds[1]);
+        nextTheta[i] = MathUtil.angleModulus(resampleUniform() * 2.0 * Math.PI);
+      } else {
+        nextX[i] = x[j];
+        nextY[i] = y[j];
+        nextTheta[i] = theta[j];
+      }
+      logWeight[i] = 0.0;
+      target += step;
+    }
+
+    var swap = x;
+    x = nextX;
+    nextX = swap;
+    swap = y;
+    y = nextY;
+    nextY = swap;
+    swap = theta;
+    theta = nextTheta;
+    nextTheta = swap;
+  }
+
+  /** Moves and scores a contiguous range of particles. */
+  private final class Chunk extends RecursiveAction {
+    private final int from;
+    private final int to;
+    private final double[] robot = new double[3];
+    private final double[] sensor = new double[3];
+    private long deadline;
+    private boolean timedOut;
+    // End of the particles scored by the last run
+    private int scoredTo;
+
+    private Chunk(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      final var translation = Math.hypot(motion[0], motion[1]);
+      final var translationStdDev =
+          MOTION_TRANSLATION_STD_DEV_RATIO * translation + MOTION_TRANSLATION_STD_DEV_FLOOR;
+      final var rotationStdDev =
+          MOTION_ROTATION_STD_DEV_RATIO * Math.abs(motion[2]) + MOTION_ROTATION_STD_DEV_FLOOR;
+
+      for (int i = from; i < to; ++i) {
+        SE2Util.compose(
+            x[i],
+            y[i],
+            theta[i],
+            motion[0] + gaussian(i) * translationStdDev,
+            motion[1] + gaussian(i) * translationStdDev,
+            motion[2] + gaussian(i) * rotationStdDev,
+            robot);
+        x[i] = robot[0];
+        y[i] = robot[1];
+        theta[i] = robot[2];
+
+        // Every chunk scores its first block, a timed-out iteration still carries information
+        if (!timedOut && i > from && ((i - from) & 63) == 0 && System.nanoTime() > deadline) {
+          timedOut = true;
+          scoredTo = i;
+        }
+        if (!timedOut) {
+          logWeight[i] += likelihoodScale * score(x[i], y[i], theta[i]);
+        }
+      }
+    }
+
+    private double score(double poseX, double poseY, double poseTheta) {
+      var logLikelihood = 0.0;
+      for (int m = 0; m < measurementCount; ++m) {
+        // Cauchy instead of Gaussian tails, a single bad tag cannot wipe out the right hypothesis
+        logLikelihood -= Math.log1p(0.5 * residual(m, poseX, poseY, poseTheta));
+      }
+      return logLikelihood;
+    }
+
+    private double meanResidual(double poseX, double poseY, double poseTheta) {
+      var sum = 0.0;
+      for (int m = 0; m < measurementCount; ++m) {
+        sum += residual(m, poseX, poseY, poseTheta);
+      }
+      return sum / measurementCount;
+    }
+
+    /** Squared residual of one measurement normalized by its variance. */
+    private double residual(int m, double poseX, double poseY, double poseTheta) {
+      final var row = m * ROW;
+      SE2Util.compose(
+          poseX,
+          poseY,
+          poseTheta,
+          measurements[row + BACK_DX],
+          measurements[row + BACK_DY],
+          measurements[row + BACK_DTHETA],
+          robot);
+
+      if (measurements[row + TYPE] == POSE) {
+        final var dx = robot[0] - measurements[row + 4];
+        final var dy = robot[1] - measurements[row + 5];
+        final var dtheta = MathUtil.angleModulus(robot[2] - measurements[row + 6]);
+        return dx * dx * measurements[row + 7]
+            + dy * dy * measurements[row + 8]
+            + dtheta * dtheta * measurements[row + 9];
+      }
+
+      // Landmark in the sensor frame
+      SE2Util.compose(
+          robot[0],
+          robot[1],
+          robot[2],
+          measurements[row + 4],
+          measurements[row + 5],
+          measurements[row + 6],
+          sensor);
+      SE2Util.relative(
+          sensor[0],
+          sensor[1],
+          sensor[2],
+          measurements[row + 7],
+          measurements[row + 8],
+          sensor[2],
+          sensor);
+      final var dbearing =
+          MathUtil.angleModulus(Math.atan2(sensor[1], sensor[0]) - measurements[row + 9]);
+      final var drange = Math.hypot(sensor[0], sensor[1]) - measurements[row + 10];
+      return dbearing * dbearing * measurements[row + 11]
+          + drange * drange * measurements[row + 12];
+    }
+  }
+}
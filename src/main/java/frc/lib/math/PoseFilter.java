@@ -0,0 +1,55 @@
+package frc.lib.math;
+
+/**
+ * Estimator core used by {@link ReplayPoseEstimator}. A filter holds only parameters and scratch
+ * space, its state lives in blocks of {@link #stateSize()} doubles owned by the caller so history
+ * can be replayed. The first three doubles of a block are always x (m), y (m) and theta (rad).
+ *
+ * <p>Implementations must not allocate in {@link #predict} or {@link #correct}.
+ */
+public interface PoseFilter {
+  int X = 0;
+  int Y = 1;
+  int THETA = 2;
+
+  /** Number of doubles in one state block. */
+  int stateSize();
+
+  /** Writes the initial state block for a known pose. */
+  void reset(double x, double y, double theta, double[] state, int offset);
+
+  /**
+   * Propagates a state block by an odometry twist.
+   *
+   * @param state Array holding both blocks
+   * @param from Offset of the block to read
+   * @param to Offset of the block to write, may equal {@code from}
+   * @param noiseScale Multiplier on the odometry standard deviations, 1 when wheels grip
+   */
+  void predict(
+      double[] state, int from, int to, double dx, double dy, double dtheta, double noiseScale);
+
+  /** Corrects a state block in place with an absolute pose measurement. */
+  void correct(
+      double[] state,
+      int offset,
+      double x,
+      double y,
+      double theta,
+      double stdDevX,
+      double stdDevY,
+      double stdDevTheta);
+
+  /**
+   * Corrects a state block in place with an absolute gyro heading. Filters that take the gyro
+   * through the odometry twist instead ignore it.
+   */
+  default void correctHeading(double[] state, int offset, double theta) {}
+
+  /**
+   * Writes the 3x3 pose covariance of a state block, row major.
+   *
+   * @param out Receives 9 doubles
+   */
+  void getCovariance(double[] state, int offset, double[] out);
+}
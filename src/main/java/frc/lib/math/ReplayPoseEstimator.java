@@ -0,0 +1,373 @@
+package frc.lib.math;
+
+import edu.wpi.first.math.MathUtil;
+
+/**
+ * Latency-compensated planar pose estimator that rewinds and replays instead of patching the
+ * current pose. It keeps a short history of odometry twists with the estimated state after each of
+ * them, and a time-sorted history of vision measurements. Inserting a measurement only marks the
+ * earliest affected step dirty, {@link #replay()} then re-integrates forward once from there, so
+ * any number of out-of-order measurements inserted in one loop cost a single forward pass.
+ *
+ * <p>A measurement is applied right after the newest odometry step not later than its timestamp.
+ * The predict/correct math is delegated to a {@link PoseFilter}, whose state blocks are stored
+ * per step.
+ */
+public class ReplayPoseEstimator {
+  private final double historySec;
+  private final PoseFilter filter;
+  private final int stateSize;
+
+  // Odometry steps, ring indexed from stepStart
+  private final int stepCapacity;
+  private final double[] stepT;
+  private final double[] stepDx;
+  private final double[] stepDy;
+  private final double[] stepDtheta;
+  // Absolute gyro heading measured at the end of the step, NaN if none
+  private final double[] stepHeading;
+  private final double[] stepNoiseScale;
+  // One filter state block per step, plus the state before the oldest kept step at baseOffset
+  private final double[] states;
+  private final int baseOffset;
+  private int stepStart = 0;
+  private int stepCount = 0;
+
+  // Vision measurements sorted by time, ring indexed from measStart
+  private final int measCapacity;
+  private final double[] measT;
+  private final double[] measX;
+  private final double[] measY;
+  private final double[] measTheta;
+  private final double[] measStdX;
+  private final double[] measStdY;
+  private final double[] measStdTheta;
+  private int measStart = 0;
+  private int measCount = 0;
+
+  // Earliest logical step whose state is stale, stepCount when clean
+  private int dirtyStep = 0;
+  private double odometryNoiseScale = 1.0;
+  private int maxReplaySteps = Integer.MAX_VALUE;
+
+  /**
+   * Creates an estimator.
+   *
+   * @param historySec How far back measurements may be inserted
+   * @param stepCapacity Maximum number of odometry steps kept
+   * @param measCapacity Maximum number of vision measurements kept
+   * @param filter Estimator core doing the predict/correct math
+   */
+  public ReplayPoseEstimator(
+      double historySec, int stepCapacity, int measCapacity, PoseFilter filter) {
+    this.historySec = historySec;
+    this.filter = filter;
+    this.stateSize = filter.stateSize();
+    this.stepCapacity = stepCapacity;
+    this.measCapacity = measCapacity;
+    stepT = new double[stepCapacity];
+    stepDx = new double[stepCapacity];
+    stepDy = new double[stepCapacity];
+    stepDtheta = new double[stepCapacity];
+    stepHeading = new double[stepCapacity];
+    stepNoiseScale = new double[stepCapacity];
+    states = new double[(stepCapacity + 1) * stateSize];
+    baseOffset = stepCapacity * stateSize;
+    measT = new double[measCapacity];
+    measX = new double[measCapacity];
+    measY = new double[measCapacity];
+    measTheta = new double[measCapacity];
+    measStdX = new double[measCapacity];
+    measStdY = new double[measCapacity];
+    measStdTheta = new double[measCapacity];
+  }
+
+  /** Drops all history and sets the current estimate. */
+  public void reset(double x, double y, double theta) {
+    stepStart = 0;
+    stepCount = 0;
+    measStart = 0;
+    measCount = 0;
+    dirtyStep = 0;
+    filter.reset(x, y, theta, states, baseOffset);
+  }
+
+  /**
+   * Scales the odometry noise of the steps added from now on, e.g. while the wheels slip. Steps
+   * already in the history keep their scale when replayed.
+   */
+  public void setOdometryNoiseScale(double scale) {
+    odometryNoiseScale = scale;
+  }
+
+  /**
+   * Bounds the cost of a replay, a measurement that would re-integrate more steps is dropped.
+   * Measurements inserted together still replay once, from the earliest of them.
+   */
+  public void setMaxReplaySteps(int steps) {
+    maxReplaySteps = steps;
+  }
+
+  /** Same as {@link #addOdometry(double, double, double, double, double)} without a gyro. */
+  public void addOdometry(double timestamp, double dx, double dy, double dtheta) {
+    addOdometry(timestamp, dx, dy, dtheta, Double.NaN);
+  }
+
+  /**
+   * Appends an odometry step and integrates it. A step not newer than the latest one is folded into
+   * it so no motion is lost.
+   *
+   * @param timestamp Time at the end of the step
+   * @param dx Forward motion in the robot frame
+   * @param dy Sideways motion in the robot frame
+   * @param dtheta Heading change
+   * @param heading Absolute gyro heading at the end of the step, NaN if unavailable
+   */
+  public void addOdometry(double timestamp, double dx, double dy, double dtheta, double heading) {
+    if (stepCount > 0 && timestamp <= stepT[step(stepCount - 1)]) {
+      final var last = step(stepCount - 1);
+      stepDx[last] += dx;
+      stepDy[last] += dy;
+      stepDtheta[last] += dtheta;
+      if (!Double.isNaN(heading)) {
+        stepHeading[last] = heading;
+      }
+      stepNoiseScale[last] = Math.max(stepNoiseScale[last], odometryNoiseScale);
+      dirtyStep = Math.min(dirtyStep, stepCount - 1);
+      replay();
+      return;
+    }
+    replay();
+
+    if (stepCount == stepCapacity) {
+      evictOldestStep();
+    }
+    final var i = step(stepCount);
+    stepT[i] = timestamp;
+    stepDx[i] = dx;
+    stepDy[i] = dy;
+    stepDtheta[i] = dtheta;
+    stepHeading[i] = heading;
+    stepNoiseScale[i] = odometryNoiseScale;
+    stepCount++;
+    // The previous last step took every newer measurement, those from this step on move over
+    dirtyStep =
+        stepCount > 1 && firstMeasAtOrAfter(timestamp) < measCount ? stepCount - 2 : stepCount - 1;
+    replay();
+
+    while (stepCount > 1 && timestamp - stepT[stepStart] > historySec) {
+      evictOldestStep();
+    }
+    dirtyStep = stepCount;
+  }
+
+  /**
+   * Inserts a vision measurement without replaying. Call {@link #replay()} once after inserting a
+   * batch, or use {@link #addMeasurement}.
+   *
+   * @return false if the measurement is older than the history or than the replay limit allows
+   *     and was dropped
+   */
+  public boolean insertMeasurement(
+      double timestamp,
+      double x,
+      double y,
+      double theta,
+      double stdDevX,
+      double stdDevY,
+      double stdDevTheta) {
+    if (stepCount == 0
+        || timestamp < stepT[stepStart]
+        || stepCount - stepAtOrBefore(timestamp) > maxReplaySteps) {
+      return false;
+    }
+
+    if (measCount == measCapacity) {
+      // Oldest measurement is baked into the state as far as the history goes, forget it
+      measStart = (measStart + 1) % measCapacity;
+      measCount--;
+    }
+
+    // Insertion sort from the back, measurements are nearly in order
+    var pos = measCount;
+    while (pos > 0 && measT[meas(pos - 1)] > timestamp) {
+      final var from = meas(pos - 1);
+      final var to = meas(pos);
+      measT[to] = measT[from];
+      measX[to] = measX[from];
+      measY[to] = measY[from];
+      measTheta[to] = measTheta[from];
+      measStdX[to] = measStdX[from];
+      measStdY[to] = measStdY[from];
+      measStdTheta[to] = measStdTheta[from];
+      pos--;
+    }
+    final var i = meas(pos);
+    measT[i] = timestamp;
+    measX[i] = x;
+    measY[i] = y;
+    measTheta[i] = theta;
+    measStdX[i] = stdDevX;
+    measStdY[i] = stdDevY;
+    measStdTheta[i] = stdDevTheta;
+    measCount++;
+
+    dirtyStep = Math.min(dirtyStep, stepAtOrBefore(timestamp));
+    return true;
+  }
+
+  /** Inserts a single measurement and replays immediately. */
+  public boolean addMeasurement(
+      double timestamp,
+      double x,
+      double y,
+      double theta,
+      double stdDevX,
+      double stdDevY,
+      double stdDevTheta) {
+    final var accepted = insertMeasurement(timestamp, x, y, theta, stdDevX, stdDevY, stdDevTheta);
+    replay();
+    return accepted;
+  }
+
+  /**
+   * Re-integrates from the earliest step touched by a measurement since the last replay.
+   *
+   * @return Number of steps re-integrated
+   */
+  public int replay() {
+    final var from = dirtyStep;
+    for (int s = from; s < stepCount; ++s) {
+      integrate(s);
+    }
+    dirtyStep = stepCount;
+    return stepCount - from;
+  }
+
+  public double getX() {
+    return states[latestOffset() + PoseFilter.X];
+  }
+
+  public double getY() {
+    return states[latestOffset() + PoseFilter.Y];
+  }
+
+  public double getTheta() {
+    return states[latestOffset() + PoseFilter.THETA];
+  }
+
+  /**
+   * Copies the latest filter state block.
+   *
+   * @param out Receives {@link PoseFilter#stateSize()} doubles
+   */
+  public void getState(double[] out) {
+    System.arraycopy(states, latestOffset(), out, 0, stateSize);
+  }
+
+  /**
+   * Writes the latest 3x3 pose covariance, row major.
+   *
+   * @param out Receives 9 doubles
+   */
+  public void getCovariance(double[] out) {
+    filter.getCovariance(states, latestOffset(), out);
+  }
+
+  /** Worst case number of steps a single {@link #replay()} can re-integrate. */
+  public int getStepCapacity() {
+    return stepCapacity;
+  }
+
+  private int latestOffset() {
+    replay();
+    return stepCount == 0 ? baseOffset : step(stepCount - 1) * stateSize;
+  }
+
+  public double getLatestTimestamp() {
+    return stepCount == 0 ? Double.NEGATIVE_INFINITY : stepT[step(stepCount - 1)];
+  }
+
+  /** Recomputes the state of one logical step from its predecessor and its measurements. */
+  private void integrate(int s) {
+    final var prev = s == 0 ? baseOffset : step(s - 1) * stateSize;
+    final var i = step(s);
+    final var offset = i * stateSize;
+    filter.predict(states, prev, offset, stepDx[i], stepDy[i], stepDtheta[i], stepNoiseScale[i]);
+    if (!Double.isNaN(stepHeading[i])) {
+      filter.correctHeading(states, offset, stepHeading[i]);
+    }
+
+    // Measurements in [t(s), t(s + 1)) belong to this step, the last step also takes newer ones
+    final var end = s == stepCount - 1 ? Double.POSITIVE_INFINITY : stepT[step(s + 1)];
+    for (int m = firstMeasAtOrAfter(stepT[i]); m < measCount; ++m) {
+      final var j = meas(m);
+      if (measT[j] >= end) {
+        break;
+      }
+      filter.correct(
+          states,
+          offset,
+          measX[j],
+          measY[j],
+          measTheta[j],
+          measStdX[j],
+          measStdY[j],
+          measStdTheta[j]);
+    }
+  }
+
+  private void evictOldestStep() {
+    System.arraycopy(states, stepStart * stateSize, states, baseOffset, stateSize);
+    states[baseOffset + PoseFilter.THETA] =
+        MathUtil.angleModulus(states[baseOffset + PoseFilter.THETA]);
+    stepStart = (stepStart + 1) % stepCapacity;
+    stepCount--;
+
+    // Measurements before the new oldest step are baked into the base state
+    final var oldest = stepCount == 0 ? Double.POSITIVE_INFINITY : stepT[stepStart];
+    while (measCount > 0 && measT[measStart] < oldest) {
+      measStart = (measStart + 1) % measCapacity;
+      measCount--;
+    }
+    dirtyStep = Math.max(0, dirtyStep - 1);
+  }
+
+  /** Last logical step with a timestamp not later than the query, 0 if none. */
+  private int stepAtOrBefore(double timestamp) {
+    var lo = 0;
+    var hi = stepCount;
+    while (lo < hi) {
+      final var mid = (lo + hi) >>> 1;
+      if (stepT[step(mid)] <= timestamp) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return Math.max(0, lo - 1);
+  }
+
+  /** First logical measurement with a timestamp not earlier than the query. */
+  private int firstMeasAtOrAfter(double timestamp) {
+    var lo = 0;
+    var hi = measCount;
+    while (lo < hi) {
+      final var mid = (lo + hi) >>> 1;
+      if (measT[meas(mid)] < timestamp) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private int step(int logical) {
+    return (stepStart + logical) % stepCapacity;
+  }
+
+  private int meas(int logical) {
+    return (measStart + logical) % measCapacity;
+  }
+}
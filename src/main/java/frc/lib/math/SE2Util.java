@@ -0,0 +1,64 @@
+package frc.lib.math;
+
+import edu.wpi.first.math.MathUtil;
+
+/**
+ * Allocation-free planar pose math on primitive (x, y, theta) triples. Results are written into a
+ * caller supplied array so hot paths do not create {@code Pose2d}/{@code Transform2d} garbage.
+ * Each method matches its WPILib counterpart noted in the doc.
+ */
+public final class SE2Util {
+  private SE2Util() {}
+
+  /**
+   * Same as {@code a.plus(new Transform2d(dx, dy, dtheta))}.
+   *
+   * @param out Receives x, y, theta at {@code out[0..2]}
+   */
+  public static void compose(
+      double ax, double ay, double atheta, double dx, double dy, double dtheta, double[] out) {
+    final var cos = Math.cos(atheta);
+    final var sin = Math.sin(atheta);
+    out[0] = ax + dx * cos - dy * sin;
+    out[1] = ay + dx * sin + dy * cos;
+    out[2] = MathUtil.angleModulus(atheta + dtheta);
+  }
+
+  /**
+   * Same as {@code new Transform2d(a, b)}, i.e. b expressed in the frame of a.
+   *
+   * @param out Receives x, y, theta at {@code out[0..2]}
+   */
+  public static void relative(
+      double ax, double ay, double atheta, double bx, double by, double btheta, double[] out) {
+    final var cos = Math.cos(atheta);
+    final var sin = Math.sin(atheta);
+    final var ex = bx - ax;
+    final var ey = by - ay;
+    out[0] = ex * cos + ey * sin;
+    out[1] = -ex * sin + ey * cos;
+    out[2] = MathUtil.angleModulus(btheta - atheta);
+  }
+
+  /**
+   * Same as {@code a.exp(new Twist2d(dx, dy, dtheta))}.
+   *
+   * @param out Receives x, y, theta at {@code out[0..2]}
+   */
+  public static void exp(
+      double ax, double ay, double atheta, double dx, double dy, double dtheta, double[] out) {
+    final var sinTheta = Math.sin(dtheta);
+    final var cosTheta = Math.cos(dtheta);
+
+    double s;
+    double c;
+    if (Math.abs(dtheta) < 1E-9) {
+      s = 1.0 - 1.0 / 6.0 * dtheta * dtheta;
+      c = 0.5 * dtheta;
+    } else {
+      s = sinTheta / dtheta;
+      c = (1 - cosTheta) / dtheta;
+    }
+    compose(ax, ay, atheta, dx * s - dy * c, dx * c + dy * s, dtheta, out);
+  }
+}
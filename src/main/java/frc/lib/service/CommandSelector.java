@@ -6,6 +6,7 @@ import edu.wpi.first.wpilibj2.command.Command;
 import edu.wpi.first.wpilibj2.command.Commands;
 import frc.lib.dashboard.SwitchableChooser;
 import frc.lib.interfaces.VirtualSubsystem;
+import frc.lib.utils.DeferredWorkQueue;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Function;
@@ -16,6 +17,8 @@ import org.littletonrobotics.junction.networktables.LoggedDashboardChooser;
  * can define up to a fixed number of configuration questions to customize its behavior.
  */
 public class CommandSelector extends VirtualSubsystem {
+  // Dashboard selection only, 5 Hz is plenty
+  private static final int RATE_DIVISOR = 10;
   private static final int MAX_QUESTIONS = 2;
   private static final SelectedCommand DEFAULT_COMMAND =
       new SelectedCommand("None", List.of(), rs -> Commands.none());
@@ -53,6 +56,7 @@ public class CommandSelector extends VirtualSubsystem {
    * @param key The key used to identify this selector on the dashboard
    */
   public CommandSelector(String key) {
+    super(RATE_DIVISOR);
     // Initialize the command selector on SmartDashboard
     commandChooser = new LoggedDashboardChooser<>(key + "/Command");
     commandChooser.addDefaultOption(DEFAULT_COMMAND.name, DEFAULT_COMMAND);
@@ -79,29 +83,20 @@ public class CommandSelector extends VirtualSubsystem {
       return;
     }
 
-    // If the selected command has changed, update the UI with its configuration questions
+    // If the selected command has changed, update the UI with its configuration questions. Not
+    // urgent, until then the questions fall back to their first response
     if (!selectedCommand.equals(lastCommand)) {
-      System.out.println("Command switched -> " + selectedCommand.name());
-      List<CommandQuestion> questions = selectedCommand.questions();
-
-      for (int i = 0; i < MAX_QUESTIONS; i++) {
-        if (i < questions.size()) {
-          CommandQuestion question = questions.get(i);
-          questionPublishers.get(i).set(question.question());
-          questionChoosers.get(i).setOptions(question.responses().toArray(String[]::new));
-        } else {
-          questionPublishers.get(i).set("");
-          questionChoosers.get(i).setOptions(new String[] {});
-        }
-      }
+      DeferredWorkQueue.submitUnique(
+          this, DeferredWorkQueue.Priority.NORMAL, this::rebuildQuestions);
     }
 
     // Collect current user responses for the selected command's questions
     List<String> responses = new ArrayList<>();
     for (int i = 0; i < selectedCommand.questions().size(); i++) {
       String response = questionChoosers.get(i).get();
-      responses.add(
-          response == null ? selectedCommand.questions().get(i).responses().get(0) : response);
+      List<String> options = selectedCommand.questions().get(i).responses();
+      // The chooser may still offer the previous command's options
+      responses.add(response != null && options.contains(response) ? response : options.get(0));
     }
 
     // Save current state for next iteration
@@ -109,6 +104,23 @@ public class CommandSelector extends VirtualSubsystem {
     lastResponses = responses;
   }
 
+  private void rebuildQuestions() {
+    SelectedCommand selectedCommand = lastCommand;
+    System.out.println("Command switched -> " + selectedCommand.name());
+    List<CommandQuestion> questions = selectedCommand.questions();
+
+    for (int i = 0; i < MAX_QUESTIONS; i++) {
+      if (i < questions.size()) {
+        CommandQuestion question = questions.get(i);
+        questionPublishers.get(i).set(question.question());
+        questionChoosers.get(i).setOptions(question.responses().toArray(String[]::new));
+      } else {
+        questionPublishers.get(i).set("");
+        questionChoosers.get(i).setOptions(new String[] {});
+      }
+    }
+  }
+
   /**
    * Adds a command with no configuration questions.
    *
@@ -149,6 +161,8 @@ public class CommandSelector extends VirtualSubsystem {
    * @return The command representing the selected configuration
    */
   public Command getCommand() {
+    // Runs at a reduced rate, pick up a selection made since the last run
+    periodic();
     System.out.println("Command built: " + lastCommand.name());
     return lastCommand.commandBuilder().apply(lastResponses);
   }
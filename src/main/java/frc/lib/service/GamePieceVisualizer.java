@@ -10,6 +10,9 @@ import org.littletonrobotics.junction.Logger;
 
 @ExtensionMethod({GeomUtil.class})
 public class GamePieceVisualizer extends VirtualSubsystem {
+  // Only changes on pick, eject and score, 10 Hz keeps the log current
+  private static final int RATE_DIVISOR = 5;
+
   private final String name;
 
   // FIXME: reset gamepiece when reset() is called
@@ -138,6 +141,7 @@ public class GamePieceVisualizer extends VirtualSubsystem {
       Pose3d[] pickableGamePiecePose,
       Pose3d[] scorableGamePiecePose,
       int hasGamePieceNums) {
+    super(RATE_DIVISOR);
     this.name = name;
     this.pickableMaxDistance = maxPickableDistance;
     this.scorableMaxDistance = maxScorableDistance;
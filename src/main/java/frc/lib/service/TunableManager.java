@@ -7,10 +7,14 @@ import java.util.HashMap;
 import java.util.Map;
 
 public class TunableManager extends VirtualSubsystem {
+  // Follows dashboard toggles, 5 Hz is plenty
+  private static final int RATE_DIVISOR = 10;
+
   private final String name;
   private final Map<String, BooleanChooser> tunables = new HashMap<>();
 
   public TunableManager(String name) {
+    super(RATE_DIVISOR);
     this.name = name;
   }
 
@@ -16,12 +16,21 @@ import org.littletonrobotics.junction.Logger;
  * their poses and transforms.
  */
 public class Visualizer extends VirtualSubsystem {
+  // 25 Hz is smooth enough to watch
+  private static final int RATE_DIVISOR = 2;
   public static final String BASE_FRAME = "robot";
   private final TransformTree transformTree = new TransformTree();
   private final Map<Integer, String> indexToPath = new HashMap<>();
   private final Map<String, String> nameToPath = new HashMap<>();
+  private Pose3d[] poses = new Pose3d[0];
 
+  /**
+   * Creates the service. The tree is walked off the main thread, declare whatever the transform
+   * suppliers read with {@link #addReadDependency}.
+   */
   public Visualizer() {
+    super(RATE_DIVISOR);
+    enableConcurrentPeriodic();
     nameToPath.put(BASE_FRAME, BASE_FRAME);
     transformTree.setRootPose(new Pose3d());
   }
@@ -102,7 +111,7 @@ public class Visualizer extends VirtualSubsystem {
 
   /** Updates all visualized poses */
   @Override
-  public void periodic() {
+  protected void concurrentPeriodic() {
     transformTree.update();
 
     var maxId = indexToPath.keySet().stream().max(Integer::compare).get();
@@ -115,7 +124,11 @@ public class Visualizer extends VirtualSubsystem {
         poses[id] = transformTree.getNodePose(indexToPath.get(id));
       }
     }
+    this.poses = poses;
+  }
 
+  @Override
+  public void periodic() {
     Logger.recordOutput("Visualization/Components", poses);
   }
 
@@ -0,0 +1,193 @@
+package frc.lib.utils;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import edu.wpi.first.wpilibj.Timer;
+import frc.lib.dashboard.Alert;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Heap allocation and GC pause telemetry of the main loop. The bytes allocated by the main thread
+ * between {@link #beginLoop()} and {@link #endLoop()} are read from the thread MX bean, GC pauses
+ * arrive as MX bean notifications and are matched against the loop windows, which shows whether
+ * pauses land inside user code and what they cost it. The notification thread runs below the main
+ * loop's priority, so a loop is only classified as paused or not at the end of the next one.
+ *
+ * <p>Allocation is logged every loop, pauses as they arrive, everything else once per {@link
+ * #PERIOD_SEC}. An alert is raised while the mean allocation per loop of a period exceeds the
+ * budget, so a regression shows up on the dashboard the first time the code runs.
+ */
+public final class AllocationMonitor {
+  private static final double PERIOD_SEC = 1.0;
+  private static final int PAUSE_QUEUE_CAPACITY = 64;
+  // Start and end in ms of JVM uptime, duration in ms
+  private static final int PAUSE_ROW_WIDTH = 3;
+
+  private final com.sun.management.ThreadMXBean threadBean;
+  private final RuntimeMXBean runtimeBean = ManagementFactory.getRuntimeMXBean();
+  private final boolean allocationSupported;
+  private final long budgetBytes;
+  private final SampleQueue pauses = new SampleQueue(PAUSE_QUEUE_CAPACITY, PAUSE_ROW_WIDTH);
+  private final double[] pauseRow = new double[PAUSE_ROW_WIDTH];
+  private final double[] producerRow = new double[PAUSE_ROW_WIDTH];
+  private final Alert budgetAlert =
+      new Alert("Main loop allocation over budget", Alert.AlertType.WARNING);
+
+  // 1 KiB to ~8 MiB
+  private final Histogram bytesPerLoop = Histogram.exponential(1024.0, 2.0, 14);
+  private long loopStartBytes = 0;
+  private long loopStartNanos = 0;
+  private long loopStartUptimeMs = 0;
+  private long previousLoopStartUptimeMs = 0;
+  private long previousLoopEndUptimeMs = 0;
+  // Classified a loop late, the notification thread rarely gets to run before the loop ends
+  private double previousLoopMs = Double.NaN;
+  private boolean previousLoopPaused = false;
+
+  private double periodStart = Double.NaN;
+  private int pauseCount = 0;
+  private int pausesInUserCode = 0;
+  private double pauseMsTotal = 0.0;
+  private double pauseMsMax = 0.0;
+  private int loopsWithPause = 0;
+  private double loopMsWithPause = 0.0;
+  private int loopsWithoutPause = 0;
+  private double loopMsWithoutPause = 0.0;
+
+  /**
+   * Starts listening to GC notifications.
+   *
+   * @param budgetBytes Mean allocation per loop above which the alert is raised
+   */
+  public AllocationMonitor(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+    threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    allocationSupported = threadBean.isThreadAllocatedMemorySupported();
+    if (allocationSupported) {
+      threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    for (final var gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (gcBean instanceof NotificationEmitter emitter) {
+        emitter.addNotificationListener(
+            (notification, handback) -> {
+              if (!notification
+                  .getType()
+                  .equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                return;
+              }
+              final var gcInfo =
+                  GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData())
+                      .getGcInfo();
+              // Every collector bean notifies, one at a time keeps the queue single producer
+              synchronized (producerRow) {
+                producerRow[0] = gcInfo.getStartTime();
+                producerRow[1] = gcInfo.getEndTime();
+                producerRow[2] = gcInfo.getDuration();
+                pauses.offer(producerRow);
+              }
+            },
+            null,
+            null);
+      }
+    }
+  }
+
+  /** Call first thing in the loop, on the main thread. */
+  public void beginLoop() {
+    loopStartNanos = System.nanoTime();
+    loopStartUptimeMs = runtimeBean.getUptime();
+    if (allocationSupported) {
+      loopStartBytes = threadBean.getCurrentThreadAllocatedBytes();
+    }
+  }
+
+  /** Call last thing in the loop, on the main thread. */
+  public void endLoop() {
+    final var loopBytes =
+        allocationSupported ? threadBean.getCurrentThreadAllocatedBytes() - loopStartBytes : 0L;
+    final var loopMs = (System.nanoTime() - loopStartNanos) * 1e-6;
+    final var loopEndUptimeMs = runtimeBean.getUptime();
+    bytesPerLoop.record(loopBytes);
+    Logger.recordOutput("Allocation/BytesPerLoop", loopBytes);
+
+    // Serial GC stops the world, a pause overlapping the window stretched this loop
+    var pausedThisLoop = false;
+    while (pauses.poll(pauseRow)) {
+      final var pauseMs = pauseRow[2];
+      pauseCount++;
+      pauseMsTotal += pauseMs;
+      pauseMsMax = Math.max(pauseMsMax, pauseMs);
+      Logger.recordOutput("Allocation/GcPauseMs", pauseMs);
+      if (pauseRow[1] >= loopStartUptimeMs && pauseRow[0] <= loopEndUptimeMs) {
+        pausesInUserCode++;
+        pausedThisLoop = true;
+      } else if (pauseRow[1] >= previousLoopStartUptimeMs
+          && pauseRow[0] <= previousLoopEndUptimeMs) {
+        // Notified a loop late
+        pausesInUserCode++;
+        previousLoopPaused = true;
+      }
+    }
+    if (!Double.isNaN(previousLoopMs)) {
+      if (previousLoopPaused) {
+        loopsWithPause++;
+        loopMsWithPause += previousLoopMs;
+      } else {
+        loopsWithoutPause++;
+        loopMsWithoutPause += previousLoopMs;
+      }
+    }
+    previousLoopStartUptimeMs = loopStartUptimeMs;
+    previousLoopEndUptimeMs = loopEndUptimeMs;
+    previousLoopMs = loopMs;
+    previousLoopPaused = pausedThisLoop;
+
+    final var timestamp = Timer.getTimestamp();
+    if (Double.isNaN(periodStart)) {
+      periodStart = timestamp;
+    }
+    if (timestamp - periodStart < PERIOD_SEC) {
+      return;
+    }
+
+    final var meanBytes = bytesPerLoop.getMean();
+    Logger.recordOutput("Allocation/MeanBytesPerLoop", meanBytes);
+    Logger.recordOutput("Allocation/MaxBytesPerLoop", bytesPerLoop.getMax());
+    Logger.recordOutput("Allocation/BytesPerLoopBuckets", bytesPerLoop.getCounts());
+    Logger.recordOutput("Allocation/GcPauses", pauseCount);
+    Logger.recordOutput("Allocation/GcPausesInUserCode", pausesInUserCode);
+    Logger.recordOutput("Allocation/GcPauseMsTotal", pauseMsTotal);
+    Logger.recordOutput("Allocation/GcPauseMsMax", pauseMsMax);
+    Logger.recordOutput(
+        "Allocation/MeanLoopMsWithPause",
+        loopsWithPause == 0 ? Double.NaN : loopMsWithPause / loopsWithPause);
+    Logger.recordOutput(
+        "Allocation/MeanLoopMsWithoutPause",
+        loopsWithoutPause == 0 ? Double.NaN : loopMsWithoutPause / loopsWithoutPause);
+    Logger.recordOutput("Allocation/DroppedPauses", pauses.getDroppedCount());
+
+    final var overBudget = meanBytes > budgetBytes;
+    if (overBudget) {
+      budgetAlert.setText(
+          String.format(
+              "Main loop allocates %.0f KiB per loop, budget %d KiB",
+              meanBytes / 1024.0, budgetBytes / 1024));
+    }
+    budgetAlert.set(overBudget);
+
+    periodStart = timestamp;
+    bytesPerLoop.reset();
+    pauseCount = 0;
+    pausesInUserCode = 0;
+    pauseMsTotal = 0.0;
+    pauseMsMax = 0.0;
+    loopsWithPause = 0;
+    loopMsWithPause = 0.0;
+    loopsWithoutPause = 0;
+    loopMsWithoutPause = 0.0;
+  }
+}
@@ -0,0 +1,139 @@
+package frc.lib.utils;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Work that does not have to finish in the loop that triggers it, console reports, dashboard
+ * rebuilds, re-applying tuned gains. Tasks wait in a queue per {@link Priority} and are run at the
+ * end of the loop, highest priority and then oldest first, only while the loop is still within its
+ * budget. Whatever does not fit carries over to the next loop.
+ *
+ * <p>One task that has waited {@link #MAX_WAIT_LOOPS} loops runs per loop even without slack, so a
+ * loop that is always over budget still makes progress. Main thread only, like the logger.
+ */
+public final class DeferredWorkQueue {
+  private static final int MAX_WAIT_LOOPS = 50;
+
+  public enum Priority {
+    HIGH,
+    NORMAL,
+    LOW
+  }
+
+  private record Task(Object key, Runnable work, long submitLoop) {}
+
+  @SuppressWarnings("unchecked")
+  private static final ArrayDeque<Task>[] queues = new ArrayDeque[Priority.values().length];
+
+  static {
+    for (int i = 0; i < queues.length; ++i) {
+      queues[i] = new ArrayDeque<>();
+    }
+  }
+
+  // Keys of tasks still waiting, a newer submission with the same key is dropped
+  private static final Set<Object> pendingKeys = new HashSet<>();
+  private static long budgetNanos = 15_000_000L;
+  private static long loopCount = 0;
+
+  private DeferredWorkQueue() {}
+
+  /**
+   * Sets how far into the loop deferred work may still start.
+   *
+   * @param budgetMs Measured from the start passed to {@link #drain(long)}
+   */
+  public static void setBudgetMs(double budgetMs) {
+    budgetNanos = (long) (budgetMs * 1e6);
+  }
+
+  public static void submit(Priority priority, Runnable work) {
+    queues[priority.ordinal()].addLast(new Task(null, work, loopCount));
+  }
+
+  /**
+   * Queues work unless work with the same key is still waiting, for tasks that read the latest
+   * state when they run, e.g. applying tuned gains, so a burst of triggers runs once.
+   *
+   * @return false if an earlier submission is still waiting
+   */
+  public static boolean submitUnique(Object key, Priority priority, Runnable work) {
+    if (!pendingKeys.add(key)) {
+      return false;
+    }
+    queues[priority.ordinal()].addLast(new Task(key, work, loopCount));
+    return true;
+  }
+
+  public static int size() {
+    var size = 0;
+    for (final var queue : queues) {
+      size += queue.size();
+    }
+    return size;
+  }
+
+  /**
+   * Runs queued work until the budget is used up, call last in the loop.
+   *
+   * @param loopStartNanos {@link System#nanoTime()} at the start of the loop
+   * @return Number of tasks run
+   */
+  public static int drain(long loopStartNanos) {
+    var ran = 0;
+    var ranStarved = false;
+    while (true) {
+      ArrayDeque<Task> queue = null;
+      if (System.nanoTime() - loopStartNanos < budgetNanos) {
+        queue = highestNonEmpty();
+      } else if (!ranStarved) {
+        // One overdue task per loop at most, the loop is already over budget
+        queue = starvedQueue();
+        ranStarved = true;
+      }
+      if (queue == null) {
+        break;
+      }
+      final var task = queue.pollFirst();
+      if (task.key() != null) {
+        pendingKeys.remove(task.key());
+      }
+      task.work().run();
+      ran++;
+    }
+
+    var oldestLoops = 0L;
+    for (final var queue : queues) {
+      if (!queue.isEmpty()) {
+        oldestLoops = Math.max(oldestLoops, loopCount - queue.peekFirst().submitLoop());
+      }
+    }
+    Logger.recordOutput("DeferredWork/Ran", ran);
+    Logger.recordOutput("DeferredWork/Pending", size());
+    Logger.recordOutput("DeferredWork/OldestWaitLoops", oldestLoops);
+    loopCount++;
+    return ran;
+  }
+
+  private static ArrayDeque<Task> highestNonEmpty() {
+    for (final var queue : queues) {
+      if (!queue.isEmpty()) {
+        return queue;
+      }
+    }
+    return null;
+  }
+
+  /** Highest priority queue whose oldest task has waited too long, null if none. */
+  private static ArrayDeque<Task> starvedQueue() {
+    for (final var queue : queues) {
+      if (!queue.isEmpty() && loopCount - queue.peekFirst().submitLoop() >= MAX_WAIT_LOOPS) {
+        return queue;
+      }
+    }
+    return null;
+  }
+}
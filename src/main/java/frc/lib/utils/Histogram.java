@@ -0,0 +1,99 @@
+package frc.lib.utils;
+
+import java.util.Arrays;
+
+/**
+ * Fixed bucket histogram for instrumentation. Recording is allocation-free, so it can sit in a hot
+ * path and be logged and reset at a much lower rate than it is filled.
+ */
+public final class Histogram {
+  private final double[] upperBounds;
+  // One more than the bounds, the last bucket collects everything above the largest bound
+  private final long[] counts;
+  private long count = 0;
+  private double sum = 0.0;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  /**
+   * Creates a histogram.
+   *
+   * @param upperBounds Inclusive upper bound of each bucket, ascending
+   */
+  public Histogram(double... upperBounds) {
+    this.upperBounds = upperBounds.clone();
+    this.counts = new long[upperBounds.length + 1];
+  }
+
+  /** Buckets whose bounds grow geometrically, for values spanning orders of magnitude. */
+  public static Histogram exponential(double firstUpperBound, double factor, int bucketCount) {
+    final var upperBounds = new double[bucketCount];
+    var bound = firstUpperBound;
+    for (int i = 0; i < bucketCount; ++i) {
+      upperBounds[i] = bound;
+      bound *= factor;
+    }
+    return new Histogram(upperBounds);
+  }
+
+  public void record(double value) {
+    var bucket = 0;
+    while (bucket < upperBounds.length && value > upperBounds[bucket]) {
+      ++bucket;
+    }
+    counts[bucket]++;
+    count++;
+    sum += value;
+    max = Math.max(max, value);
+  }
+
+  public void reset() {
+    Arrays.fill(counts, 0);
+    count = 0;
+    sum = 0.0;
+    max = Double.NEGATIVE_INFINITY;
+  }
+
+  /**
+   * Upper bound of the bucket holding the given quantile, the largest recorded value if that is the
+   * overflow bucket.
+   *
+   * @return NaN if nothing was recorded
+   */
+  public double quantile(double q) {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    final var rank = Math.max(1, (long) Math.ceil(q * count));
+    var cumulative = 0L;
+    for (int i = 0; i < upperBounds.length; ++i) {
+      cumulative += counts[i];
+      if (cumulative >= rank) {
+        return Math.min(upperBounds[i], max);
+      }
+    }
+    return max;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  /** NaN if nothing was recorded. */
+  public double getMean() {
+    return count == 0 ? Double.NaN : sum / count;
+  }
+
+  /** NaN if nothing was recorded. */
+  public double getMax() {
+    return count == 0 ? Double.NaN : max;
+  }
+
+  /** Live view of the bucket counts, the last one is the overflow bucket. */
+  public long[] getCounts() {
+    return counts;
+  }
+
+  public double[] getUpperBounds() {
+    return upperBounds.clone();
+  }
+}
@@ -0,0 +1,231 @@
+package frc.lib.utils;
+
+import edu.wpi.first.wpilibj.Timer;
+import edu.wpi.first.wpilibj2.command.Command;
+import edu.wpi.first.wpilibj2.command.CommandScheduler;
+import frc.lib.dashboard.Alert;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Main loop profiler. Code wraps itself with {@link System#nanoTime()} and reports to a named
+ * {@link Section}, every section accumulates a fine grained histogram that is logged as p50, p99
+ * and max once per {@link #PERIOD_SEC} and then reset. A loop longer than the budget raises an
+ * alert naming the slowest leaf section among the overrunning loops, so an overrun on the field can
+ * be traced to a subsystem or command from the log alone.
+ *
+ * <p>Main thread only, like the logger it reports to.
+ */
+public final class LoopProfiler {
+  private static final double PERIOD_SEC = 1.0;
+  // Commands are profiled by name, anything past this many sections shares one
+  private static final int MAX_SECTIONS = 128;
+  private static final String OTHER_COMMANDS = "Command/Other";
+
+  private static final List<Section> sections = new ArrayList<>();
+  private static final Map<String, Section> sectionsByName = new HashMap<>();
+  private static final Section loop = phase("Loop");
+  private static final Section loggerBeforeUser = phase("Logger/BeforeUser");
+  private static final Section schedulerSubsystems = phase("Scheduler/Subsystems");
+  private static final Section schedulerButtons = section("Scheduler/Buttons");
+  private static final Alert overrunAlert = new Alert("Loop overrun", Alert.AlertType.WARNING);
+
+  private static double budgetMs = 20.0;
+  private static CommandScheduler instrumented = null;
+  private static boolean buttonsEndBound = false;
+  private static long loopStartNanos = 0;
+  private static long schedulerMarkNanos = 0;
+  // Command that reported last, its isFinished and end follow right after its execute
+  private static Command lastExecuted = null;
+  private static double periodStart = Double.NaN;
+  private static int overrunCount = 0;
+  private static Section worstCulprit = null;
+  private static double worstCulpritMs = 0.0;
+
+  /** Time spent in one piece of code. */
+  public static final class Section {
+    // 0.01 ms to ~100 ms in 25% steps
+    private final Histogram durationMs = Histogram.exponential(0.01, 1.25, 42);
+    private final boolean leaf;
+    private final String p50Key;
+    private final String p99Key;
+    private final String maxKey;
+    private final String bucketsKey;
+    private final String name;
+    private double loopMs = 0.0;
+
+    private Section(String name, boolean leaf) {
+      this.name = name;
+      this.leaf = leaf;
+      p50Key = "LoopProfiler/" + name + "/P50Ms";
+      p99Key = "LoopProfiler/" + name + "/P99Ms";
+      maxKey = "LoopProfiler/" + name + "/MaxMs";
+      bucketsKey = "LoopProfiler/" + name + "/MsBuckets";
+    }
+
+    /** Records the time elapsed since a {@link System#nanoTime()} reading. */
+    public void record(long startNanos) {
+      recordNanos(System.nanoTime() - startNanos);
+    }
+
+    /** Records a duration measured elsewhere, e.g. on another thread. */
+    public void recordNanos(long nanos) {
+      final var ms = nanos * 1e-6;
+      durationMs.record(ms);
+      loopMs += ms;
+    }
+  }
+
+  private LoopProfiler() {}
+
+  /** Section of a single piece of code, the same name always gives the same section. */
+  public static Section section(String name) {
+    return sectionsByName.computeIfAbsent(name, key -> register(key, true));
+  }
+
+  /** Section that contains other sections, never blamed for an overrun itself. */
+  public static Section phase(String name) {
+    return sectionsByName.computeIfAbsent(name, key -> register(key, false));
+  }
+
+  private static Section register(String name, boolean leaf) {
+    final var section = new Section(name, leaf);
+    sections.add(section);
+    return section;
+  }
+
+  public static void setBudgetMs(double budget) {
+    budgetMs = budget;
+  }
+
+  /**
+   * Profiles the subsystem periodic phase, trigger polling and every command of the scheduler.
+   * Call once before any trigger is bound, the subsystem phase ends at the first button loop
+   * binding. Triggers bound before the first {@link #beginScheduler()} count as polling, later ones
+   * are charged to the first command of the loop.
+   *
+   * <p>The scheduler only reports after a command executes, so a command is charged from the
+   * previous report to the end of its execute, plus its isFinished and end if it finishes right
+   * there. The isFinished of a command that keeps running goes to the next command, it is expected
+   * to be trivial.
+   */
+  public static void instrument(CommandScheduler scheduler) {
+    instrumented = scheduler;
+    scheduler
+        .getActiveButtonLoop()
+        .bind(
+            () -> {
+              schedulerSubsystems.record(schedulerMarkNanos);
+              schedulerMarkNanos = System.nanoTime();
+            });
+    scheduler.onCommandExecute(
+        command -> {
+          recordCommand(command);
+          lastExecuted = command;
+        });
+    scheduler.onCommandFinish(
+        command -> {
+          if (command == lastExecuted) {
+            recordCommand(command);
+          }
+          lastExecuted = null;
+        });
+  }
+
+  private static void recordCommand(Command command) {
+    var section = sectionsByName.get(command.getName());
+    if (section == null) {
+      section =
+          sections.size() < MAX_SECTIONS ? section(command.getName()) : section(OTHER_COMMANDS);
+    }
+    section.record(schedulerMarkNanos);
+    schedulerMarkNanos = System.nanoTime();
+  }
+
+  /** Call first thing in the loop. */
+  public static void beginLoop() {
+    loopStartNanos = System.nanoTime();
+    // The loop timestamp is taken when the logger starts its periodic, everything until now is it
+    if (Logger.hasReplaySource()) {
+      return;
+    }
+    final var beforeUserMs = (Timer.getFPGATimestamp() - Timer.getTimestamp()) * 1e3;
+    if (beforeUserMs >= 0.0) {
+      loggerBeforeUser.durationMs.record(beforeUserMs);
+      loggerBeforeUser.loopMs = beforeUserMs;
+    }
+  }
+
+  /** Call right before {@link CommandScheduler#run()}. */
+  public static void beginScheduler() {
+    if (instrumented != null && !buttonsEndBound) {
+      // Behind every trigger bound while the robot was constructed
+      instrumented
+          .getActiveButtonLoop()
+          .bind(
+              () -> {
+                schedulerButtons.record(schedulerMarkNanos);
+                schedulerMarkNanos = System.nanoTime();
+              });
+      buttonsEndBound = true;
+    }
+    schedulerMarkNanos = System.nanoTime();
+  }
+
+  /** Call last thing in the loop, checks the budget and logs once a period has passed. */
+  public static void endLoop() {
+    lastExecuted = null;
+    loop.record(loopStartNanos);
+    final var loopMs = loop.loopMs + loggerBeforeUser.loopMs;
+    if (loopMs > budgetMs) {
+      overrunCount++;
+      for (final var section : sections) {
+        if (section.leaf && section.loopMs > worstCulpritMs) {
+          worstCulprit = section;
+          worstCulpritMs = section.loopMs;
+        }
+      }
+    }
+    for (final var section : sections) {
+      section.loopMs = 0.0;
+    }
+
+    final var timestamp = Timer.getTimestamp();
+    if (Double.isNaN(periodStart)) {
+      periodStart = timestamp;
+    }
+    if (timestamp - periodStart < PERIOD_SEC) {
+      return;
+    }
+
+    for (final var section : sections) {
+      final var histogram = section.durationMs;
+      if (histogram.getCount() == 0) {
+        continue;
+      }
+      Logger.recordOutput(section.p50Key, histogram.quantile(0.5));
+      Logger.recordOutput(section.p99Key, histogram.quantile(0.99));
+      Logger.recordOutput(section.maxKey, histogram.getMax());
+      Logger.recordOutput(section.bucketsKey, histogram.getCounts());
+      histogram.reset();
+    }
+    Logger.recordOutput("LoopProfiler/Overruns", overrunCount);
+
+    if (overrunCount > 0) {
+      overrunAlert.setText(
+          String.format(
+              "Loop overrun x%d, slowest %s %.1f ms",
+              overrunCount,
+              worstCulprit == null ? "unknown" : worstCulprit.name,
+              worstCulpritMs));
+    }
+    overrunAlert.set(overrunCount > 0);
+    periodStart = timestamp;
+    overrunCount = 0;
+    worstCulprit = null;
+    worstCulpritMs = 0.0;
+  }
+}
@@ -0,0 +1,78 @@
+package frc.lib.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preallocated single-producer/single-consumer ring of object references, the object counterpart
+ * of {@link SampleQueue}. One thread may {@link #offer} while another thread {@link #poll}s without
+ * locks. When the ring is full new elements are dropped and counted, so a stalled consumer never
+ * blocks the producer.
+ */
+public final class ObjectQueue<T> {
+  private final int mask;
+  private final Object[] data;
+
+  // Next slot to write, only advanced by the producer
+  private final AtomicLong head = new AtomicLong();
+  // Next slot to read, only advanced by the consumer
+  private final AtomicLong tail = new AtomicLong();
+  private volatile long droppedCount = 0;
+
+  /**
+   * Creates a queue.
+   *
+   * @param capacity Minimum number of elements, rounded up to a power of two
+   */
+  public ObjectQueue(int capacity) {
+    var size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    this.mask = size - 1;
+    this.data = new Object[size];
+  }
+
+  /**
+   * Adds an element. Must only be called from the producer thread.
+   *
+   * @return false if the queue was full and the element was dropped
+   */
+  public boolean offer(T element) {
+    final var h = head.get();
+    if (h - tail.get() > mask) {
+      droppedCount = droppedCount + 1;
+      return false;
+    }
+    data[(int) (h & mask)] = element;
+    head.lazySet(h + 1);
+    return true;
+  }
+
+  /**
+   * Removes the oldest element. Must only be called from the consumer thread.
+   *
+   * @return null if the queue was empty
+   */
+  @SuppressWarnings("unchecked")
+  public T poll() {
+    final var t = tail.get();
+    if (t == head.get()) {
+      return null;
+    }
+    final var index = (int) (t & mask);
+    final var element = (T) data[index];
+    data[index] = null;
+    tail.lazySet(t + 1);
+    return element;
+  }
+
+  /** Discards all pending elements. Must only be called from the consumer thread. */
+  public void clear() {
+    while (poll() != null) {}
+  }
+
+  public int size() {
+    return (int) (head.get() - tail.get());
+  }
+
+  public long getDroppedCount() {
+    return droppedCount;
+  }
+}
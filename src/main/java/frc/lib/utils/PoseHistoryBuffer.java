@@ -0,0 +1,162 @@
+package frc.lib.utils;
+
+import edu.wpi.first.math.MathUtil;
+
+/**
+ * Fixed-capacity, allocation-free history of timestamped planar poses. Samples live in parallel
+ * primitive arrays used as a ring, lookups binary search the timestamps and interpolate into a
+ * caller supplied array. Samples must be added in increasing timestamp order.
+ */
+public final class PoseHistoryBuffer {
+  private final double historySec;
+  private final int capacity;
+  private final double[] t;
+  private final double[] x;
+  private final double[] y;
+  private final double[] theta;
+
+  private int start = 0;
+  private int size = 0;
+
+  /**
+   * Creates a buffer.
+   *
+   * @param historySec Samples older than the newest one by more than this are dropped
+   * @param capacity Maximum number of samples kept regardless of age
+   */
+  public PoseHistoryBuffer(double historySec, int capacity) {
+    this.historySec = historySec;
+    this.capacity = capacity;
+    t = new double[capacity];
+    x = new double[capacity];
+    y = new double[capacity];
+    theta = new double[capacity];
+  }
+
+  /**
+   * Appends a sample. A sample not newer than the latest one replaces it if the timestamps are
+   * equal and is ignored otherwise.
+   */
+  public void add(double timestamp, double poseX, double poseY, double poseTheta) {
+    if (size > 0) {
+      final var last = physical(size - 1);
+      if (timestamp < t[last]) {
+        return;
+      }
+      if (timestamp == t[last]) {
+        x[last] = poseX;
+        y[last] = poseY;
+        theta[last] = poseTheta;
+        return;
+      }
+    }
+
+    if (size == capacity) {
+      start = (start + 1) % capacity;
+      size--;
+    }
+    final var i = physical(size);
+    t[i] = timestamp;
+    x[i] = poseX;
+    y[i] = poseY;
+    theta[i] = poseTheta;
+    size++;
+
+    while (size > 1 && timestamp - t[start] > historySec) {
+      start = (start + 1) % capacity;
+      size--;
+    }
+  }
+
+  /**
+   * Interpolates the pose at a timestamp. Timestamps outside of the buffer are clamped to the
+   * oldest or newest sample.
+   *
+   * @param timestamp Timestamp to look up
+   * @param out Receives x, y, theta at {@code out[0..2]}
+   * @return false if the buffer is empty and {@code out} was left untouched
+   */
+  public boolean sample(double timestamp, double[] out) {
+    if (size == 0) {
+      return false;
+    }
+
+    // First logical index with a timestamp greater than the query
+    var lo = 0;
+    var hi = size;
+    while (lo < hi) {
+      final var mid = (lo + hi) >>> 1;
+      if (t[physical(mid)] <= timestamp) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    if (lo == 0) {
+      copy(physical(0), out);
+      return true;
+    }
+    if (lo == size) {
+      copy(physical(size - 1), out);
+      return true;
+    }
+
+    final var a = physical(lo - 1);
+    final var b = physical(lo);
+    final var k = (timestamp - t[a]) / (t[b] - t[a]);
+    out[0] = x[a] + (x[b] - x[a]) * k;
+    out[1] = y[a] + (y[b] - y[a]) * k;
+    out[2] = MathUtil.angleModulus(theta[a] + MathUtil.angleModulus(theta[b] - theta[a]) * k);
+    return true;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** Returns the newest timestamp, or negative infinity if the buffer is empty. */
+  public double getLatestTimestamp() {
+    return size == 0 ? Double.NEGATIVE_INFINITY : t[physical(size - 1)];
+  }
+
+  /** Returns the oldest timestamp, or positive infinity if the buffer is empty. */
+  public double getOldestTimestamp() {
+    return size == 0 ? Double.POSITIVE_INFINITY : t[start];
+  }
+
+  public void clear() {
+    start = 0;
+    size = 0;
+  }
+
+  /**
+   * Replaces the content with that of another buffer of the same capacity, e.g. a snapshot read by
+   * other threads while the original keeps growing.
+   */
+  public void copyFrom(PoseHistoryBuffer other) {
+    if (other.capacity != capacity) {
+      throw new IllegalArgumentException("[PoseHistoryBuffer]: capacity mismatch");
+    }
+    System.arraycopy(other.t, 0, t, 0, capacity);
+    System.arraycopy(other.x, 0, x, 0, capacity);
+    System.arraycopy(other.y, 0, y, 0, capacity);
+    System.arraycopy(other.theta, 0, theta, 0, capacity);
+    start = other.start;
+    size = other.size;
+  }
+
+  private int physical(int logical) {
+    return (start + logical) % capacity;
+  }
+
+  private void copy(int i, double[] out) {
+    out[0] = x[i];
+    out[1] = y[i];
+    out[2] = theta[i];
+  }
+}
@@ -0,0 +1,361 @@
+package frc.lib.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Compact binary journal of timestamped poses with covariance, one file per channel. Records have
+ * a fixed size and strictly increasing timestamps, so a file is its own index and any time can be
+ * found with a binary search over a few positional reads instead of scanning a whole log.
+ *
+ * <p>{@link #record} only copies a row into a {@link SampleQueue}, a background thread encodes and
+ * writes it. File layout: a {@value #HEADER_BYTES} byte header (magic, version, record size), then
+ * records of a double timestamp and float x, y, theta and the upper triangle of the covariance.
+ *
+ * <p>Every channel stops at a record cap so a file never grows past a known size, use {@link
+ * #deleteOldest} to bound the number of files kept across sessions.
+ */
+public final class PoseJournal implements AutoCloseable {
+  public static final String FILE_EXTENSION = ".posej";
+  public static final int HEADER_BYTES = 12;
+  public static final int RECORD_BYTES = 8 + 4 * 3 + 4 * 6;
+  private static final int MAGIC = 0x504f534a; // "POSJ"
+  private static final int VERSION = 1;
+
+  private static final int ROW_WIDTH = 11;
+  private static final int QUEUE_CAPACITY = 1024;
+  private static final int BUFFER_RECORDS = 1024;
+  private static final long FLUSH_PERIOD_NANOS = 1_000_000_000L;
+  private static final long IDLE_SLEEP_MS = 20;
+
+  public record PoseRecord(
+      double timestamp, double x, double y, double theta, double[] covarianceUpper) {}
+
+  private final FileChannel[] files;
+  private final ByteBuffer[] buffers;
+  private final double[] lastTimestamp;
+  private final long maxRecords;
+  // Owned by the recording thread
+  private final long[] recordCount;
+  private final long[] outOfOrderCount;
+  private long cappedCount = 0;
+  private final double[] row = new double[ROW_WIDTH];
+  private final double[] writerRow = new double[ROW_WIDTH];
+  private final SampleQueue queue = new SampleQueue(QUEUE_CAPACITY, ROW_WIDTH);
+  private final Thread writer;
+  private volatile boolean running = true;
+  private volatile IOException writeError = null;
+
+  /**
+   * Creates one journal file per channel and starts the writer thread.
+   *
+   * @param directory Created if missing
+   * @param prefix Prepended to every file name
+   * @param maxRecords Records kept per channel, later ones are dropped
+   * @param channels Channel names, the channel index passed to {@link #record} follows this order
+   */
+  public PoseJournal(Path directory, String prefix, long maxRecords, String... channels)
+      throws IOException {
+    Files.createDirectories(directory);
+    this.maxRecords = maxRecords;
+    files = new FileChannel[channels.length];
+    buffers = new ByteBuffer[channels.length];
+    lastTimestamp = new double[channels.length];
+    recordCount = new long[channels.length];
+    outOfOrderCount = new long[channels.length];
+    for (int i = 0; i < channels.length; ++i) {
+      files[i] =
+          FileChannel.open(
+              directory.resolve(prefix + channels[i] + FILE_EXTENSION),
+              StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.WRITE);
+      buffers[i] =
+          ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      buffers[i].putInt(MAGIC).putInt(VERSION).putInt(RECORD_BYTES);
+      lastTimestamp[i] = Double.NEGATIVE_INFINITY;
+    }
+
+    writer = new Thread(this::runWriter, "PoseJournal");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Queues a pose. Must be called from a single thread, records not newer than the previous one of
+   * the same channel and records past the cap are dropped and counted.
+   *
+   * @param covariance 3x3 row major covariance, null if unknown
+   * @return false if the record was dropped
+   */
+  public boolean record(
+      int channel, double timestamp, double x, double y, double theta, double[] covariance) {
+    if (timestamp <= lastTimestamp[channel]) {
+      outOfOrderCount[channel]++;
+      return false;
+    }
+    if (recordCount[channel] >= maxRecords) {
+      cappedCount++;
+      return false;
+    }
+    lastTimestamp[channel] = timestamp;
+    recordCount[channel]++;
+
+    row[0] = channel;
+    row[1] = timestamp;
+    row[2] = x;
+    row[3] = y;
+    row[4] = theta;
+    if (covariance == null) {
+      for (int i = 5; i < ROW_WIDTH; ++i) {
+        row[i] = Double.NaN;
+      }
+    } else {
+      row[5] = covariance[0];
+      row[6] = covariance[1];
+      row[7] = covariance[2];
+      row[8] = covariance[4];
+      row[9] = covariance[5];
+      row[10] = covariance[8];
+    }
+    return queue.offer(row);
+  }
+
+  /** Records dropped because the writer fell behind. */
+  public long getDroppedCount() {
+    return queue.getDroppedCount();
+  }
+
+  /** Records of a channel dropped because their timestamp went backwards. */
+  public long getOutOfOrderCount(int channel) {
+    return outOfOrderCount[channel];
+  }
+
+  /** Records dropped because their channel reached the cap. */
+  public long getCappedCount() {
+    return cappedCount;
+  }
+
+  /** First write failure, after which the writer stops. */
+  public Optional<IOException> getWriteError() {
+    return Optional.ofNullable(writeError);
+  }
+
+  /**
+   * Deletes the oldest journal files of a directory, by modification time, until at most {@code
+   * keepFiles} are left. Call before creating a journal, its files are not counted yet.
+   */
+  public static void deleteOldest(Path directory, int keepFiles) throws IOException {
+    if (!Files.isDirectory(directory)) {
+      return;
+    }
+    final List<Path> journals;
+    try (Stream<Path> paths = Files.list(directory)) {
+      journals =
+          paths
+              .filter(path -> path.getFileName().toString().endsWith(FILE_EXTENSION))
+              .sorted(Comparator.comparing(PoseJournal::lastModifiedMillis))
+              .toList();
+    }
+    for (int i = 0; i < journals.size() - keepFiles; ++i) {
+      Files.deleteIfExists(journals.get(i));
+    }
+  }
+
+  private static long lastModifiedMillis(Path path) {
+    try {
+      return Files.getLastModifiedTime(path).toMillis();
+    } catch (IOException e) {
+      return Long.MIN_VALUE;
+    }
+  }
+
+  /** Stops the writer after draining the queue and closes the files. */
+  @Override
+  public void close() throws IOException {
+    running = false;
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (var file : files) {
+      file.close();
+    }
+  }
+
+  private void runWriter() {
+    var lastFlush = System.nanoTime();
+    try {
+      while (true) {
+        final var stopping = !running;
+        var wrote = false;
+        while (queue.poll(writerRow)) {
+          encode(writerRow);
+          wrote = true;
+        }
+
+        if (stopping || System.nanoTime() - lastFlush > FLUSH_PERIOD_NANOS) {
+          flush();
+          lastFlush = System.nanoTime();
+        }
+        if (stopping) {
+          return;
+        }
+        if (!wrote) {
+          Thread.sleep(IDLE_SLEEP_MS);
+        }
+      }
+    } catch (IOException e) {
+      writeError = e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void encode(double[] source) throws IOException {
+    final var buffer = buffers[(int) source[0]];
+    if (buffer.remaining() < RECORD_BYTES) {
+      write((int) source[0]);
+    }
+    buffer.putDouble(source[1]);
+    for (int i = 2; i < ROW_WIDTH; ++i) {
+      buffer.putFloat((float) source[i]);
+    }
+  }
+
+  private void flush() throws IOException {
+    for (int i = 0; i < files.length; ++i) {
+      write(i);
+      files[i].force(false);
+    }
+  }
+
+  private void write(int channel) throws IOException {
+    final var buffer = buffers[channel];
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      files[channel].write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Random access reader of one journal file. The record count is re-read on every query, so a file
+   * still being written can be queried.
+   */
+  public static final class Reader implements AutoCloseable {
+    private final FileChannel file;
+    private final ByteBuffer record =
+        ByteBuffer.allocate(RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+    public Reader(Path path) throws IOException {
+      file = FileChannel.open(path, StandardOpenOption.READ);
+      final var header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      file.read(header, 0);
+      header.flip();
+      if (header.remaining() < HEADER_BYTES
+          || header.getInt() != MAGIC
+          || header.getInt() != VERSION
+          || header.getInt() != RECORD_BYTES) {
+        file.close();
+        throw new IOException("[PoseJournal]: " + path + " is not a pose journal");
+      }
+    }
+
+    public long size() throws IOException {
+      return Math.max(0, (file.size() - HEADER_BYTES) / RECORD_BYTES);
+    }
+
+    /** Record closest in time, empty if the journal is empty. */
+    public Optional<PoseRecord> nearest(double timestamp) throws IOException {
+      final var size = size();
+      if (size == 0) {
+        return Optional.empty();
+      }
+      final var after = lowerBound(timestamp, size);
+      if (after == 0) {
+        return Optional.of(read(0));
+      }
+      if (after == size) {
+        return Optional.of(read(size - 1));
+      }
+      final var before = readTimestamp(after - 1);
+      final var next = readTimestamp(after);
+      return Optional.of(read(timestamp - before <= next - timestamp ? after - 1 : after));
+    }
+
+    /** All records with {@code from <= timestamp <= to}, oldest first. */
+    public List<PoseRecord> posesBetween(double from, double to) throws IOException {
+      final var size = size();
+      final var poses = new ArrayList<PoseRecord>();
+      for (var i = lowerBound(from, size); i < size; ++i) {
+        final var pose = read(i);
+        if (pose.timestamp() > to) {
+          break;
+        }
+        poses.add(pose);
+      }
+      return poses;
+    }
+
+    @Override
+    public void close() throws IOException {
+      file.close();
+    }
+
+    /** Index of the first record not older than the timestamp. */
+    private long lowerBound(double timestamp, long size) throws IOException {
+      var lo = 0L;
+      var hi = size;
+      while (lo < hi) {
+        final var mid = (lo + hi) >>> 1;
+        if (readTimestamp(mid) < timestamp) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+
+    private double readTimestamp(long index) throws IOException {
+      readRecord(index, Double.BYTES);
+      return record.getDouble();
+    }
+
+    private PoseRecord read(long index) throws IOException {
+      readRecord(index, RECORD_BYTES);
+      final var timestamp = record.getDouble();
+      final var x = record.getFloat();
+      final var y = record.getFloat();
+      final var theta = record.getFloat();
+      final var covarianceUpper = new double[6];
+      for (int i = 0; i < covarianceUpper.length; ++i) {
+        covarianceUpper[i] = record.getFloat();
+      }
+      return new PoseRecord(timestamp, x, y, theta, covarianceUpper);
+    }
+
+    private void readRecord(long index, int length) throws IOException {
+      record.clear().limit(length);
+      final var position = HEADER_BYTES + index * RECORD_BYTES;
+      while (record.hasRemaining()) {
+        if (file.read(record, position + record.position()) < 0) {
+          throw new IOException("[PoseJournal]: truncated record " + index);
+        }
+      }
+      record.flip();
+    }
+  }
+}
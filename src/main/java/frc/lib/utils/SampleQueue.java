@@ -0,0 +1,83 @@
+package frc.lib.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preallocated single-producer/single-consumer ring of fixed-width {@code double} rows. One thread
+ * may {@link #offer} while another thread {@link #poll}s without locks or allocation. When the ring
+ * is full new rows are dropped and counted, so a stalled consumer never blocks the producer.
+ */
+public final class SampleQueue {
+  private final int width;
+  private final int mask;
+  private final double[] data;
+
+  // Next slot to write, only advanced by the producer
+  private final AtomicLong head = new AtomicLong();
+  // Next slot to read, only advanced by the consumer
+  private final AtomicLong tail = new AtomicLong();
+  private volatile long droppedCount = 0;
+
+  /**
+   * Creates a queue.
+   *
+   * @param capacity Minimum number of rows, rounded up to a power of two
+   * @param width Number of doubles per row
+   */
+  public SampleQueue(int capacity, int width) {
+    var size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    this.width = width;
+    this.mask = size - 1;
+    this.data = new double[size * width];
+  }
+
+  /**
+   * Copies a row into the queue. Must only be called from the producer thread.
+   *
+   * @param row Source row, at least {@code width} long
+   * @return false if the queue was full and the row was dropped
+   */
+  public boolean offer(double[] row) {
+    final var h = head.get();
+    if (h - tail.get() > mask) {
+      droppedCount = droppedCount + 1;
+      return false;
+    }
+    System.arraycopy(row, 0, data, (int) (h & mask) * width, width);
+    head.lazySet(h + 1);
+    return true;
+  }
+
+  /**
+   * Copies the oldest row out of the queue. Must only be called from the consumer thread.
+   *
+   * @param out Destination row, at least {@code width} long
+   * @return false if the queue was empty
+   */
+  public boolean poll(double[] out) {
+    final var t = tail.get();
+    if (t == head.get()) {
+      return false;
+    }
+    System.arraycopy(data, (int) (t & mask) * width, out, 0, width);
+    tail.lazySet(t + 1);
+    return true;
+  }
+
+  /** Discards all pending rows. Must only be called from the consumer thread. */
+  public void clear() {
+    tail.lazySet(head.get());
+  }
+
+  public int size() {
+    return (int) (head.get() - tail.get());
+  }
+
+  public int width() {
+    return width;
+  }
+
+  public long getDroppedCount() {
+    return droppedCount;
+  }
+}
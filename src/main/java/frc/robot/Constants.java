@@ -15,6 +15,15 @@ public class Constants {
       RobotBase.isReal() ? Mode.REAL : RobotBase.isSimulation() ? Mode.SIM : Mode.REPLAY;
 
   public static final boolean ENABLE_SINGLE_TAG_POSE = false;
+  // Cameras feeding pose fusion and the relocalizer
+  public static final boolean ENABLE_APRILTAG_VISION = false;
+  // The chassis was built without a gyro, set once a Pigeon 2 is wired at CHASSIS_PIGEON
+  public static final boolean ENABLE_CHASSIS_PIGEON = false;
+  public static final boolean ENABLE_EKF_POSE_ESTIMATOR = false;
+  public static final boolean ENABLE_PARTICLE_RELOCALIZER = false;
+  public static final boolean ENABLE_POSE_JOURNAL = false;
+  public static final boolean ENABLE_PARALLEL_VISION = false;
+  public static final boolean ENABLE_JOINT_VISION_SOLVE = false;
 
   public enum Mode {
     REAL,
@@ -50,6 +59,8 @@ public class Constants {
       public static final CanId LEFT_DRIVE_SLAVE = new CanId(1, CHASSIS_CANIVORE_BUS);
       public static final CanId RIGHT_DRIVE_MASTER = new CanId(2, CHASSIS_CANIVORE_BUS);
       public static final CanId RIGHT_DRIVE_SLAVE = new CanId(3, CHASSIS_CANIVORE_BUS);
+      // Not on the robot yet, see ENABLE_CHASSIS_PIGEON
+      public static final CanId CHASSIS_PIGEON = new CanId(4, CHASSIS_CANIVORE_BUS);
 
       // Intake
       public static final CanId GROUND_INTAKE_ROLLER = new CanId(0, SUPERSTRUCTURE_CANIVORE_BUS);
@@ -1,36 +1,42 @@
 package frc.robot;
 
-import edu.wpi.first.math.Matrix;
-import edu.wpi.first.math.Nat;
-import edu.wpi.first.math.VecBuilder;
+import edu.wpi.first.math.MathUtil;
 import edu.wpi.first.math.geometry.Pose2d;
 import edu.wpi.first.math.geometry.Rotation2d;
-import edu.wpi.first.math.geometry.Transform2d;
 import edu.wpi.first.math.geometry.Translation2d;
 import edu.wpi.first.math.geometry.Twist2d;
-import edu.wpi.first.math.interpolation.TimeInterpolatableBuffer;
 import edu.wpi.first.math.kinematics.DifferentialDriveKinematics;
-import edu.wpi.first.math.kinematics.DifferentialDriveWheelPositions;
-import edu.wpi.first.math.numbers.N1;
-import edu.wpi.first.math.numbers.N3;
 import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj.Timer;
 import edu.wpi.first.wpilibj2.command.Command;
 import edu.wpi.first.wpilibj2.command.Commands;
+import frc.lib.dashboard.Alert;
 import frc.lib.dashboard.LoggedTunableNumber;
 import frc.lib.interfaces.VirtualSubsystem;
+import frc.lib.math.DiagonalPoseFilter;
+import frc.lib.math.EkfPoseFilter;
+import frc.lib.math.ParticleRelocalizer;
+import frc.lib.math.PoseFilter;
+import frc.lib.math.ReplayPoseEstimator;
+import frc.lib.math.SE2Util;
 import frc.lib.utils.AllianceFlipUtil;
+import frc.lib.utils.PoseHistoryBuffer;
+import frc.lib.utils.PoseJournal;
 import frc.reefscape.Field;
 import frc.robot.subsystems.chassis.Chassis.WheeledObservation;
 import frc.robot.subsystems.chassis.ChassisConfig;
+import frc.robot.subsystems.chassis.OdometryThread;
 import frc.robot.subsystems.vision.ApriltagVision;
 import frc.robot.subsystems.vision.ApriltagVision.SingleTagVisionObservation;
 import frc.robot.subsystems.vision.ApriltagVision.VisionObservation;
-import java.util.HashMap;
-import java.util.NoSuchElementException;
+import frc.robot.subsystems.vision.SingleTagPoseStore;
+import frc.robot.subsystems.vision.VisionObservationBatch;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Optional;
 import java.util.function.Supplier;
 import lombok.Getter;
+import org.littletonrobotics.junction.AutoLog;
 import org.littletonrobotics.junction.AutoLogOutput;
 import org.littletonrobotics.junction.Logger;
 
@@ -43,39 +49,215 @@ public class Odometry extends VirtualSubsystem {
           Constants.DebugGroup.ODOMETRY, "Odometry/TxTyObservation/MaxAllowedDistance", 2.0);
 
   private static final double POSE_BUFFER_SIZE_SEC = 2.0;
-  private static final Matrix<N3, N1> WHEELED_STD_DEVS =
-      new Matrix<>(VecBuilder.fill(0.003, 0.003, 0.0002));
+  // Odometry thread rate plus headroom for bursts after a loop overrun
+  private static final int POSE_BUFFER_CAPACITY =
+      (int) Math.ceil(POSE_BUFFER_SIZE_SEC * OdometryThread.FREQUENCY_HZ) + 64;
+  private static final double[] WHEELED_STD_DEVS = {0.003, 0.003, 0.0002};
+  // Four cameras at 45 FPS over the whole history, with headroom
+  private static final int VISION_HISTORY_CAPACITY = 512;
+  // EKF noise: wheel slip per meter along/across the heading, heading drift per radian turned
+  private static final double EKF_LONG_STD_DEV_PER_METER = 0.02;
+  private static final double EKF_LAT_STD_DEV_PER_METER = 0.005;
+  private static final double EKF_THETA_STD_DEV_PER_RAD = 0.02;
+  private static final double EKF_GYRO_STD_DEV = Math.toRadians(0.5);
+  private static final double[] INITIAL_STD_DEVS = {0.05, 0.05, Math.toRadians(2.0)};
+  // A replay must fit well inside one 20 ms loop. ReplayPoseEstimatorBenchmark measures about
+  // 0.2 us per EKF step on a desktop, a roboRIO is assumed to be 20 times slower
+  private static final double REPLAY_BUDGET_SEC = 0.002;
+  private static final double REPLAY_STEP_SEC = 4e-6;
+  private static final int MAX_REPLAY_STEPS = (int) (REPLAY_BUDGET_SEC / REPLAY_STEP_SEC);
+  // Relocalizer runs beside the main loop on the second roboRIO core
+  private static final int RELOCALIZER_PARTICLE_COUNT = 2048;
+  private static final int RELOCALIZER_MAX_MEASUREMENTS = 64;
+  private static final int RELOCALIZER_PARALLELISM = 2;
+  private static final double RELOCALIZER_BUDGET_SEC = 0.01;
+  private static final long RELOCALIZER_SEED = 0x0dd0cL;
+  private static final double TX_TY_BEARING_STD_DEV = Math.toRadians(1.0);
+  private static final double TX_TY_RANGE_STD_DEV_COEFF = 0.05;
+  private static final double LOGGED_PREDICTION_SEC = 0.1;
+  // Pose journal channels, see PoseJournal.Reader for post-match queries
+  private static final String POSE_JOURNAL_DIRECTORY =
+      Constants.MODE == Constants.Mode.REAL ? "/home/lvuser/logs" : "logs";
+  private static final int JOURNAL_WHEELED = 0;
+  private static final int JOURNAL_ESTIMATED = 1;
+  private static final int JOURNAL_VISION = 2;
+  private static final String[] JOURNAL_CHANNELS = {"Wheeled", "Estimated", "Vision"};
+  // 10 minutes enabled of four cameras at 45 FPS, ~6.7 MB per file
+  private static final long POSE_JOURNAL_MAX_RECORDS = 108_000;
+  private static final int POSE_JOURNAL_KEEP_SESSIONS = 10;
+  // Wheel odometry noise multiplier while the chassis reports slip
+  private static final double SLIP_ODOMETRY_NOISE_SCALE = 10.0;
+
+  // Reef branches "A" to "L", the camera facing each branch and the tag of its reef face
+  private static final int REEF_BRANCH_COUNT = 12;
+  private static final ApriltagVision.CameraId[] REEF_BRANCH_CAMERA =
+      new ApriltagVision.CameraId[REEF_BRANCH_COUNT];
+  private static final ApriltagVision.CameraId[] REEF_BRANCH_L1_CAMERA =
+      new ApriltagVision.CameraId[REEF_BRANCH_COUNT];
+  private static final int[] REEF_BRANCH_BLUE_TAG_ID = new int[REEF_BRANCH_COUNT];
+  private static final int[] REEF_BRANCH_RED_TAG_ID = new int[REEF_BRANCH_COUNT];
+
+  static {
+    final int[] blueFaceTagIds = {18, 17, 22, 21, 20, 19};
+    final int[] redFaceTagIds = {7, 8, 9, 10, 11, 6};
+    for (int i = 0; i < REEF_BRANCH_COUNT; ++i) {
+      REEF_BRANCH_CAMERA[i] =
+          i % 2 == 0
+              ? ApriltagVision.CameraId.REEF_BACK_RIGHT
+              : ApriltagVision.CameraId.REEF_BACK_LEFT;
+      REEF_BRANCH_L1_CAMERA[i] = ApriltagVision.CameraId.CASUAL_MID_RIGHT;
+      REEF_BRANCH_BLUE_TAG_ID[i] = blueFaceTagIds[i / 2];
+      REEF_BRANCH_RED_TAG_ID[i] = redFaceTagIds[i / 2];
+    }
+  }
+
+  /** Relocalizer state as seen by the main loop, its worker timing is not replayable. */
+  @AutoLog
+  public static class RelocalizerInputs {
+    public boolean active = false;
+    public boolean converged = false;
+    public Pose2d seedPose = Pose2d.kZero;
+  }
 
   @Getter private Pose2d wheeledPose;
+  @Getter private boolean wheelSlipping = false;
+  // Capture time of the newest fused vision pose, reset with the pose
+  @Getter private double lastVisionTimestamp = Double.NEGATIVE_INFINITY;
 
-  @Getter private Pose2d estimatedPose;
+  // Built from the estimator on demand so vision updates do not allocate
+  private Pose2d estimatedPose;
+  private boolean estimatedPoseStale = false;
 
   @Override
   public void periodic() {
+    updateRelocalizer();
+
     Logger.recordOutput("Odometry/WheeledPose", wheeledPose);
-    Logger.recordOutput("Odometry/EstimatedPose", estimatedPose);
+    Logger.recordOutput("Odometry/EstimatedPose", getEstimatedPose());
+    Logger.recordOutput("Odometry/PredictedPose", predictor.getPrediction(loggedPredictionHandle));
+
+    if (Constants.ENABLE_POSE_JOURNAL && DriverStation.isEnabled()) {
+      recordJournal();
+    }
+  }
+
+  /** Journals the poses of this loop, the files are opened on the first enabled loop. */
+  private void recordJournal() {
+    if (!journalOpened) {
+      journalOpened = true;
+      journal = createPoseJournal();
+    }
+    if (journal != null) {
+      final var timestamp = Timer.getTimestamp();
+      journal.record(
+          JOURNAL_WHEELED,
+          timestamp,
+          wheeledPose.getX(),
+          wheeledPose.getY(),
+          wheeledPose.getRotation().getRadians(),
+          null);
+      estimator.getCovariance(covariance);
+      journal.record(
+          JOURNAL_ESTIMATED,
+          timestamp,
+          estimator.getX(),
+          estimator.getY(),
+          estimator.getTheta(),
+          covariance);
+      Logger.recordOutput("Odometry/Journal/Dropped", journal.getDroppedCount());
+      Logger.recordOutput("Odometry/Journal/Capped", journal.getCappedCount());
+      // Cameras with different latencies deliver older frames after newer ones
+      Logger.recordOutput(
+          "Odometry/Journal/VisionOutOfOrder", journal.getOutOfOrderCount(JOURNAL_VISION));
+    }
   }
 
-  private final HashMap<ApriltagVision.CameraId, HashMap<Integer, SingleTagVisionObservation>>
-      singleTagPoses = new HashMap<>();
+  private final SingleTagPoseStore singleTagPoses =
+      new SingleTagPoseStore(ApriltagVision.CameraId.values().length, Field.APRILTAG_COUNT);
 
   @Getter private Twist2d robotCentricVel = new Twist2d();
-  private Twist2d trajectoryVel = new Twist2d();
-  private final TimeInterpolatableBuffer<Pose2d> poseBuffer =
-      TimeInterpolatableBuffer.createBuffer(POSE_BUFFER_SIZE_SEC);
-  private final Matrix<N3, N1> qStdDevs = new Matrix<>(Nat.N3(), Nat.N1());
+  @Getter private final PosePredictor predictor = new PosePredictor(this);
+  private final int loggedPredictionHandle = predictor.registerHorizon(LOGGED_PREDICTION_SEC);
+  private final PoseHistoryBuffer poseBuffer = createWheeledPoseHistory();
+  private final double[] poseSample = new double[3];
+  private final double[] poseScratch = new double[3];
+  private final ReplayPoseEstimator estimator = createPoseEstimator();
+  private final double[] covariance = new double[9];
+  private final double[] estimatedStdDevs = new double[3];
+  private final double[] journalCovariance = new double[9];
+  private PoseJournal journal = null;
+  private boolean journalOpened = false;
+  private final ParticleRelocalizer relocalizer =
+      new ParticleRelocalizer(
+          RELOCALIZER_PARTICLE_COUNT,
+          RELOCALIZER_MAX_MEASUREMENTS,
+          RELOCALIZER_PARALLELISM,
+          RELOCALIZER_BUDGET_SEC,
+          RELOCALIZER_SEED);
+  private final RelocalizerInputsAutoLogged relocalizerInputs = new RelocalizerInputsAutoLogged();
+  private final double[] relocalizerBack = new double[3];
+  private final double[] relocalizerPose = new double[3];
+  private final Alert replayBudgetAlert =
+      new Alert("Pose estimator replay exceeded its budget", Alert.AlertType.WARNING);
   private final DifferentialDriveKinematics kinematics;
-  private DifferentialDriveWheelPositions lastWheelPositions =
-      new DifferentialDriveWheelPositions(0.0, 0.0);
-  private Rotation2d lastGyroYaw = new Rotation2d();
+  private double lastLeftPositionMeter = 0.0;
+  private double lastRightPositionMeter = 0.0;
+  private double lastGyroYawRad = Double.NaN;
+  // Maps gyro yaw onto the estimated heading, fixed on the first gyro sample after a reset
+  private double gyroOffsetRad = Double.NaN;
 
   protected Odometry() {
-    for (int i = 0; i < 3; ++i) {
-      qStdDevs.set(i, 0, Math.pow(WHEELED_STD_DEVS.get(i, 0), 2));
-    }
     kinematics = new DifferentialDriveKinematics(ChassisConfig.TRACK_WIDTH);
 
     resetPose(new Pose2d(Field.LENGTH / 2.0, Field.WIDTH / 2.0, Rotation2d.fromDegrees(0.0)));
+    if (Constants.ENABLE_PARTICLE_RELOCALIZER) {
+      startRelocalization();
+    }
+  }
+
+  /** Estimator configured as on the robot, also used to re-run logs offline. */
+  public static ReplayPoseEstimator createPoseEstimator() {
+    final var estimator =
+        new ReplayPoseEstimator(
+            POSE_BUFFER_SIZE_SEC,
+            POSE_BUFFER_CAPACITY,
+            VISION_HISTORY_CAPACITY,
+            createPoseFilter());
+    estimator.setMaxReplaySteps(MAX_REPLAY_STEPS);
+    return estimator;
+  }
+
+  private static PoseFilter createPoseFilter() {
+    if (Constants.ENABLE_EKF_POSE_ESTIMATOR) {
+      return new EkfPoseFilter(
+          EKF_LONG_STD_DEV_PER_METER,
+          EKF_LAT_STD_DEV_PER_METER,
+          EKF_THETA_STD_DEV_PER_RAD,
+          EKF_GYRO_STD_DEV,
+          INITIAL_STD_DEVS);
+    }
+    return new DiagonalPoseFilter(
+        WHEELED_STD_DEVS[0], WHEELED_STD_DEVS[1], WHEELED_STD_DEVS[2], INITIAL_STD_DEVS);
+  }
+
+  /** Null in replay or if the directory is not writable, odometry works without it. */
+  private static PoseJournal createPoseJournal() {
+    if (Constants.MODE == Constants.Mode.REPLAY) {
+      return null;
+    }
+    try {
+      final var directory = Path.of(POSE_JOURNAL_DIRECTORY);
+      PoseJournal.deleteOldest(
+          directory, (POSE_JOURNAL_KEEP_SESSIONS - 1) * JOURNAL_CHANNELS.length);
+      return new PoseJournal(
+          directory,
+          "pose_" + System.currentTimeMillis() + "_",
+          POSE_JOURNAL_MAX_RECORDS,
+          JOURNAL_CHANNELS);
+    } catch (IOException e) {
+      DriverStation.reportError("[Odometry]: pose journal disabled, " + e.getMessage(), false);
+      return null;
+    }
   }
 
   public Command resetPoseCommand(Supplier<Pose2d> pose) {
@@ -83,125 +265,426 @@ public class Odometry extends VirtualSubsystem {
   }
 
   public void addWheeledObservation(WheeledObservation observation) {
-    var wheelPositions = observation.wheelPositions();
-    var twist = kinematics.toTwist2d(lastWheelPositions, wheelPositions);
-    lastWheelPositions = wheelPositions;
-    if (observation.yaw() != null) {
-      twist = new Twist2d(twist.dx, twist.dy, observation.yaw().minus(lastGyroYaw).getRadians());
-      lastGyroYaw = observation.yaw();
+    addWheeledSample(
+        observation.timestamp(),
+        observation.wheelPositions().leftMeters,
+        observation.wheelPositions().rightMeters,
+        observation.yaw() == null ? Double.NaN : observation.yaw().getRadians());
+    invalidateEstimatedPose();
+  }
+
+  /**
+   * Distrusts wheel odometry while the wheels slip, so vision pulls the estimate back quickly
+   * without loosening its rejection thresholds.
+   */
+  public void setWheelSlip(boolean slipping) {
+    wheelSlipping = slipping;
+    estimator.setOdometryNoiseScale(slipping ? SLIP_ODOMETRY_NOISE_SCALE : 1.0);
+  }
+
+  /**
+   * Integrates the wheel samples of one loop, oldest first.
+   *
+   * @param yawsRad Gyro yaw per sample, NaN entries or a null array fall back to the wheels
+   */
+  public void addWheeledSamples(
+      double[] timestamps,
+      double[] leftPositionsMeter,
+      double[] rightPositionsMeter,
+      double[] yawsRad) {
+    for (int i = 0; i < timestamps.length; ++i) {
+      addWheeledSample(
+          timestamps[i],
+          leftPositionsMeter[i],
+          rightPositionsMeter[i],
+          yawsRad == null ? Double.NaN : yawsRad[i]);
+    }
+    Logger.recordOutput("Odometry/WheeledSampleCount", timestamps.length);
+    invalidateEstimatedPose();
+  }
+
+  private void addWheeledSample(
+      double timestamp, double leftPositionMeter, double rightPositionMeter, double gyroYawRad) {
+    var twist =
+        kinematics.toTwist2d(
+            leftPositionMeter - lastLeftPositionMeter, rightPositionMeter - lastRightPositionMeter);
+    lastLeftPositionMeter = leftPositionMeter;
+    lastRightPositionMeter = rightPositionMeter;
+
+    // The EKF fuses the gyro as an absolute heading, so it gets the wheel-only twist
+    var wheelDtheta = twist.dtheta;
+    var heading = Double.NaN;
+    if (!Double.isNaN(gyroYawRad)) {
+      if (!Double.isNaN(lastGyroYawRad)) {
+        twist.dtheta = MathUtil.angleModulus(gyroYawRad - lastGyroYawRad);
+      }
+      lastGyroYawRad = gyroYawRad;
+
+      if (Double.isNaN(gyroOffsetRad)) {
+        gyroOffsetRad = estimator.getTheta() - gyroYawRad;
+      }
+      heading = MathUtil.angleModulus(gyroYawRad + gyroOffsetRad);
+    } else {
+      // Differencing across a gyro outage would apply the whole gap in one sample
+      lastGyroYawRad = Double.NaN;
     }
     wheeledPose = wheeledPose.exp(twist);
-    poseBuffer.addSample(observation.timestamp(), wheeledPose);
-    estimatedPose = estimatedPose.exp(twist);
+    relocalizer.addMotion(twist.dx, twist.dy, twist.dtheta);
+    poseBuffer.add(
+        timestamp, wheeledPose.getX(), wheeledPose.getY(), wheeledPose.getRotation().getRadians());
+    if (Constants.ENABLE_EKF_POSE_ESTIMATOR) {
+      estimator.addOdometry(timestamp, twist.dx, twist.dy, wheelDtheta, heading);
+    } else {
+      estimator.addOdometry(timestamp, twist.dx, twist.dy, twist.dtheta);
+    }
   }
 
   public Optional<Pose2d> getWheeledPoseByTimestamp(double timestamp) {
-    return poseBuffer.getSample(timestamp);
+    if (!poseBuffer.sample(timestamp, poseSample)) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        new Pose2d(poseSample[0], poseSample[1], Rotation2d.fromRadians(poseSample[2])));
+  }
+
+  /**
+   * Allocation-free variant of {@link #getWheeledPoseByTimestamp(double)}.
+   *
+   * @param out Receives x, y, theta at {@code out[0..2]}
+   * @return false if there is no history yet
+   */
+  public boolean getWheeledPoseByTimestamp(double timestamp, double[] out) {
+    return poseBuffer.sample(timestamp, out);
+  }
+
+  /** Empty buffer sized for {@link #copyWheeledPoseHistory}. */
+  public static PoseHistoryBuffer createWheeledPoseHistory() {
+    return new PoseHistoryBuffer(POSE_BUFFER_SIZE_SEC, POSE_BUFFER_CAPACITY);
+  }
+
+  /**
+   * Snapshots the wheeled pose history. Odometry is main thread only, code sampling the history
+   * from other threads reads a snapshot taken on the main thread.
+   */
+  public void copyWheeledPoseHistory(PoseHistoryBuffer out) {
+    out.copyFrom(poseBuffer);
   }
 
   public void addVisionObservation(VisionObservation observation) {
-    try {
-      if (poseBuffer.getInternalBuffer().lastKey() - POSE_BUFFER_SIZE_SEC
-          > observation.timestamp()) {
-        return;
+    if (estimator.addMeasurement(
+        observation.timestamp(),
+        observation.pose().getX(),
+        observation.pose().getY(),
+        observation.pose().getRotation().getRadians(),
+        observation.stdDevs().get(0, 0),
+        observation.stdDevs().get(1, 0),
+        observation.stdDevs().get(2, 0))) {
+      lastVisionTimestamp = Math.max(lastVisionTimestamp, observation.timestamp());
+      journalVision(
+          observation.timestamp(),
+          observation.pose().getX(),
+          observation.pose().getY(),
+          observation.pose().getRotation().getRadians(),
+          observation.stdDevs().get(0, 0),
+          observation.stdDevs().get(1, 0),
+          observation.stdDevs().get(2, 0));
+    }
+    invalidateEstimatedPose();
+  }
+
+  /**
+   * Fuses every vision observation of one loop with a single replay of the odometry history.
+   * Observations may be in any order.
+   */
+  public void addVisionObservations(VisionObservationBatch batch) {
+    var accepted = 0;
+    for (int i = 0; i < batch.size(); ++i) {
+      if (estimator.insertMeasurement(
+          batch.timestamp(i),
+          batch.x(i),
+          batch.y(i),
+          batch.theta(i),
+          batch.stdDevX(i),
+          batch.stdDevY(i),
+          batch.stdDevTheta(i))) {
+        lastVisionTimestamp = Math.max(lastVisionTimestamp, batch.timestamp(i));
+        journalVision(
+            batch.timestamp(i),
+            batch.x(i),
+            batch.y(i),
+            batch.theta(i),
+            batch.stdDevX(i),
+            batch.stdDevY(i),
+            batch.stdDevTheta(i));
+        accepted++;
       }
-    } catch (NoSuchElementException ex) {
+    }
+    Logger.recordOutput("Odometry/VisionAcceptedCount", accepted);
+
+    final var start = System.nanoTime();
+    final var steps = estimator.replay();
+    final var replaySec = (System.nanoTime() - start) * 1e-9;
+    Logger.recordOutput("Odometry/VisionReplaySteps", steps);
+    Logger.recordOutput("Odometry/VisionReplaySec", replaySec);
+    replayBudgetAlert.set(replaySec > REPLAY_BUDGET_SEC);
+    invalidateEstimatedPose();
+  }
+
+  private void journalVision(
+      double timestamp,
+      double x,
+      double y,
+      double theta,
+      double stdDevX,
+      double stdDevY,
+      double stdDevTheta) {
+    if (journal == null || !DriverStation.isEnabled()) {
       return;
     }
+    journalCovariance[0] = stdDevX * stdDevX;
+    journalCovariance[4] = stdDevY * stdDevY;
+    journalCovariance[8] = stdDevTheta * stdDevTheta;
+    journal.record(JOURNAL_VISION, timestamp, x, y, theta, journalCovariance);
+  }
+
+  private void invalidateEstimatedPose() {
+    estimatedPoseStale = true;
+  }
+
+  public Pose2d getEstimatedPose() {
+    if (estimatedPoseStale) {
+      estimatedPose =
+          new Pose2d(
+              estimator.getX(), estimator.getY(), Rotation2d.fromRadians(estimator.getTheta()));
+      estimatedPoseStale = false;
+    }
+    return estimatedPose;
+  }
+
+  /**
+   * Allocation-free variant of {@link #getEstimatedPose()}.
+   *
+   * @param out Receives x, y, theta at {@code out[0..2]}
+   */
+  public void getEstimatedPose(double[] out) {
+    out[0] = estimator.getX();
+    out[1] = estimator.getY();
+    out[2] = estimator.getTheta();
+  }
+
+  /**
+   * Writes the 3x3 covariance of the estimated pose, row major over x, y, theta. The default filter
+   * tracks only the variances, its correlations are zero.
+   *
+   * @param out Receives 9 doubles
+   */
+  public void getEstimatedCovariance(double[] out) {
+    estimator.getCovariance(out);
+  }
+
+  @AutoLogOutput(key = "Odometry/EstimatedStdDevs")
+  public double[] getEstimatedStdDevs() {
+    estimator.getCovariance(covariance);
+    estimatedStdDevs[0] = Math.sqrt(covariance[0]);
+    estimatedStdDevs[1] = Math.sqrt(covariance[4]);
+    estimatedStdDevs[2] = Math.sqrt(covariance[8]);
+    return estimatedStdDevs;
+  }
 
-    var sample = poseBuffer.getSample(observation.timestamp());
-    if (sample.isEmpty()) {
+  /**
+   * Searches the whole field for the robot pose with a particle filter fed by vision, then seeds
+   * the estimator with it. Use after a collision or when the pose was reset at a wrong spot.
+   */
+  public void startRelocalization() {
+    relocalizer.start(0.0, 0.0, Field.LENGTH, Field.WIDTH);
+  }
+
+  public Command relocalizeCommand() {
+    return Commands.runOnce(this::startRelocalization).ignoringDisable(true);
+  }
+
+  public boolean isRelocalizing() {
+    return relocalizerInputs.active;
+  }
+
+  /** Feeds a vision pose to the relocalizer, ignored unless it is running. */
+  public void addRelocalizationPoseObservation(VisionObservation observation) {
+    if (!relocalizer.isActive() || !getRelocalizerBack(observation.timestamp())) {
       return;
     }
+    relocalizer.addPoseMeasurement(
+        relocalizerBack,
+        observation.pose().getX(),
+        observation.pose().getY(),
+        observation.pose().getRotation().getRadians(),
+        observation.stdDevs().get(0, 0),
+        observation.stdDevs().get(1, 0),
+        observation.stdDevs().get(2, 0));
+  }
 
-    var old2NowWheeledPoseTransform = new Transform2d(sample.get(), wheeledPose);
-    var now2OldWheeledPoseTransform = new Transform2d(wheeledPose, sample.get());
-    var oldEstimatedPose = estimatedPose.plus(now2OldWheeledPoseTransform);
+  /**
+   * Feeds a single tag tx/ty observation to the relocalizer, ignored unless it is running.
+   *
+   * @param cameraInRobot Camera pose on the robot, projected to the floor
+   * @param tagInField Tag position on the field
+   * @param bearing Tag angle in the camera frame, counter-clockwise positive
+   * @param range Floor distance from the camera to the tag
+   */
+  public void addRelocalizationTxTyObservation(
+      double timestamp,
+      Pose2d cameraInRobot,
+      Translation2d tagInField,
+      double bearing,
+      double range) {
+    if (!relocalizer.isActive() || !getRelocalizerBack(timestamp)) {
+      return;
+    }
+    relocalizer.addBearingMeasurement(
+        relocalizerBack,
+        cameraInRobot.getX(),
+        cameraInRobot.getY(),
+        cameraInRobot.getRotation().getRadians(),
+        tagInField.getX(),
+        tagInField.getY(),
+        bearing,
+        range,
+        TX_TY_BEARING_STD_DEV,
+        TX_TY_RANGE_STD_DEV_COEFF * Math.max(range, 1.0));
+  }
 
-    var r = new double[3];
-    for (int i = 0; i < 3; ++i) {
-      r[i] = observation.stdDevs().get(i, 0) * observation.stdDevs().get(i, 0);
+  /** Wheeled pose at the timestamp relative to the latest one. */
+  private boolean getRelocalizerBack(double timestamp) {
+    if (!poseBuffer.sample(timestamp, poseSample)) {
+      return false;
     }
-    var visionK = new Matrix<>(Nat.N3(), Nat.N3());
-    for (int row = 0; row < 3; ++row) {
-      double stdDev = qStdDevs.get(row, 0);
-      if (stdDev == 0.0) {
-        visionK.set(row, row, 0.0);
-      } else {
-        visionK.set(row, row, stdDev / (stdDev + Math.sqrt(stdDev * r[row])));
+    SE2Util.relative(
+        wheeledPose.getX(),
+        wheeledPose.getY(),
+        wheeledPose.getRotation().getRadians(),
+        poseSample[0],
+        poseSample[1],
+        poseSample[2],
+        relocalizerBack);
+    return true;
+  }
+
+  private void updateRelocalizer() {
+    relocalizerInputs.active = relocalizer.isActive();
+    relocalizerInputs.converged = false;
+    if (relocalizerInputs.active) {
+      // Polled first, the iteration update() starts would rewrite the converged mean
+      if (relocalizer.pollConverged(relocalizerPose)) {
+        relocalizerInputs.converged = true;
+        relocalizerInputs.seedPose =
+            new Pose2d(
+                relocalizerPose[0], relocalizerPose[1], Rotation2d.fromRadians(relocalizerPose[2]));
       }
+      relocalizer.update();
+      Logger.recordOutput(
+          "Odometry/Relocalizer/TranslationStdDev", relocalizer.getTranslationStdDev());
+      Logger.recordOutput("Odometry/Relocalizer/RotationStdDev", relocalizer.getRotationStdDev());
+      Logger.recordOutput("Odometry/Relocalizer/IterationSec", relocalizer.getLastIterationSec());
+      Logger.recordOutput("Odometry/Relocalizer/TimedOutCount", relocalizer.getTimedOutCount());
+    }
+    // When the worker converges depends on its timing, replay seeds from the logged pose
+    Logger.processInputs("Odometry Relocalizer", relocalizerInputs);
+
+    if (relocalizerInputs.converged) {
+      // Wheeled pose keeps dead reckoning, only the fused estimate jumps
+      final var seedPose = relocalizerInputs.seedPose;
+      estimator.reset(seedPose.getX(), seedPose.getY(), seedPose.getRotation().getRadians());
+      gyroOffsetRad = Double.NaN;
+      invalidateEstimatedPose();
     }
-
-    var transform = new Transform2d(oldEstimatedPose, observation.pose());
-    var kTimesTransform =
-        visionK.times(
-            VecBuilder.fill(
-                transform.getX(), transform.getY(), transform.getRotation().getRadians()));
-    var scaledTransform =
-        new Transform2d(
-            kTimesTransform.get(0, 0),
-            kTimesTransform.get(1, 0),
-            Rotation2d.fromRadians(kTimesTransform.get(2, 0)));
-    estimatedPose = oldEstimatedPose.plus(scaledTransform).plus(old2NowWheeledPoseTransform);
   }
 
+  /** Records a single tag pose, readers see it after {@link #publishSingleTagObservations()}. */
   public void addSingleTagObservation(
       ApriltagVision.CameraId id, SingleTagVisionObservation observation) {
-    var map = singleTagPoses.get(id);
-
-    if (map.get(observation.id()).timestamp() >= observation.timestamp()) {
-      return;
-    }
+    singleTagPoses.add(
+        id.ordinal(),
+        observation.id(),
+        observation.timestamp(),
+        observation.pose().getX(),
+        observation.pose().getY(),
+        observation.pose().getRotation().getRadians(),
+        observation.distance());
+  }
 
-    map.put(observation.id(), observation);
+  /** Publishes the single tag poses of this loop to {@link #getReefSingleTagPose}. */
+  public void publishSingleTagObservations() {
+    singleTagPoses.publish();
   }
 
   public Optional<Pose2d> getReefSingleTagPose(String branch, boolean isL1Scoring) {
     if (!Constants.ENABLE_SINGLE_TAG_POSE) {
       return Optional.of(getEstimatedPose());
     }
-
-    ApriltagVision.CameraId cameraId;
-    if ("ACEGIK".contains(branch)) {
-      cameraId =
-          isL1Scoring
-              ? ApriltagVision.CameraId.CASUAL_MID_RIGHT
-              : ApriltagVision.CameraId.REEF_BACK_RIGHT;
-    } else if ("BDFHJL".contains(branch)) {
-      cameraId =
-          isL1Scoring
-              ? ApriltagVision.CameraId.CASUAL_MID_RIGHT
-              : ApriltagVision.CameraId.REEF_BACK_LEFT;
-    } else {
+    if (!getReefSingleTagPose(branch, isL1Scoring, poseScratch)) {
       return Optional.empty();
     }
+    return Optional.of(
+        new Pose2d(poseScratch[0], poseScratch[1], Rotation2d.fromRadians(poseScratch[2])));
+  }
 
-    var tagId = getReefSingleTagPoseIdBySelection(branch);
-
-    if (tagId == -1 || !singleTagPoses.get(cameraId).containsKey(tagId)) {
-      DriverStation.reportError("No tag with id: " + tagId, true);
-      return Optional.empty();
+  /**
+   * Allocation-free variant of {@link #getReefSingleTagPose(String, boolean)}, ignores {@link
+   * Constants#ENABLE_SINGLE_TAG_POSE}.
+   *
+   * @param out Receives x, y, theta at {@code out[0..2]}
+   * @return false if there is no fresh and close enough observation of the branch tag
+   */
+  public boolean getReefSingleTagPose(String branch, boolean isL1Scoring, double[] out) {
+    final var branchIndex = getReefBranchIndex(branch);
+    if (branchIndex == -1) {
+      return false;
     }
-
-    var singleTagPose = singleTagPoses.get(cameraId).get(tagId);
-
-    if (Timer.getTimestamp() - singleTagPose.timestamp() >= txTyObservationStaleSecs.get()
-        || singleTagPose.distance() >= txTyObservationMaxAllowedDistance.get()) {
-      return Optional.empty();
+    final var cameras = isL1Scoring ? REEF_BRANCH_L1_CAMERA : REEF_BRANCH_CAMERA;
+    final var tagIds =
+        AllianceFlipUtil.shouldFlip() ? REEF_BRANCH_RED_TAG_ID : REEF_BRANCH_BLUE_TAG_ID;
+    final var camera = cameras[branchIndex].ordinal();
+    final var tagId = tagIds[branchIndex];
+
+    final var timestamp = singleTagPoses.timestamp(camera, tagId);
+    if (Timer.getTimestamp() - timestamp >= txTyObservationStaleSecs.get()
+        || singleTagPoses.distance(camera, tagId) >= txTyObservationMaxAllowedDistance.get()) {
+      return false;
+    }
+    if (!poseBuffer.sample(timestamp, poseSample)) {
+      return false;
     }
-    var oldWheeledPose = poseBuffer.getSample(singleTagPose.timestamp());
 
     // Latency compensate
-    return oldWheeledPose.map(
-        pose -> singleTagPose.pose().plus(new Transform2d(pose, wheeledPose)));
+    SE2Util.relative(
+        poseSample[0],
+        poseSample[1],
+        poseSample[2],
+        wheeledPose.getX(),
+        wheeledPose.getY(),
+        wheeledPose.getRotation().getRadians(),
+        out);
+    SE2Util.compose(
+        singleTagPoses.x(camera, tagId),
+        singleTagPoses.y(camera, tagId),
+        singleTagPoses.theta(camera, tagId),
+        out[0],
+        out[1],
+        out[2],
+        out);
+    return true;
   }
 
-  public void addRobotCentricVel(Twist2d vel) {
-    robotCentricVel = vel;
+  /** Index of a single reef branch "A" to "L", -1 for anything else. */
+  private static int getReefBranchIndex(String branch) {
+    if (branch.length() != 1) {
+      return -1;
+    }
+    final var index = branch.charAt(0) - 'A';
+    return index >= 0 && index < REEF_BRANCH_COUNT ? index : -1;
   }
 
-  public void addTrajectoryVel(Twist2d vel) {
-    trajectoryVel = vel;
+  public void addRobotCentricVel(Twist2d vel) {
+    robotCentricVel = vel;
   }
 
   public static int getReefSingleTagPoseIdBySelection(String selectedBranch) {
@@ -220,7 +703,7 @@ public class Odometry extends VirtualSubsystem {
   public Twist2d getFieldCentricVel() {
     var fieldCentricTranslationVel =
         new Translation2d(robotCentricVel.dx, robotCentricVel.dy)
-            .rotateBy(estimatedPose.getRotation());
+            .rotateBy(getEstimatedPose().getRotation());
 
     return new Twist2d(
         fieldCentricTranslationVel.getX(),
@@ -236,32 +719,18 @@ public class Odometry extends VirtualSubsystem {
 
   public void resetPose(Pose2d initialPose) {
     estimatedPose = initialPose;
+    estimatedPoseStale = false;
     wheeledPose = initialPose;
     poseBuffer.clear();
+    estimator.reset(initialPose.getX(), initialPose.getY(), initialPose.getRotation().getRadians());
+    gyroOffsetRad = Double.NaN;
+    lastVisionTimestamp = Double.NEGATIVE_INFINITY;
 
     singleTagPoses.clear();
-
-    singleTagPoses.put(ApriltagVision.CameraId.CASUAL_MID_LEFT, new HashMap<>());
-    singleTagPoses.put(ApriltagVision.CameraId.CASUAL_MID_RIGHT, new HashMap<>());
-    singleTagPoses.put(ApriltagVision.CameraId.REEF_BACK_LEFT, new HashMap<>());
-    singleTagPoses.put(ApriltagVision.CameraId.REEF_BACK_RIGHT, new HashMap<>());
-
-    for (var entry : singleTagPoses.entrySet()) {
-      var map = entry.getValue();
-      for (int i = 1; i <= Field.APRILTAG_COUNT; i++) {
-        map.put(
-            i, new SingleTagVisionObservation(-999.0, new Pose2d(), i, Double.POSITIVE_INFINITY));
-      }
-    }
   }
 
   public Pose2d getPredictedPose(double translationLookaheadSec, double rotationLookaheadSec) {
-    var vel = DriverStation.isAutonomousEnabled() ? trajectoryVel : robotCentricVel;
-    return getEstimatedPose()
-        .transformBy(
-            new Transform2d(
-                vel.dx * translationLookaheadSec,
-                vel.dy * translationLookaheadSec,
-                Rotation2d.fromRadians(vel.dtheta * rotationLookaheadSec)));
+    predictor.predict(translationLookaheadSec, rotationLookaheadSec, poseScratch);
+    return new Pose2d(poseScratch[0], poseScratch[1], Rotation2d.fromRadians(poseScratch[2]));
   }
 }
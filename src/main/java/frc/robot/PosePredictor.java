@@ -0,0 +1,163 @@
+package frc.robot;
+
+import choreo.trajectory.DifferentialSample;
+import choreo.trajectory.Trajectory;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.wpilibj.Timer;
+import frc.lib.math.SE2Util;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Predicts where the robot will be a short time ahead. While a trajectory is being followed its own
+ * motion over the lookahead is replayed from the estimated pose, otherwise the measured twist is
+ * integrated along an arc through the exp map, so turning paths stay curved.
+ *
+ * <p>Horizons registered up front are evaluated once per loop on first use and cached, any number
+ * of callers then read them for free.
+ */
+public class PosePredictor {
+  private static final int MAX_HORIZONS = 16;
+
+  private final Odometry odometry;
+  private final double[] horizonSec = new double[MAX_HORIZONS];
+  private final Pose2d[] predictions = new Pose2d[MAX_HORIZONS];
+  private int horizonCount = 0;
+  private double cachedTimestamp = Double.NaN;
+
+  private final double[] current = new double[3];
+  private final double[] prediction = new double[3];
+  private final double[] relative = new double[3];
+
+  private Trajectory<DifferentialSample> trajectory = null;
+  private DoubleSupplier trajectoryTimeSec = null;
+  private DifferentialSample trajectoryNow = null;
+
+  PosePredictor(Odometry odometry) {
+    this.odometry = odometry;
+  }
+
+  /**
+   * Adds a horizon evaluated every loop, call during construction.
+   *
+   * @return Handle for {@link #getPrediction(int)}
+   */
+  public int registerHorizon(double lookaheadSec) {
+    if (horizonCount == MAX_HORIZONS) {
+      throw new IllegalStateException("[PosePredictor]: too many horizons");
+    }
+    horizonSec[horizonCount] = lookaheadSec;
+    cachedTimestamp = Double.NaN;
+    return horizonCount++;
+  }
+
+  /** Cached prediction of a registered horizon for the current loop. */
+  public Pose2d getPrediction(int handle) {
+    refresh();
+    return predictions[handle];
+  }
+
+  /**
+   * Predicts an arbitrary horizon, not cached.
+   *
+   * @param translationLookaheadSec Lookahead of the position
+   * @param rotationLookaheadSec Lookahead of the heading
+   * @param out Receives x, y, theta at {@code out[0..2]}
+   */
+  public void predict(double translationLookaheadSec, double rotationLookaheadSec, double[] out) {
+    odometry.getEstimatedPose(current);
+    sampleTrajectoryNow();
+    predict(current, translationLookaheadSec, rotationLookaheadSec, out);
+  }
+
+  /**
+   * Uses a trajectory for predictions until {@link #clearActiveTrajectory} is called.
+   *
+   * @param timeSec Time elapsed along the trajectory
+   */
+  public void setActiveTrajectory(
+      Trajectory<DifferentialSample> trajectory, DoubleSupplier timeSec) {
+    this.trajectory = trajectory;
+    this.trajectoryTimeSec = timeSec;
+    cachedTimestamp = Double.NaN;
+  }
+
+  /** Falls back to the measured twist, ignored if another trajectory took over since. */
+  public void clearActiveTrajectory(Trajectory<DifferentialSample> trajectory) {
+    if (this.trajectory == trajectory) {
+      this.trajectory = null;
+      this.trajectoryTimeSec = null;
+      cachedTimestamp = Double.NaN;
+    }
+  }
+
+  private void refresh() {
+    final var timestamp = Timer.getTimestamp();
+    if (timestamp == cachedTimestamp) {
+      return;
+    }
+    cachedTimestamp = timestamp;
+
+    odometry.getEstimatedPose(current);
+    sampleTrajectoryNow();
+    for (int i = 0; i < horizonCount; ++i) {
+      predict(current, horizonSec[i], horizonSec[i], prediction);
+      predictions[i] =
+          new Pose2d(prediction[0], prediction[1], Rotation2d.fromRadians(prediction[2]));
+    }
+  }
+
+  private void sampleTrajectoryNow() {
+    trajectoryNow =
+        trajectory == null
+            ? null
+            : trajectory.sampleAt(trajectoryTimeSec.getAsDouble(), false).orElse(null);
+  }
+
+  private void predict(
+      double[] pose, double translationLookaheadSec, double rotationLookaheadSec, double[] out) {
+    if (trajectoryNow != null) {
+      final var time = trajectoryTimeSec.getAsDouble();
+      final var translationSample =
+          trajectory.sampleAt(time + translationLookaheadSec, false).orElse(trajectoryNow);
+      final var rotationSample =
+          rotationLookaheadSec == translationLookaheadSec
+              ? translationSample
+              : trajectory.sampleAt(time + rotationLookaheadSec, false).orElse(trajectoryNow);
+
+      // Motion planned over the lookahead, relative to where the trajectory is now
+      SE2Util.relative(
+          trajectoryNow.x,
+          trajectoryNow.y,
+          trajectoryNow.heading,
+          translationSample.x,
+          translationSample.y,
+          rotationSample.heading,
+          relative);
+      SE2Util.compose(pose[0], pose[1], pose[2], relative[0], relative[1], relative[2], out);
+      return;
+    }
+
+    final var vel = odometry.getRobotCentricVel();
+    if (translationLookaheadSec == rotationLookaheadSec) {
+      SE2Util.exp(
+          pose[0],
+          pose[1],
+          pose[2],
+          vel.dx * translationLookaheadSec,
+          vel.dy * translationLookaheadSec,
+          vel.dtheta * rotationLookaheadSec,
+          out);
+    } else {
+      // Separate horizons have no common arc, move along the current heading and turn in place
+      SE2Util.compose(
+          pose[0],
+          pose[1],
+          pose[2],
+          vel.dx * translationLookaheadSec,
+          vel.dy * translationLookaheadSec,
+          vel.dtheta * rotationLookaheadSec,
+          out);
+    }
+  }
+}
@@ -14,6 +14,9 @@ import edu.wpi.first.wpilibj.Timer;
 import edu.wpi.first.wpilibj2.command.Command;
 import edu.wpi.first.wpilibj2.command.CommandScheduler;
 import frc.lib.interfaces.VirtualSubsystem;
+import frc.lib.utils.AllocationMonitor;
+import frc.lib.utils.DeferredWorkQueue;
+import frc.lib.utils.LoopProfiler;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.function.BiConsumer;
@@ -25,14 +28,36 @@ import org.littletonrobotics.junction.wpilog.WPILOGReader;
 import org.littletonrobotics.junction.wpilog.WPILOGWriter;
 
 public class Robot extends LoggedRobot {
+  // Young generation is small with the fixed heap, every KiB per loop brings the next pause closer
+  private static final long ALLOCATION_BUDGET_BYTES = 256 * 1024;
+  // Shared worker threads on the roboRIO 2, sim and replay use every core
+  private static final int ROBORIO_WORKER_THREADS = 2;
+  // Deferred work may still start this far into robotPeriodic, the rest of the loop is logging
+  private static final double DEFERRED_WORK_BUDGET_MS = 12.0;
+
   private Command autonomousCommand;
   private boolean autonomousHasPrinted;
   private double autonomousStartTime;
 
   private final RobotContainer robotContainer;
+  private final LoopProfiler.Section virtualSubsystemsPhase =
+      LoopProfiler.phase("Robot/VirtualSubsystems");
+  private final LoopProfiler.Section commandSchedulerPhase =
+      LoopProfiler.phase("Robot/CommandScheduler");
+  private final LoopProfiler.Section deferredWorkPhase = LoopProfiler.phase("Robot/DeferredWork");
+  private final AllocationMonitor allocationMonitor =
+      new AllocationMonitor(ALLOCATION_BUDGET_BYTES);
 
   public Robot() {
     CommandScheduler.getInstance().getActiveButtonLoop().clear();
+    // Bound ahead of every trigger
+    LoopProfiler.setBudgetMs(Constants.LOOP_PERIOD_SEC * 1e3);
+    LoopProfiler.instrument(CommandScheduler.getInstance());
+    DeferredWorkQueue.setBudgetMs(DEFERRED_WORK_BUDGET_MS);
+    VirtualSubsystem.setParallelism(
+        Constants.MODE == Constants.Mode.REAL
+            ? ROBORIO_WORKER_THREADS
+            : Runtime.getRuntime().availableProcessors());
     RobotController.setBrownoutVoltage(6.0);
 
     // configure CTRE
@@ -101,6 +126,9 @@ public class Robot extends LoggedRobot {
   @Override
   public void robotPeriodic() {
     Threads.setCurrentThreadPriority(true, 99);
+    final var loopStart = System.nanoTime();
+    LoopProfiler.beginLoop();
+    allocationMonitor.beginLoop();
 
     if (autonomousCommand != null) {
       if (!autonomousCommand.isScheduled() && !autonomousHasPrinted) {
@@ -117,9 +145,21 @@ public class Robot extends LoggedRobot {
       }
     }
 
+    var start = System.nanoTime();
     VirtualSubsystem.periodicAll();
+    virtualSubsystemsPhase.record(start);
+
+    start = System.nanoTime();
+    LoopProfiler.beginScheduler();
     CommandScheduler.getInstance().run();
+    commandSchedulerPhase.record(start);
+
+    start = System.nanoTime();
+    DeferredWorkQueue.drain(loopStart);
+    deferredWorkPhase.record(start);
 
+    allocationMonitor.endLoop();
+    LoopProfiler.endLoop();
     Threads.setCurrentThreadPriority(true, 10);
   }
 
@@ -20,6 +20,7 @@ import frc.lib.service.CommandSelector;
 import frc.lib.service.GamePieceVisualizer;
 import frc.lib.service.TunableManager;
 import frc.lib.service.Visualizer;
+import frc.lib.utils.DeferredWorkQueue;
 import frc.reefscape.Field;
 import frc.reefscape.TrajectorySet;
 import frc.robot.Constants.AscopeAssets;
@@ -32,6 +33,7 @@ import frc.robot.commands.PickCoral;
 import frc.robot.commands.ScoreCoral;
 import frc.robot.subsystems.chassis.Chassis;
 import frc.robot.subsystems.intake.Intake;
+import frc.robot.subsystems.vision.ApriltagVision;
 import lombok.Getter;
 
 public class RobotContainer {
@@ -47,6 +49,8 @@ public class RobotContainer {
   private final Chassis chassis;
   @Getter // for this project only
   private final Intake intake;
+  // Null unless ENABLE_APRILTAG_VISION
+  private final ApriltagVision apriltagVision;
 
   // service
   private final CommandSelector autoCmdSelector = new CommandSelector("Auto");
@@ -58,9 +62,15 @@ public class RobotContainer {
     if (Constants.MODE.equals(Constants.Mode.REAL)) {
       chassis = Chassis.createReal();
       intake = Intake.createReal();
+      apriltagVision = Constants.ENABLE_APRILTAG_VISION ? ApriltagVision.createReal() : null;
     } else if (Constants.MODE.equals(Constants.Mode.SIM)) {
       chassis = Chassis.createSim();
       intake = Intake.createSim(() -> s_hasCoral);
+      // Sim drivetrain has no slip, the wheeled pose is the ground truth
+      apriltagVision =
+          Constants.ENABLE_APRILTAG_VISION
+              ? ApriltagVision.createSim(odometry::getWheeledPose)
+              : null;
 
       GamePieceVisualizer coral =
           new GamePieceVisualizer(
@@ -77,6 +87,7 @@ public class RobotContainer {
     } else {
       chassis = Chassis.createIO();
       intake = Intake.createIO();
+      apriltagVision = Constants.ENABLE_APRILTAG_VISION ? ApriltagVision.createIO() : null;
     }
 
     configureBindings();
@@ -207,7 +218,9 @@ public class RobotContainer {
         "coral",
         AscopeAssets.CORAL,
         () -> s_hasCoral ? Misc.intake_T_coral : new Transform3d(1e9, 1e9, 1e9, new Rotation3d()));
-    visualizer.print();
+    DeferredWorkQueue.submit(DeferredWorkQueue.Priority.LOW, visualizer::print);
+    // Suppliers above are walked off the main thread
+    visualizer.addReadDependency(intake);
   }
 
   public Command getAutonomousCommand() {
@@ -4,6 +4,7 @@ import choreo.trajectory.DifferentialSample;
 import choreo.trajectory.Trajectory;
 import edu.wpi.first.wpilibj.Timer;
 import edu.wpi.first.wpilibj2.command.Command;
+import frc.robot.RobotContainer;
 import frc.robot.subsystems.chassis.Chassis;
 import java.util.function.Supplier;
 import org.littletonrobotics.junction.Logger;
@@ -12,6 +13,7 @@ public class FollowTrajectory extends Command {
   private final Chassis chassis;
   private final Supplier<Trajectory<DifferentialSample>> trajectorySupplier;
   private DifferentialSample setpoint = null;
+  private Trajectory<DifferentialSample> trajectory = null;
   private final Timer timer = new Timer();
 
   public FollowTrajectory(
@@ -23,11 +25,12 @@ public class FollowTrajectory extends Command {
 
   @Override
   public void initialize() {
-    trajectorySupplier.get().getInitialSample(false).get();
-    Logger.recordOutput(
-        "Chassis/FollowTrajectory/TrajectoryPoses", trajectorySupplier.get().getPoses());
+    trajectory = trajectorySupplier.get();
+    trajectory.getInitialSample(false).get();
+    Logger.recordOutput("Chassis/FollowTrajectory/TrajectoryPoses", trajectory.getPoses());
     timer.reset();
     timer.start();
+    RobotContainer.getOdometry().getPredictor().setActiveTrajectory(trajectory, timer::get);
   }
 
   @Override
@@ -45,5 +48,6 @@ public class FollowTrajectory extends Command {
   public void end(boolean interrupted) {
     timer.stop();
     chassis.stop();
+    RobotContainer.getOdometry().getPredictor().clearActiveTrajectory(trajectory);
   }
 }
@@ -1,20 +1,25 @@
 package frc.robot.subsystems.chassis;
 
 import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Twist2d;
 import edu.wpi.first.math.kinematics.DifferentialDriveWheelPositions;
 import edu.wpi.first.wpilibj.Timer;
-import edu.wpi.first.wpilibj2.command.SubsystemBase;
 import frc.lib.dashboard.Alert;
 import frc.lib.dashboard.LoggedTunableNumber;
+import frc.lib.interfaces.ProfiledSubsystem;
 import frc.lib.interfaces.motor.GenericWheelIO;
 import frc.lib.interfaces.motor.GenericWheelIOInputsAutoLogged;
 import frc.lib.interfaces.motor.GenericWheelIOKraken;
 import frc.lib.interfaces.motor.GenericWheelIOSim;
+import frc.lib.interfaces.sensor.gyro.GyroIO;
+import frc.lib.interfaces.sensor.gyro.GyroIOInputsAutoLogged;
+import frc.lib.interfaces.sensor.gyro.GyroIOPigeon2;
+import frc.lib.utils.DeferredWorkQueue;
 import frc.robot.Constants;
 import frc.robot.RobotContainer;
 import org.littletonrobotics.junction.Logger;
 
-public class Chassis extends SubsystemBase {
+public class Chassis extends ProfiledSubsystem {
   public void setWheelsVelocities(double leftVelocity, double rightVelocity) {
     leftIO.setVelocity(leftVelocity / ChassisConfig.WHEEL_RADIUS_METER, 0.0);
     rightIO.setVelocity(rightVelocity / ChassisConfig.WHEEL_RADIUS_METER, 0.0);
@@ -34,85 +39,177 @@ public class Chassis extends SubsystemBase {
 
   private final GenericWheelIO leftIO;
   private final GenericWheelIO rightIO;
+  private final GyroIO gyroIO;
   private final GenericWheelIOInputsAutoLogged leftInputs = new GenericWheelIOInputsAutoLogged();
   private final GenericWheelIOInputsAutoLogged rightInputs = new GenericWheelIOInputsAutoLogged();
+  private final GyroIOInputsAutoLogged gyroInputs = new GyroIOInputsAutoLogged();
+  private final OdometryThreadInputsAutoLogged odometryInputs =
+      new OdometryThreadInputsAutoLogged();
+  private final SlipDetector slipDetector = new SlipDetector();
+  // Only on the robot, SIM takes one sample per loop and replay reads the samples from the log
+  private final OdometryThread odometryThread;
+  private final double[] loopTimestamp = new double[1];
+  private final double[] loopLeftPosition = new double[1];
+  private final double[] loopRightPosition = new double[1];
+  private final double[] loopYaw = new double[1];
   private final Alert leftOfflineAlert = new Alert("Chassis Left Offline", Alert.AlertType.WARNING);
   private final Alert rightOfflineAlert =
       new Alert("Chassis Right Offline", Alert.AlertType.WARNING);
 
   @Override
-  public void periodic() {
+  protected void profiledPeriodic() {
     leftIO.updateInputs(leftInputs);
     rightIO.updateInputs(rightInputs);
+    gyroIO.updateInputs(gyroInputs);
 
     Logger.processInputs("Chassis Left", leftInputs);
     Logger.processInputs("Chassis Right", rightInputs);
+    Logger.processInputs("Chassis Gyro", gyroInputs);
 
     leftOfflineAlert.set(!leftInputs.connected);
     rightOfflineAlert.set(!rightInputs.connected);
 
+    // Applying a config blocks on the CAN bus, the gains are read when it finally runs
     LoggedTunableNumber.ifChanged(
         hashCode(),
-        () -> {
-          leftIO.setPdf(
-              ChassisConfig.driveKp.get(),
-              ChassisConfig.driveKd.get(),
-              ChassisConfig.driveKs.get());
-          rightIO.setPdf(
-              ChassisConfig.driveKp.get(),
-              ChassisConfig.driveKd.get(),
-              ChassisConfig.driveKs.get());
-        },
+        () ->
+            DeferredWorkQueue.submitUnique(
+                this,
+                DeferredWorkQueue.Priority.LOW,
+                () -> {
+                  leftIO.setPdf(
+                      ChassisConfig.driveKp.get(),
+                      ChassisConfig.driveKd.get(),
+                      ChassisConfig.driveKs.get());
+                  rightIO.setPdf(
+                      ChassisConfig.driveKp.get(),
+                      ChassisConfig.driveKd.get(),
+                      ChassisConfig.driveKs.get());
+                }),
         ChassisConfig.driveKp,
         ChassisConfig.driveKd,
         ChassisConfig.driveKs);
 
-    // Simplify for tank drive odometry
+    // Before the samples of this loop are integrated, so they already get the inflated noise
+    updateSlipDetector();
+
+    final var leftVel = leftInputs.velRadPerSec * ChassisConfig.WHEEL_RADIUS_METER;
+    final var rightVel = rightInputs.velRadPerSec * ChassisConfig.WHEEL_RADIUS_METER;
+    RobotContainer.getOdometry()
+        .addRobotCentricVel(
+            new Twist2d(
+                (leftVel + rightVel) / 2.0,
+                0.0,
+                gyroInputs.connected
+                    ? gyroInputs.yawVelocityRadPerSec
+                    : (rightVel - leftVel) / ChassisConfig.TRACK_WIDTH));
+
+    updateOdometryInputs();
+    Logger.processInputs("Chassis Odometry", odometryInputs);
     RobotContainer.getOdometry()
-        .addWheeledObservation(
-            new WheeledObservation(
-                Timer.getFPGATimestamp(),
-                new DifferentialDriveWheelPositions(
-                    leftInputs.positionRad * ChassisConfig.WHEEL_RADIUS_METER,
-                    rightInputs.positionRad * ChassisConfig.WHEEL_RADIUS_METER),
-                null));
+        .addWheeledSamples(
+            odometryInputs.timestamps,
+            odometryInputs.leftPositionsMeter,
+            odometryInputs.rightPositionsMeter,
+            gyroInputs.connected ? odometryInputs.yawsRad : null);
   }
 
-  private Chassis(GenericWheelIO leftIO, GenericWheelIO rightIO) {
+  private void updateOdometryInputs() {
+    if (odometryThread != null) {
+      odometryThread.updateInputs(odometryInputs);
+      return;
+    }
+
+    // Simplify for tank drive odometry, replay overwrites this with the logged samples
+    loopTimestamp[0] = Timer.getFPGATimestamp();
+    loopLeftPosition[0] = leftInputs.positionRad * ChassisConfig.WHEEL_RADIUS_METER;
+    loopRightPosition[0] = rightInputs.positionRad * ChassisConfig.WHEEL_RADIUS_METER;
+    loopYaw[0] = gyroInputs.connected ? gyroInputs.yawPosition.getRadians() : Double.NaN;
+    odometryInputs.timestamps = loopTimestamp;
+    odometryInputs.leftPositionsMeter = loopLeftPosition;
+    odometryInputs.rightPositionsMeter = loopRightPosition;
+    odometryInputs.yawsRad = loopYaw;
+  }
+
+  private void updateSlipDetector() {
+    final var slipping =
+        slipDetector.update(
+            // Loop timestamp is replayed, the FPGA clock is not
+            Timer.getTimestamp(),
+            leftInputs.velRadPerSec * ChassisConfig.WHEEL_RADIUS_METER,
+            rightInputs.velRadPerSec * ChassisConfig.WHEEL_RADIUS_METER,
+            leftInputs.statorCurrentAmp,
+            rightInputs.statorCurrentAmp,
+            gyroInputs.connected ? gyroInputs.yawVelocityRadPerSec : Double.NaN,
+            leftInputs.connected
+                && rightInputs.connected
+                && leftInputs.statorCurrentMeasured
+                && rightInputs.statorCurrentMeasured);
+    RobotContainer.getOdometry().setWheelSlip(slipping);
+
+    Logger.recordOutput("Chassis/Slip/Slipping", slipping);
+    Logger.recordOutput(
+        "Chassis/Slip/YawRateErrorRadPerSec", slipDetector.getYawRateErrorRadPerSec());
+    Logger.recordOutput(
+        "Chassis/Slip/LeftAccelErrorMeterPerSec2", slipDetector.getLeftAccelErrorMeterPerSec2());
+    Logger.recordOutput(
+        "Chassis/Slip/RightAccelErrorMeterPerSec2", slipDetector.getRightAccelErrorMeterPerSec2());
+  }
+
+  private Chassis(
+      GenericWheelIO leftIO, GenericWheelIO rightIO, GyroIO gyroIO, OdometryThread odometryThread) {
     this.leftIO = leftIO;
     this.rightIO = rightIO;
+    this.gyroIO = gyroIO;
+    this.odometryThread = odometryThread;
+
+    if (odometryThread != null) {
+      odometryThread.start();
+    }
   }
 
   public static Chassis createReal() {
-    return new Chassis(
+    var leftIO =
         new GenericWheelIOKraken(
                 "Left Drive", Constants.Ports.Can.LEFT_DRIVE_MASTER, ChassisConfig.getDriveConfig())
-            .withFollower(Constants.Ports.Can.LEFT_DRIVE_SLAVE, true),
+            .withFollower(Constants.Ports.Can.LEFT_DRIVE_SLAVE, true);
+    var rightIO =
         new GenericWheelIOKraken(
                 "Right Drive",
                 Constants.Ports.Can.RIGHT_DRIVE_MASTER,
                 ChassisConfig.getDriveConfig())
-            .withFollower(Constants.Ports.Can.RIGHT_DRIVE_SLAVE, true));
+            .withFollower(Constants.Ports.Can.RIGHT_DRIVE_SLAVE, true);
+    var pigeon =
+        Constants.ENABLE_CHASSIS_PIGEON
+            ? new GyroIOPigeon2(Constants.Ports.Can.CHASSIS_PIGEON)
+            : null;
+    return new Chassis(
+        leftIO,
+        rightIO,
+        pigeon != null ? pigeon : new GyroIO() {},
+        OdometryThread.createReal(leftIO, rightIO, pigeon));
   }
 
   public static Chassis createSim() {
     return new Chassis(
         new GenericWheelIOSim(
-            2,
+            ChassisConfig.DRIVE_MOTORS_PER_SIDE,
             0.025,
             ChassisConfig.DRIVE_REDUCTION,
             ChassisConfig.driveKp.get(),
             ChassisConfig.driveKd.get()),
         new GenericWheelIOSim(
-            2,
+            ChassisConfig.DRIVE_MOTORS_PER_SIDE,
             0.025,
             ChassisConfig.DRIVE_REDUCTION,
             ChassisConfig.driveKp.get(),
-            ChassisConfig.driveKd.get()));
+            ChassisConfig.driveKd.get()),
+        new GyroIO() {},
+        null);
   }
 
   public static Chassis createIO() {
-    return new Chassis(new GenericWheelIO() {}, new GenericWheelIO() {});
+    return new Chassis(new GenericWheelIO() {}, new GenericWheelIO() {}, new GyroIO() {}, null);
   }
 
   public record WheeledObservation(
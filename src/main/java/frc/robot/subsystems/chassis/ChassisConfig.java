@@ -4,6 +4,7 @@ import com.ctre.phoenix6.configs.Slot0Configs;
 import com.ctre.phoenix6.configs.TalonFXConfiguration;
 import com.ctre.phoenix6.signals.InvertedValue;
 import com.ctre.phoenix6.signals.NeutralModeValue;
+import edu.wpi.first.math.system.plant.DCMotor;
 import frc.lib.dashboard.LoggedTunableNumber;
 import frc.robot.Constants;
 import frc.robot.Constants.DebugGroup;
@@ -12,6 +13,10 @@ public class ChassisConfig {
   static final LoggedTunableNumber driveKp = new LoggedTunableNumber(DebugGroup.CHASSIS, "DriveKp");
   static final LoggedTunableNumber driveKd = new LoggedTunableNumber(DebugGroup.CHASSIS, "DriveKd");
   static final LoggedTunableNumber driveKs = new LoggedTunableNumber(DebugGroup.CHASSIS, "DriveKs");
+  static final LoggedTunableNumber slipYawRateToleranceRadPerSec =
+      new LoggedTunableNumber(DebugGroup.CHASSIS, "SlipYawRateToleranceRadPerSec", 0.5);
+  static final LoggedTunableNumber slipAccelToleranceMeterPerSec2 =
+      new LoggedTunableNumber(DebugGroup.CHASSIS, "SlipAccelToleranceMeterPerSec2", 4.0);
 
   static Gains getDriveGains() {
     return switch (Constants.MODE) {
@@ -21,8 +26,17 @@ public class ChassisConfig {
   }
 
   static final double DRIVE_REDUCTION = 10.71; // 10.71:1
+  static final int DRIVE_MOTORS_PER_SIDE = 2;
   public static final double TRACK_WIDTH = 0.69; // meters
   static final double WHEEL_RADIUS_METER = 0.0479;
+  static final double ROBOT_MASS_KG = 60.0;
+  // Every motor of a side draws the stator current of its leader and pushes half the robot
+  static final double ACCEL_PER_STATOR_AMP =
+      DRIVE_MOTORS_PER_SIDE
+          * DCMotor.getKrakenX60(1).KtNMPerAmp
+          * DRIVE_REDUCTION
+          / WHEEL_RADIUS_METER
+          / (ROBOT_MASS_KG / 2.0);
 
   static TalonFXConfiguration getDriveConfig() {
     var config = new TalonFXConfiguration();
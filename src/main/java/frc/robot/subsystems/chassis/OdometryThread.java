@@ -0,0 +1,167 @@
+package frc.robot.subsystems.chassis;
+
+import com.ctre.phoenix6.BaseStatusSignal;
+import com.ctre.phoenix6.StatusSignal;
+import edu.wpi.first.math.util.Units;
+import frc.lib.interfaces.motor.GenericWheelIOKraken;
+import frc.lib.interfaces.sensor.gyro.GyroIOPigeon2;
+import frc.lib.utils.Phoenix6Helper;
+import frc.lib.utils.SampleQueue;
+import java.util.function.DoubleSupplier;
+import org.littletonrobotics.junction.AutoLog;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Samples wheel positions and gyro yaw faster than the main loop and pushes timestamped rows into a
+ * {@link SampleQueue}. The thread blocks on the Phoenix 6 signals of the chassis CANivore, the
+ * chassis drains the queue once per loop into {@link OdometryThreadInputs}, which are logged so
+ * replay integrates exactly the samples the robot did.
+ */
+public class OdometryThread extends Thread {
+  public static final double FREQUENCY_HZ = 250.0;
+
+  // Row layout: timestamp (sec), left position (m), right position (m), yaw (rad, NaN if no gyro)
+  public static final int SAMPLE_WIDTH = 4;
+  public static final int TIMESTAMP = 0;
+  public static final int LEFT_POSITION = 1;
+  public static final int RIGHT_POSITION = 2;
+  public static final int YAW = 3;
+
+  // ~250 ms of samples, enough to ride out a long loop overrun
+  private static final int QUEUE_CAPACITY = 64;
+
+  @AutoLog
+  public static class OdometryThreadInputs {
+    public double[] timestamps = new double[0];
+    public double[] leftPositionsMeter = new double[0];
+    public double[] rightPositionsMeter = new double[0];
+    // NaN where the gyro had no valid sample
+    public double[] yawsRad = new double[0];
+    public long droppedCount = 0;
+  }
+
+  private final SampleQueue queue = new SampleQueue(QUEUE_CAPACITY, SAMPLE_WIDTH);
+
+  private final BaseStatusSignal[] signals;
+  private final BaseStatusSignal[] wheelSignals;
+  private final BaseStatusSignal[] gyroSignals;
+  private final DoubleSupplier leftPositionMeter;
+  private final DoubleSupplier rightPositionMeter;
+  private final DoubleSupplier yawRad;
+  private final double[] row = new double[SAMPLE_WIDTH];
+  private final double[] drainRow = new double[SAMPLE_WIDTH];
+
+  private OdometryThread(
+      BaseStatusSignal[] wheelSignals,
+      BaseStatusSignal[] gyroSignals,
+      DoubleSupplier leftPositionMeter,
+      DoubleSupplier rightPositionMeter,
+      DoubleSupplier yawRad) {
+    this.wheelSignals = wheelSignals;
+    this.gyroSignals = gyroSignals;
+    this.leftPositionMeter = leftPositionMeter;
+    this.rightPositionMeter = rightPositionMeter;
+    this.yawRad = yawRad;
+
+    signals = new BaseStatusSignal[wheelSignals.length + gyroSignals.length];
+    System.arraycopy(wheelSignals, 0, signals, 0, wheelSignals.length);
+    System.arraycopy(gyroSignals, 0, signals, wheelSignals.length, gyroSignals.length);
+
+    setName("OdometryThread");
+    setDaemon(true);
+  }
+
+  /**
+   * Creates a thread waiting on the wheel signals and, if there is one, the gyro.
+   *
+   * @param gyroIO Null if the chassis has no gyro, the yaw of every sample is then NaN
+   */
+  static OdometryThread createReal(
+      GenericWheelIOKraken leftIO, GenericWheelIOKraken rightIO, GyroIOPigeon2 gyroIO) {
+    // Cloned so the main loop can keep refreshing the originals without a lock
+    final var leftPosition = leftIO.getPosition().clone();
+    final var leftVel = leftIO.getVel().clone();
+    final var rightPosition = rightIO.getPosition().clone();
+    final var rightVel = rightIO.getVel().clone();
+    final BaseStatusSignal[] wheelSignals = {leftPosition, leftVel, rightPosition, rightVel};
+    Phoenix6Helper.checkErrorAndRetry(
+        "[Odometry Thread] set wheel signals update frequency",
+        () -> BaseStatusSignal.setUpdateFrequencyForAll(FREQUENCY_HZ, wheelSignals));
+
+    if (gyroIO == null) {
+      return new OdometryThread(
+          wheelSignals,
+          new BaseStatusSignal[0],
+          () -> compensatedPositionRad(leftPosition, leftVel) * ChassisConfig.WHEEL_RADIUS_METER,
+          () -> compensatedPositionRad(rightPosition, rightVel) * ChassisConfig.WHEEL_RADIUS_METER,
+          () -> Double.NaN);
+    }
+
+    final var yaw = gyroIO.getYaw().clone();
+    final var yawVel = gyroIO.getYawVelocity().clone();
+    final BaseStatusSignal[] gyroSignals = {yaw, yawVel};
+    Phoenix6Helper.checkErrorAndRetry(
+        "[Odometry Thread] set gyro signals update frequency",
+        () -> BaseStatusSignal.setUpdateFrequencyForAll(FREQUENCY_HZ, gyroSignals));
+
+    return new OdometryThread(
+        wheelSignals,
+        gyroSignals,
+        () -> compensatedPositionRad(leftPosition, leftVel) * ChassisConfig.WHEEL_RADIUS_METER,
+        () -> compensatedPositionRad(rightPosition, rightVel) * ChassisConfig.WHEEL_RADIUS_METER,
+        () ->
+            Units.degreesToRadians(
+                BaseStatusSignal.getLatencyCompensatedValueAsDouble(yaw, yawVel)));
+  }
+
+  private static double compensatedPositionRad(StatusSignal<?> position, StatusSignal<?> vel) {
+    return Units.rotationsToRadians(
+        BaseStatusSignal.getLatencyCompensatedValueAsDouble(position, vel));
+  }
+
+  private static boolean isAllOk(BaseStatusSignal[] signals) {
+    for (final var signal : signals) {
+      if (!signal.getStatus().isOK()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void run() {
+    while (!isInterrupted()) {
+      final var allOk = BaseStatusSignal.waitForAll(2.0 / FREQUENCY_HZ, signals).isOK();
+      // A stale wheel sample would be integrated as standing still, skip it
+      if (!allOk && !isAllOk(wheelSignals)) {
+        continue;
+      }
+
+      // Values are latency compensated up to now, so stamp them with the real FPGA time
+      row[TIMESTAMP] = Logger.getRealTimestamp() / 1e6;
+      row[LEFT_POSITION] = leftPositionMeter.getAsDouble();
+      row[RIGHT_POSITION] = rightPositionMeter.getAsDouble();
+      // A frozen yaw of a disconnected gyro would override the wheel heading change
+      row[YAW] = allOk || isAllOk(gyroSignals) ? yawRad.getAsDouble() : Double.NaN;
+      queue.offer(row);
+    }
+  }
+
+  /** Moves every pending sample into the inputs, oldest first. Main thread only. */
+  public void updateInputs(OdometryThreadInputs inputs) {
+    final var count = queue.size();
+    inputs.timestamps = new double[count];
+    inputs.leftPositionsMeter = new double[count];
+    inputs.rightPositionsMeter = new double[count];
+    inputs.yawsRad = new double[count];
+    for (int i = 0; i < count; ++i) {
+      // The main loop is the only consumer, every counted row is still there
+      queue.poll(drainRow);
+      inputs.timestamps[i] = drainRow[TIMESTAMP];
+      inputs.leftPositionsMeter[i] = drainRow[LEFT_POSITION];
+      inputs.rightPositionsMeter[i] = drainRow[RIGHT_POSITION];
+      inputs.yawsRad[i] = drainRow[YAW];
+    }
+    inputs.droppedCount = queue.getDroppedCount();
+  }
+}
@@ -0,0 +1,87 @@
+package frc.robot.subsystems.chassis;
+
+import edu.wpi.first.math.filter.Debouncer;
+import edu.wpi.first.math.filter.Debouncer.DebounceType;
+import lombok.Getter;
+
+/**
+ * Flags loops where the wheels do not describe the robot motion. Two independent checks:
+ *
+ * <ul>
+ *   <li>Yaw: the turn rate implied by the wheel speeds disagrees with the gyro, one side slips.
+ *   <li>Traction: a side accelerates far from what its stator current can push the robot, the
+ *       wheel spins free or is stalled against an obstacle.
+ * </ul>
+ *
+ * The flag is held for a short time after the last detection so odometry stays distrusted while
+ * the robot settles.
+ */
+class SlipDetector {
+  private final Debouncer holdDebouncer = new Debouncer(0.25, DebounceType.kFalling);
+
+  @Getter private double yawRateErrorRadPerSec = 0.0;
+  @Getter private double leftAccelErrorMeterPerSec2 = 0.0;
+  @Getter private double rightAccelErrorMeterPerSec2 = 0.0;
+  @Getter private boolean slipping = false;
+
+  private double lastLeftVelMeterPerSec = 0.0;
+  private double lastRightVelMeterPerSec = 0.0;
+  private double lastTimestamp = Double.NaN;
+
+  /**
+   * Runs both checks on the latest inputs.
+   *
+   * @param gyroYawRateRadPerSec NaN if there is no gyro, skips the yaw check
+   * @param useCurrent false if the stator current is not modelled, skips the traction check
+   * @return Whether the wheels are considered slipping
+   */
+  boolean update(
+      double timestamp,
+      double leftVelMeterPerSec,
+      double rightVelMeterPerSec,
+      double leftStatorCurrentAmp,
+      double rightStatorCurrentAmp,
+      double gyroYawRateRadPerSec,
+      boolean useCurrent) {
+    var detected = false;
+
+    if (!Double.isNaN(gyroYawRateRadPerSec)) {
+      final var wheelYawRate =
+          (rightVelMeterPerSec - leftVelMeterPerSec) / ChassisConfig.TRACK_WIDTH;
+      yawRateErrorRadPerSec = wheelYawRate - gyroYawRateRadPerSec;
+      detected |=
+          Math.abs(yawRateErrorRadPerSec) > ChassisConfig.slipYawRateToleranceRadPerSec.get();
+    } else {
+      yawRateErrorRadPerSec = 0.0;
+    }
+
+    final var dt = timestamp - lastTimestamp;
+    if (useCurrent && dt > 1e-3) {
+      leftAccelErrorMeterPerSec2 =
+          accelError(leftVelMeterPerSec, lastLeftVelMeterPerSec, dt, leftStatorCurrentAmp);
+      rightAccelErrorMeterPerSec2 =
+          accelError(rightVelMeterPerSec, lastRightVelMeterPerSec, dt, rightStatorCurrentAmp);
+      final var tolerance = ChassisConfig.slipAccelToleranceMeterPerSec2.get();
+      detected |=
+          Math.abs(leftAccelErrorMeterPerSec2) > tolerance
+              || Math.abs(rightAccelErrorMeterPerSec2) > tolerance;
+    } else {
+      leftAccelErrorMeterPerSec2 = 0.0;
+      rightAccelErrorMeterPerSec2 = 0.0;
+    }
+
+    lastLeftVelMeterPerSec = leftVelMeterPerSec;
+    lastRightVelMeterPerSec = rightVelMeterPerSec;
+    lastTimestamp = timestamp;
+
+    slipping = holdDebouncer.calculate(detected);
+    return slipping;
+  }
+
+  private static double accelError(
+      double velMeterPerSec, double lastVelMeterPerSec, double dt, double statorCurrentAmp) {
+    final var measured = (velMeterPerSec - lastVelMeterPerSec) / dt;
+    final var expected = statorCurrentAmp * ChassisConfig.ACCEL_PER_STATOR_AMP;
+    return measured - expected;
+  }
+}
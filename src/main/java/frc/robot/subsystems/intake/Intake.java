@@ -3,9 +3,9 @@ package frc.robot.subsystems.intake;
 import com.ctre.phoenix6.configs.TalonFXConfiguration;
 import edu.wpi.first.math.system.plant.DCMotor;
 import edu.wpi.first.math.util.Units;
-import edu.wpi.first.wpilibj2.command.SubsystemBase;
 import frc.lib.dashboard.Alert;
 import frc.lib.dashboard.LoggedTunableNumber;
+import frc.lib.interfaces.ProfiledSubsystem;
 import frc.lib.interfaces.motor.GenericArmIO;
 import frc.lib.interfaces.motor.GenericArmIOInputsAutoLogged;
 import frc.lib.interfaces.motor.GenericArmIOKraken;
@@ -15,12 +15,13 @@ import frc.lib.interfaces.motor.GenericRollerIOInputsAutoLogged;
 import frc.lib.interfaces.motor.GenericRollerIOKraken;
 import frc.lib.interfaces.motor.GenericRollerIOSim;
 import frc.lib.interfaces.sensor.digital.DigitalInputRio;
+import frc.lib.utils.DeferredWorkQueue;
 import frc.robot.Constants.Ports.Can;
 import frc.robot.Constants.Ports.Digital;
 import java.util.function.BooleanSupplier;
 import org.littletonrobotics.junction.Logger;
 
-public class Intake extends SubsystemBase {
+public class Intake extends ProfiledSubsystem {
   public double getPivotDegree() {
     return Units.radiansToDegrees(pivotInputs.positionRad);
   }
@@ -61,7 +62,7 @@ public class Intake extends SubsystemBase {
   private final BooleanSupplier hasCoralSupplier;
 
   @Override
-  public void periodic() {
+  protected void profiledPeriodic() {
     pivotIO.updateInputs(pivotInputs);
     rollerIO.updateInputs(rollerInputs);
 
@@ -71,15 +72,19 @@ public class Intake extends SubsystemBase {
     pivotOfflineAlert.set(!pivotInputs.connected);
     rollerOfflineAlert.set(!rollerInputs.connected);
 
+    // Applying a config blocks on the CAN bus, the gains are read when it finally runs
     LoggedTunableNumber.ifChanged(
         hashCode(),
-        () -> {
-          pivotIO.setPdf(
-              IntakeConfig.pivotKp.get(),
-              IntakeConfig.pivotKd.get(),
-              IntakeConfig.pivotKs.get(),
-              IntakeConfig.pivotKg.get());
-        },
+        () ->
+            DeferredWorkQueue.submitUnique(
+                this,
+                DeferredWorkQueue.Priority.LOW,
+                () ->
+                    pivotIO.setPdf(
+                        IntakeConfig.pivotKp.get(),
+                        IntakeConfig.pivotKd.get(),
+                        IntakeConfig.pivotKs.get(),
+                        IntakeConfig.pivotKg.get())),
         IntakeConfig.pivotKp,
         IntakeConfig.pivotKd,
         IntakeConfig.pivotKs);
@@ -5,18 +5,25 @@ import edu.wpi.first.math.VecBuilder;
 import edu.wpi.first.math.geometry.*;
 import edu.wpi.first.math.numbers.N1;
 import edu.wpi.first.math.numbers.N3;
+import edu.wpi.first.wpilibj.Timer;
 import frc.lib.dashboard.Alert;
 import frc.lib.interfaces.VirtualSubsystem;
 import frc.lib.math.GeomUtil;
+import frc.lib.math.SE2Util;
+import frc.lib.utils.PoseHistoryBuffer;
 import frc.reefscape.Field;
+import frc.robot.Constants;
+import frc.robot.Odometry;
 import frc.robot.RobotContainer;
+import frc.robot.subsystems.vision.CameraDescriptor.Role;
 import java.util.*;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.ExtensionMethod;
 import org.littletonrobotics.junction.Logger;
 import org.photonvision.simulation.SimCameraProperties;
-import org.photonvision.simulation.VisionSystemSim;
 
 @ExtensionMethod({GeomUtil.class})
 public class ApriltagVision extends VirtualSubsystem {
@@ -26,6 +33,9 @@ public class ApriltagVision extends VirtualSubsystem {
   public record SingleTagVisionObservation(
       double timestamp, Pose2d pose, int id, double distance) {}
 
+  private record TagBearing(
+      double timestamp, Translation2d tagInField, double bearingRad, double distance) {}
+
   private static SimCameraProperties OV9281_1280_800() {
     var prop = new SimCameraProperties();
     prop.setCalibration(1280, 800, Rotation2d.fromDegrees(75.0));
@@ -51,135 +61,186 @@ public class ApriltagVision extends VirtualSubsystem {
     }
   }
 
-  private final ApriltagVisionIO casualMidLeftIo;
-  private final ApriltagVisionIO casualMidRightIo;
-  private final ApriltagVisionIO reefBackLeftIo;
-  private final ApriltagVisionIO reefBackRightIo;
-
-  private final ApriltagVisionIOInputsAutoLogged casualMidLeftInputs =
-      new ApriltagVisionIOInputsAutoLogged();
-  private final ApriltagVisionIOInputsAutoLogged casualMidRightInputs =
-      new ApriltagVisionIOInputsAutoLogged();
-  private final ApriltagVisionIOInputsAutoLogged reefBackLeftInputs =
-      new ApriltagVisionIOInputsAutoLogged();
-  private final ApriltagVisionIOInputsAutoLogged reefBackRightInputs =
-      new ApriltagVisionIOInputsAutoLogged();
-
-  private final List<VisionObservation> allGoodVisionObservations = new ArrayList<>();
-  private final HashMap<CameraId, Map<Integer, SingleTagVisionObservation>>
-      allSingleTagVisionObservations = new HashMap<>();
+  private final List<Camera> cameras = new ArrayList<>();
+  private final TagPoseTable tagPoses = ApriltagVisionConfig.TAG_POSES;
+  private final TagVisibilityIndex tagVisibility = ApriltagVisionConfig.TAG_VISIBILITY;
+
   private final List<Pose3d> allGoodRobotInField = new ArrayList<>();
   private final List<Pose2d> allGoodRobotInField2d = new ArrayList<>();
   private final List<Pose3d> allBadRobotInField = new ArrayList<>();
   private final List<Pose3d> allUsedTagInField = new ArrayList<>();
-
-  private final Alert casualMidLeftOfflineAlert =
-      new Alert(CameraId.CASUAL_MID_LEFT.toString() + " offline!", Alert.AlertType.WARNING);
-  private final Alert casualMidRightOfflineAlert =
-      new Alert(CameraId.CASUAL_MID_RIGHT.toString() + " offline!", Alert.AlertType.WARNING);
-  private final Alert reefBackLeftOfflineAlert =
-      new Alert(CameraId.REEF_BACK_LEFT.toString() + " offline!", Alert.AlertType.WARNING);
-  private final Alert reefBackRightOfflineAlert =
-      new Alert(CameraId.REEF_BACK_RIGHT.toString() + " offline!", Alert.AlertType.WARNING);
-
-  private ApriltagVision(
-      ApriltagVisionIO casualMidLeftIo,
-      ApriltagVisionIO casualMidRightIo,
-      ApriltagVisionIO reefBackLeftIo,
-      ApriltagVisionIO reefBackRightIo) {
-    this.casualMidLeftIo = casualMidLeftIo;
-    this.casualMidRightIo = casualMidRightIo;
-    this.reefBackLeftIo = reefBackLeftIo;
-    this.reefBackRightIo = reefBackRightIo;
+  private final List<Pose2d> allAcceptedRobotInField2d = new ArrayList<>();
+  private final List<Pose2d> allRejectedRobotInField2d = new ArrayList<>();
+
+  // Odometry state shared by all cameras of one loop, copied on the main thread before the workers
+  // start, the workers never call into odometry
+  private final PoseHistoryBuffer wheeledHistory = Odometry.createWheeledPoseHistory();
+  private Pose2d wheeledPose = Pose2d.kZero;
+  private Pose2d estimatedPose = Pose2d.kZero;
+  private final double[] estimatedCovariance = new double[9];
+
+  private final VisionObservationBatch fusionBatch =
+      new VisionObservationBatch(ApriltagVisionConfig.MAX_FUSED_OBSERVATIONS_PER_LOOP);
+  private final int[] mergeCursor;
+
+  private final JointPoseSolver jointSolver =
+      new JointPoseSolver(ApriltagVisionConfig.JOINT_MAX_OBSERVATIONS);
+  private final VisionGate jointGate = new VisionGate();
+  private final double[] jointSolution = new double[6];
+  private final double[] jointReference = new double[3];
+  private final double[] jointSample = new double[3];
+  private final double[] jointDelta = new double[3];
+  private final double[] jointStart = new double[3];
+  private VisionObservation jointObservation = null;
+
+  private final RecursiveAction processAll =
+      new RecursiveAction() {
+        @Override
+        protected void compute() {
+          invokeAll(cameras);
+        }
+      };
+
+  private ApriltagVision(Function<CameraDescriptor, ApriltagVisionIO> ioFactory) {
+    for (final var descriptor : ApriltagVisionConfig.CAMERAS) {
+      cameras.add(new Camera(descriptor, ioFactory.apply(descriptor)));
+    }
+    mergeCursor = new int[cameras.size()];
   }
 
   public static ApriltagVision createReal() {
     return new ApriltagVision(
-        new ApriltagVisionIOPhoton(CameraId.CASUAL_MID_LEFT.toString()),
-        new ApriltagVisionIOPhoton(CameraId.CASUAL_MID_RIGHT.toString()),
-        new ApriltagVisionIOPhoton(CameraId.REEF_BACK_LEFT.toString()),
-        new ApriltagVisionIOPhoton(CameraId.REEF_BACK_RIGHT.toString()));
+        descriptor -> new ApriltagVisionIOPhoton(descriptor.id().toString()));
   }
 
   public static ApriltagVision createSim(Supplier<Pose2d> poseSupplier) {
-    var visionSystemSim = new VisionSystemSim("apriltag");
-    visionSystemSim.addAprilTags(Field.APRILTAG_LAYOUT.getLayout());
+    final var scheduler = new VisionSimScheduler(poseSupplier);
     return new ApriltagVision(
-        new ApriltagVisionIOPhotonSim(
-            CameraId.CASUAL_MID_LEFT.toString(),
-            OV9281_1280_800(),
-            ApriltagVisionConfig.CASUAL_MID_LEFT_IN_ROBOT.toTransform3d(),
-            visionSystemSim,
-            poseSupplier),
-        new ApriltagVisionIOPhotonSim(
-            CameraId.CASUAL_MID_RIGHT.toString(),
-            OV9281_1280_800(),
-            ApriltagVisionConfig.CASUAL_MID_RIGHT_IN_ROBOT.toTransform3d(),
-            visionSystemSim,
-            poseSupplier),
-        new ApriltagVisionIOPhotonSim(
-            CameraId.REEF_BACK_LEFT.toString(),
-            OV9281_1280_800(),
-            ApriltagVisionConfig.REEF_BACK_LEFT_IN_ROBOT.toTransform3d(),
-            visionSystemSim,
-            poseSupplier),
-        new ApriltagVisionIOPhotonSim(
-            CameraId.REEF_BACK_RIGHT.toString(),
-            OV9281_1280_800(),
-            ApriltagVisionConfig.REEF_BACK_RIGHT_IN_ROBOT.toTransform3d(),
-            visionSystemSim,
-            poseSupplier));
+        descriptor ->
+            new ApriltagVisionIOPhotonSim(
+                descriptor.id().toString(),
+                ApriltagVisionConfig.CAMERAS.indexOf(descriptor),
+                OV9281_1280_800(),
+                descriptor.cameraInRobot().toTransform3d(),
+                scheduler));
   }
 
   public static ApriltagVision createIO() {
-    return new ApriltagVision(
-        new ApriltagVisionIO() {},
-        new ApriltagVisionIO() {},
-        new ApriltagVisionIO() {},
-        new ApriltagVisionIO() {});
+    return new ApriltagVision(descriptor -> new ApriltagVisionIO() {});
   }
 
   @Override
   public void periodic() {
-    updateInputs();
+    for (final var camera : cameras) {
+      camera.io.updateInputs(camera.inputs);
+      Logger.processInputs(camera.inputsKey, camera.inputs);
+      camera.offlineAlert.set(!camera.inputs.connected);
+      if (camera.inputs.hasUpdate) {
+        camera.stats.frames += camera.inputs.frameLatenciesSec.length;
+        for (final var latencySec : camera.inputs.frameLatenciesSec) {
+          camera.stats.latencyMs.record(latencySec * 1e3);
+        }
+      }
+    }
 
-    casualMidLeftOfflineAlert.set(!casualMidLeftInputs.connected);
-    casualMidRightOfflineAlert.set(!casualMidRightInputs.connected);
-    reefBackLeftOfflineAlert.set(!reefBackLeftInputs.connected);
-    reefBackRightOfflineAlert.set(!reefBackRightInputs.connected);
+    final var odometry = RobotContainer.getOdometry();
+    odometry.copyWheeledPoseHistory(wheeledHistory);
+    wheeledPose = odometry.getWheeledPose();
+    estimatedPose = odometry.getEstimatedPose();
+    odometry.getEstimatedCovariance(estimatedCovariance);
+
+    // Expected tags are only worth acting on while the estimate is certain and backed by recent
+    // vision, after a reset or a blind stretch every tag is expected
+    final var trustEstimate =
+        !odometry.isRelocalizing()
+            && Timer.getTimestamp() - odometry.getLastVisionTimestamp()
+                <= ApriltagVisionConfig.VISIBILITY_TRUST_MAX_VISION_AGE_SEC
+            && Math.sqrt(estimatedCovariance[0] + estimatedCovariance[4])
+                <= ApriltagVisionConfig.VISIBILITY_TRUST_STD_DEV_METER;
+    for (int i = 0; i < cameras.size(); ++i) {
+      cameras.get(i).expectedTags =
+          trustEstimate
+              ? tagVisibility.visibleTags(
+                  i,
+                  estimatedPose.getX(),
+                  estimatedPose.getY(),
+                  estimatedPose.getRotation().getRadians())
+              : TagVisibilityIndex.ALL_TAGS;
+    }
+
+    // Cameras only read the state above and write their own buffers, odometry is fed below on
+    // this thread in camera order
+    final var pool = Constants.ENABLE_PARALLEL_VISION ? getPool() : null;
+    if (pool != null) {
+      for (final var camera : cameras) {
+        camera.reinitialize();
+      }
+      processAll.reinitialize();
+      pool.invoke(processAll);
+    } else {
+      for (final var camera : cameras) {
+        camera.process();
+      }
+    }
 
-    allGoodVisionObservations.clear();
-    allSingleTagVisionObservations.clear();
     allGoodRobotInField.clear();
     allGoodRobotInField2d.clear();
     allBadRobotInField.clear();
     allUsedTagInField.clear();
+    allAcceptedRobotInField2d.clear();
+    allRejectedRobotInField2d.clear();
+
+    crossCheckCameras();
+
+    for (final var camera : cameras) {
+      for (int i = 0; i < camera.gatedVisionObservations.size(); ++i) {
+        final var observation = camera.gatedVisionObservations.get(i);
+        if (camera.gatedCrossRejected.get(i)) {
+          camera.stats.rejectedCrossCamera++;
+          allRejectedRobotInField2d.add(observation.pose());
+        } else {
+          camera.stats.accepted++;
+          allAcceptedRobotInField2d.add(observation.pose());
+        }
+      }
+      allRejectedRobotInField2d.addAll(camera.gateRejectedRobotInField2d);
+
+      final var gate = camera.gate;
+      Logger.recordOutput(camera.inputsKey + "/Gate/AcceptRatio", gate.getAcceptRatio());
+      Logger.recordOutput(
+          camera.inputsKey + "/Gate/MeanMahalanobisSq", gate.getMeanMahalanobisSq());
+      Logger.recordOutput(camera.inputsKey + "/Gate/ConsistentStreak", gate.getConsistentStreak());
+      camera.stats.logPeriodically(camera.inputsKey, Timer.getTimestamp());
+
+      allGoodRobotInField.addAll(camera.goodRobotInField);
+      allBadRobotInField.addAll(camera.badRobotInField);
+      allUsedTagInField.addAll(camera.usedTagInField);
 
-    allSingleTagVisionObservations.put(CameraId.CASUAL_MID_LEFT, new HashMap<>());
-    allSingleTagVisionObservations.put(CameraId.CASUAL_MID_RIGHT, new HashMap<>());
-    allSingleTagVisionObservations.put(CameraId.REEF_BACK_LEFT, new HashMap<>());
-    allSingleTagVisionObservations.put(CameraId.REEF_BACK_RIGHT, new HashMap<>());
-
-    updateRobotInField(
-        CameraId.CASUAL_MID_LEFT,
-        casualMidLeftInputs,
-        ApriltagVisionConfig.CASUAL_MID_LEFT_IN_ROBOT,
-        true);
-    updateRobotInField(
-        CameraId.CASUAL_MID_RIGHT,
-        casualMidRightInputs,
-        ApriltagVisionConfig.CASUAL_MID_RIGHT_IN_ROBOT,
-        true);
-    updateRobotInField(
-        CameraId.REEF_BACK_LEFT,
-        reefBackLeftInputs,
-        ApriltagVisionConfig.REEF_BACK_LEFT_IN_ROBOT,
-        true);
-    updateRobotInField(
-        CameraId.REEF_BACK_RIGHT,
-        reefBackRightInputs,
-        ApriltagVisionConfig.REEF_BACK_RIGHT_IN_ROBOT,
-        true);
+      for (final var observation : camera.goodVisionObservations) {
+        allGoodRobotInField2d.add(observation.pose());
+        odometry.addRelocalizationPoseObservation(observation);
+      }
+      for (final var bearing : camera.tagBearings) {
+        odometry.addRelocalizationTxTyObservation(
+            bearing.timestamp(),
+            camera.cameraInRobot2d,
+            bearing.tagInField(),
+            bearing.bearingRad(),
+            bearing.distance());
+      }
+      for (final var observation : camera.singleTagObservations) {
+        odometry.addSingleTagObservation(camera.descriptor.id(), observation);
+      }
+    }
+    odometry.publishSingleTagObservations();
+
+    final var jointWindowStart = solveJointPose();
+    final var dropped = mergeAcceptedObservations(jointWindowStart);
+    if (fusionBatch.size() != 0) {
+      odometry.addVisionObservations(fusionBatch);
+    }
+    Logger.recordOutput("ApriltagVision/FusedCount", fusionBatch.size());
+    Logger.recordOutput("ApriltagVision/DroppedCount", dropped);
 
     if (anyCameraHasUpdate()) {
       Logger.recordOutput(
@@ -190,167 +251,558 @@ public class ApriltagVision extends VirtualSubsystem {
           "ApriltagVision/AllGoodRobotInField2d", allGoodRobotInField2d.toArray(Pose2d[]::new));
       Logger.recordOutput(
           "ApriltagVision/AllUsedTagInField", allUsedTagInField.toArray(Pose3d[]::new));
+      Logger.recordOutput(
+          "ApriltagVision/AllAcceptedRobotInField2d",
+          allAcceptedRobotInField2d.toArray(Pose2d[]::new));
+      Logger.recordOutput(
+          "ApriltagVision/AllRejectedRobotInField2d",
+          allRejectedRobotInField2d.toArray(Pose2d[]::new));
+    }
+  }
 
-      for (var singleTagPoses : allSingleTagVisionObservations.entrySet()) {
-        // singleTagPoses.getValue().values().forEach(pose ->
-        // Odometry.getInstance().addSingleTagObservation(singleTagPoses.getKey(), pose));
+  /**
+   * Rejects gated poses that disagree with most of the other cameras seeing a frame in the same
+   * window, a camera agrees if any of its poses there does. Needs at least two peer cameras, with a
+   * single one there is no telling which camera is wrong. Cameras are counted once however many
+   * frames they delivered, so a fast camera does not outvote the others.
+   */
+  private void crossCheckCameras() {
+    for (final var camera : cameras) {
+      for (int i = 0; i < camera.gatedVisionObservations.size(); ++i) {
+        final var timestamp = camera.gatedVisionObservations.get(i).timestamp();
+        final var atNow = camera.gatedAtNow.get(i);
+        var peers = 0;
+        var agreeing = 0;
+        for (final var other : cameras) {
+          if (other == camera) {
+            continue;
+          }
+          var inWindow = false;
+          var agrees = false;
+          for (int j = 0; j < other.gatedVisionObservations.size() && !agrees; ++j) {
+            if (Math.abs(other.gatedVisionObservations.get(j).timestamp() - timestamp)
+                > ApriltagVisionConfig.GATE_CROSS_CAMERA_WINDOW_SEC) {
+              continue;
+            }
+            inWindow = true;
+            agrees =
+                other.gatedAtNow.get(j).getTranslation().getDistance(atNow.getTranslation())
+                    <= ApriltagVisionConfig.GATE_CROSS_CAMERA_TOLERANCE_METER;
+          }
+          if (inWindow) {
+            ++peers;
+          }
+          if (agrees) {
+            ++agreeing;
+          }
+        }
+        camera.gatedCrossRejected.set(i, peers >= 2 && agreeing * 2 < peers);
       }
-
-      // allGoodVisionObservations.stream()
-      //     .sorted(Comparator.comparingDouble(VisionObservation::timestamp))
-      //     .forEach(Odometry.getInstance()::addVisionObservation);
     }
   }
 
-  private void updateInputs() {
-    casualMidLeftIo.updateInputs(casualMidLeftInputs);
-    casualMidRightIo.updateInputs(casualMidRightInputs);
-    reefBackLeftIo.updateInputs(reefBackLeftInputs);
-    reefBackRightIo.updateInputs(reefBackRightInputs);
-
-    Logger.processInputs(
-        "ApriltagVision/" + CameraId.CASUAL_MID_LEFT.toString(), casualMidLeftInputs);
-    Logger.processInputs(
-        "ApriltagVision/" + CameraId.CASUAL_MID_RIGHT.toString(), casualMidRightInputs);
-    Logger.processInputs(
-        "ApriltagVision/" + CameraId.REEF_BACK_LEFT.toString(), reefBackLeftInputs);
-    Logger.processInputs(
-        "ApriltagVision/" + CameraId.REEF_BACK_RIGHT.toString(), reefBackRightInputs);
-  }
+  /**
+   * Solves one pose from the tag bearings of every camera in the newest frame window, warm started
+   * from the estimate at the end of the window.
+   *
+   * @return Start of the window, per camera poses from there on are replaced by the joint pose, or
+   *     infinity if there is no joint pose this loop
+   */
+  private double solveJointPose() {
+    jointObservation = null;
+    if (!Constants.ENABLE_JOINT_VISION_SOLVE) {
+      return Double.POSITIVE_INFINITY;
+    }
 
-  private void updateRobotInField(
-      CameraId cameraId,
-      ApriltagVisionIOInputsAutoLogged inputs,
-      Pose3d cameraInRobot,
-      boolean isReefCamera) {
-    if (!(inputs.connected
-        && inputs.hasUpdate
-        && inputs.hasTargets
-        && inputs.poseObservations.length != 0
-        && inputs.ids.length != 0
-        && inputs.txTyObservations.length != 0)) {
-      return;
+    var newest = Double.NEGATIVE_INFINITY;
+    for (final var camera : cameras) {
+      if (camera.inputs.connected && camera.inputs.hasUpdate) {
+        for (final var observation : camera.inputs.txTyObservations) {
+          newest = Math.max(newest, observation.timestamp());
+        }
+      }
+    }
+    final var odometry = RobotContainer.getOdometry();
+    if (newest == Double.NEGATIVE_INFINITY
+        || !odometry.getWheeledPoseByTimestamp(newest, jointReference)) {
+      return Double.POSITIVE_INFINITY;
     }
+    final var windowStart = newest - ApriltagVisionConfig.JOINT_WINDOW_SEC;
 
-    for (final var poseObservation : inputs.poseObservations) {
-      if (poseObservation.ambiguity() > ApriltagVisionConfig.MAX_ALLOWABLE_AMBIGUITY) {
+    jointSolver.clear();
+    for (final var camera : cameras) {
+      if (!(camera.inputs.connected && camera.inputs.hasUpdate)) {
         continue;
       }
+      for (final var observation : camera.inputs.txTyObservations) {
+        final var tagInField = tagPoses.pose(observation.id());
+        if (observation.timestamp() < windowStart
+            || tagInField == null
+            || !odometry.getWheeledPoseByTimestamp(observation.timestamp(), jointSample)) {
+          continue;
+        }
+        // Robot at the observation time relative to the robot at the end of the window
+        SE2Util.relative(
+            jointReference[0],
+            jointReference[1],
+            jointReference[2],
+            jointSample[0],
+            jointSample[1],
+            jointSample[2],
+            jointDelta);
+        jointSolver.add(
+            camera.cameraPosition,
+            camera.cameraRotation,
+            jointDelta[0],
+            jointDelta[1],
+            jointDelta[2],
+            tagInField.getX(),
+            tagInField.getY(),
+            tagInField.getZ(),
+            observation.txRad(),
+            observation.tyRad(),
+            observation.distance());
+      }
+    }
+    Logger.recordOutput("ApriltagVision/Joint/Observations", jointSolver.size());
+    if (jointSolver.size() < ApriltagVisionConfig.JOINT_MIN_OBSERVATIONS) {
+      return Double.POSITIVE_INFINITY;
+    }
+
+    SE2Util.relative(
+        wheeledPose.getX(),
+        wheeledPose.getY(),
+        wheeledPose.getRotation().getRadians(),
+        jointReference[0],
+        jointReference[1],
+        jointReference[2],
+        jointDelta);
+    SE2Util.compose(
+        estimatedPose.getX(),
+        estimatedPose.getY(),
+        estimatedPose.getRotation().getRadians(),
+        jointDelta[0],
+        jointDelta[1],
+        jointDelta[2],
+        jointStart);
+    final var solved =
+        jointSolver.solve(
+            jointStart[0],
+            jointStart[1],
+            jointStart[2],
+            ApriltagVisionConfig.JOINT_BEARING_STD_DEV_RAD,
+            ApriltagVisionConfig.JOINT_DISTANCE_STD_DEV_COEFF,
+            ApriltagVisionConfig.JOINT_MAX_ITERATIONS,
+            jointSolution);
+    Logger.recordOutput("ApriltagVision/Joint/Iterations", jointSolver.getIterations());
+    Logger.recordOutput("ApriltagVision/Joint/RmsResidual", jointSolver.getRmsResidual());
+    if (!solved || jointSolver.getRmsResidual() > ApriltagVisionConfig.JOINT_MAX_RMS_RESIDUAL) {
+      return Double.POSITIVE_INFINITY;
+    }
 
-      final var robotInField =
-          poseObservation.cameraInField().transformBy(cameraInRobot.toTransform3d().inverse());
+    final var stdDevX =
+        Math.max(ApriltagVisionConfig.JOINT_MIN_STD_DEV_METER, Math.sqrt(jointSolution[3]));
+    final var stdDevY =
+        Math.max(ApriltagVisionConfig.JOINT_MIN_STD_DEV_METER, Math.sqrt(jointSolution[4]));
+    final var stdDevTheta =
+        Math.max(ApriltagVisionConfig.JOINT_MIN_STD_DEV_RAD, Math.sqrt(jointSolution[5]));
+    final var pose =
+        new Pose2d(jointSolution[0], jointSolution[1], Rotation2d.fromRadians(jointSolution[2]));
+    final var accepted =
+        jointGate.test(
+            newest,
+            jointSolution[0],
+            jointSolution[1],
+            jointSolution[2],
+            stdDevX,
+            stdDevY,
+            stdDevTheta,
+            jointReference,
+            jointStart,
+            estimatedCovariance);
+    Logger.recordOutput("ApriltagVision/Joint/Pose", pose);
+    Logger.recordOutput("ApriltagVision/Joint/Accepted", accepted);
+    if (!accepted) {
+      return Double.POSITIVE_INFINITY;
+    }
+
+    jointObservation =
+        new VisionObservation(newest, pose, VecBuilder.fill(stdDevX, stdDevY, stdDevTheta));
+    return windowStart;
+  }
+
+  /**
+   * Merges the accepted poses of all cameras, each already in time order, into the fusion batch
+   * oldest first, followed by the joint pose if there is one. Past the per loop cap the oldest are
+   * dropped, a burst after a reconnect then cannot stall the replay and the newest poses still get
+   * through.
+   *
+   * @param jointWindowStart Per camera poses from here on are covered by the joint pose
+   * @return Number of dropped poses
+   */
+  private int mergeAcceptedObservations(double jointWindowStart) {
+    fusionBatch.clear();
+
+    var total = 0;
+    for (int c = 0; c < cameras.size(); ++c) {
+      mergeCursor[c] = 0;
+      final var camera = cameras.get(c);
+      for (int i = 0; i < camera.gatedCrossRejected.size(); ++i) {
+        if (isMerged(camera, i, jointWindowStart)) {
+          ++total;
+        }
+      }
+    }
+    final var capacity = fusionBatch.capacity() - (jointObservation != null ? 1 : 0);
+    final var dropped = Math.max(0, total - capacity);
+
+    var toDrop = dropped;
+    while (true) {
+      var next = -1;
+      var nextTimestamp = Double.POSITIVE_INFINITY;
+      for (int c = 0; c < cameras.size(); ++c) {
+        final var camera = cameras.get(c);
+        final var size = camera.gatedVisionObservations.size();
+        while (mergeCursor[c] < size && !isMerged(camera, mergeCursor[c], jointWindowStart)) {
+          ++mergeCursor[c];
+        }
+        if (mergeCursor[c] < size
+            && camera.gatedVisionObservations.get(mergeCursor[c]).timestamp() < nextTimestamp) {
+          next = c;
+          nextTimestamp = camera.gatedVisionObservations.get(mergeCursor[c]).timestamp();
+        }
+      }
+      if (next < 0) {
+        break;
+      }
 
-      if (robotInField.getX() < -ApriltagVisionConfig.FIELD_BORDER_THRESHOLD_METER
-          || robotInField.getX() > Field.LENGTH + ApriltagVisionConfig.FIELD_BORDER_THRESHOLD_METER
-          || robotInField.getY() < -ApriltagVisionConfig.FIELD_BORDER_THRESHOLD_METER
-          || robotInField.getY() > Field.WIDTH + ApriltagVisionConfig.FIELD_BORDER_THRESHOLD_METER
-          || robotInField.getZ() > ApriltagVisionConfig.ROBOT_POSE_Z_THRESHOLD_METER
-          || robotInField.getZ() < -ApriltagVisionConfig.ROBOT_POSE_Z_THRESHOLD_METER) {
-        allBadRobotInField.add(robotInField);
+      final var observation = cameras.get(next).gatedVisionObservations.get(mergeCursor[next]++);
+      if (toDrop > 0) {
+        --toDrop;
         continue;
       }
+      addToFusionBatch(observation);
+    }
 
-      final var xyStdDev =
-          ApriltagVisionConfig.XY_STD_DEV_COEFF
-              * Math.pow(poseObservation.avgDistance(), 2)
-              / poseObservation.tagCount();
-
-      final var thetaStdDev =
-          poseObservation.tagCount() > 1
-              ? ApriltagVisionConfig.THETA_STD_DEV_COEFF
-                  * Math.pow(poseObservation.avgDistance(), 2)
-                  / poseObservation.tagCount()
-              : Double.POSITIVE_INFINITY;
-
-      final var robotInField2d = robotInField.toPose2d();
-      allGoodVisionObservations.add(
-          new VisionObservation(
-              poseObservation.timestamp(),
-              robotInField2d,
-              VecBuilder.fill(xyStdDev, xyStdDev, thetaStdDev)));
-      allGoodRobotInField.add(robotInField);
-      allGoodRobotInField2d.add(robotInField2d);
+    if (jointObservation != null) {
+      addToFusionBatch(jointObservation);
     }
+    return dropped;
+  }
+
+  private boolean isMerged(Camera camera, int index, double jointWindowStart) {
+    return !camera.gatedCrossRejected.get(index)
+        && camera.gatedVisionObservations.get(index).timestamp() < jointWindowStart;
+  }
+
+  private void addToFusionBatch(VisionObservation observation) {
+    final var stdDevs = observation.stdDevs();
+    fusionBatch.add(
+        observation.timestamp(),
+        observation.pose().getX(),
+        observation.pose().getY(),
+        observation.pose().getRotation().getRadians(),
+        stdDevs.get(0, 0),
+        stdDevs.get(1, 0),
+        stdDevs.get(2, 0));
+  }
 
-    for (final var id : inputs.ids) {
-      allUsedTagInField.add(Field.APRILTAG_LAYOUT.getLayout().getTagPose(id).get());
+  public boolean reefCameraHasTagById(int id) {
+    for (final var camera : cameras) {
+      if (camera.hasTagById(id)) {
+        return true;
+      }
     }
+    return false;
+  }
 
-    if (!isReefCamera) {
-      return;
+  private boolean anyCameraHasUpdate() {
+    for (final var camera : cameras) {
+      if (camera.inputs.hasUpdate) {
+        return true;
+      }
     }
+    return false;
+  }
 
-    final var odometry = RobotContainer.getOdometry();
-    final var wheeledPose = odometry.getWheeledPose();
-    final var estimatedPose = odometry.getEstimatedPose();
+  /** IO, inputs and the results of one loop of a single camera. */
+  private final class Camera extends RecursiveAction {
+    private final CameraDescriptor descriptor;
+    private final ApriltagVisionIO io;
+    private final ApriltagVisionIOInputsAutoLogged inputs = new ApriltagVisionIOInputsAutoLogged();
+    private final String inputsKey;
+    private final Alert offlineAlert;
+    private final Pose2d cameraInRobot2d;
+    private final Transform3d robotInCamera;
+    private final Transform2d robotInCamera2d;
+    private final Rotation3d cameraPitch;
+    private final double[] cameraPosition;
+    private final double[] cameraRotation = new double[9];
+    private final double[] wheeledSample = new double[3];
+    private final double[] relativeSample = new double[3];
+    private final double[] expectedSample = new double[3];
+    private final double[] atNowSample = new double[3];
+    private final VisionGate gate = new VisionGate();
+    private final CameraStats stats = new CameraStats();
+    private long expectedTags = TagVisibilityIndex.ALL_TAGS;
+
+    private final List<VisionObservation> goodVisionObservations = new ArrayList<>();
+    private final List<Pose3d> goodRobotInField = new ArrayList<>();
+    private final List<Pose3d> badRobotInField = new ArrayList<>();
+    private final List<Pose3d> usedTagInField = new ArrayList<>();
+    private final List<TagBearing> tagBearings = new ArrayList<>();
+    private final List<SingleTagVisionObservation> singleTagObservations = new ArrayList<>();
+    // Passed the gate, with the pose carried forward to now through wheel odometry
+    private final List<VisionObservation> gatedVisionObservations = new ArrayList<>();
+    private final List<Pose2d> gatedAtNow = new ArrayList<>();
+    private final List<Boolean> gatedCrossRejected = new ArrayList<>();
+    private final List<Pose2d> gateRejectedRobotInField2d = new ArrayList<>();
+
+    private Camera(CameraDescriptor descriptor, ApriltagVisionIO io) {
+      this.descriptor = descriptor;
+      this.io = io;
+      inputsKey = "ApriltagVision/" + descriptor.id().toString();
+      offlineAlert = new Alert(descriptor.id().toString() + " offline!", Alert.AlertType.WARNING);
+      cameraInRobot2d = descriptor.cameraInRobot().toPose2d();
+      robotInCamera = descriptor.cameraInRobot().toTransform3d().inverse();
+      robotInCamera2d = new Transform2d(cameraInRobot2d, Pose2d.kZero);
+      cameraPitch = new Rotation3d(0, descriptor.cameraInRobot().getRotation().getY(), 0);
+      final var cameraInRobot = descriptor.cameraInRobot();
+      cameraPosition =
+          new double[] {cameraInRobot.getX(), cameraInRobot.getY(), cameraInRobot.getZ()};
+      final var rotation = cameraInRobot.getRotation().toMatrix();
+      for (int i = 0; i < 9; ++i) {
+        cameraRotation[i] = rotation.get(i / 3, i % 3);
+      }
+    }
 
-    for (final var observation : inputs.txTyObservations) {
-      final var oldWheeledPose = odometry.getWheeledPoseByTimestamp(observation.timestamp());
+    @Override
+    protected void compute() {
+      process();
+    }
 
-      if (oldWheeledPose.isEmpty()) {
-        continue;
+    private void process() {
+      final var start = System.nanoTime();
+      processInputs();
+      if (inputs.hasUpdate) {
+        stats.processMs.record((System.nanoTime() - start) * 1e-6);
+      }
+    }
+
+    private void processInputs() {
+      goodVisionObservations.clear();
+      goodRobotInField.clear();
+      badRobotInField.clear();
+      usedTagInField.clear();
+      tagBearings.clear();
+      singleTagObservations.clear();
+      gatedVisionObservations.clear();
+      gatedAtNow.clear();
+      gatedCrossRejected.clear();
+      gateRejectedRobotInField2d.clear();
+
+      if (!(inputs.connected
+          && inputs.hasUpdate
+          && inputs.hasTargets
+          && inputs.poseObservations.length != 0
+          && inputs.ids.length != 0
+          && inputs.txTyObservations.length != 0)) {
+        return;
+      }
+
+      // Nothing seen should be in view from the estimate, either the frame or the estimate is wrong
+      final var stdDevScale =
+          anyTagExpected() ? 1.0 : ApriltagVisionConfig.UNEXPECTED_TAG_STD_DEV_SCALE;
+      if (stdDevScale != 1.0) {
+        stats.unexpectedTagFrames++;
       }
-      final var robotRotation =
-          estimatedPose
-              .transformBy(new Transform2d(wheeledPose, oldWheeledPose.get()))
-              .getRotation();
-
-      final var camToTagTranslation =
-          new Pose3d(
-                  Translation3d.kZero, new Rotation3d(0, observation.tyRad(), -observation.txRad()))
-              .transformBy(
-                  new Transform3d(
-                      new Translation3d(observation.distance(), 0, 0), Rotation3d.kZero))
-              .getTranslation()
-              .rotateBy(new Rotation3d(0, cameraInRobot.getRotation().getY(), 0))
-              .toTranslation2d();
-
-      final var camToTagRotation =
-          robotRotation.plus(
-              cameraInRobot.toPose2d().getRotation().plus(camToTagTranslation.getAngle()));
-
-      final var tagInField = Field.APRILTAG_LAYOUT.getLayout().getTagPose(observation.id()).get();
-      final var cameraInFieldTranslation =
-          new Pose2d(tagInField.toPose2d().getTranslation(), camToTagRotation.plus(Rotation2d.kPi))
-              .transformBy(GeomUtil.toTransform2d(camToTagTranslation.getNorm(), 0.0))
-              .getTranslation();
-      var robotInField =
-          new Pose2d(
-                  cameraInFieldTranslation,
-                  robotRotation.plus(cameraInRobot.toPose2d().getRotation()))
-              .transformBy(new Transform2d(cameraInRobot.toPose2d(), Pose2d.kZero));
-      robotInField = new Pose2d(robotInField.getTranslation(), robotRotation);
-
-      var singleTagVisionObservations = allSingleTagVisionObservations.get(cameraId);
-      if (!singleTagVisionObservations.containsKey(observation.id())
-          || observation.timestamp()
-              > singleTagVisionObservations.get(observation.id()).timestamp()) {
-        singleTagVisionObservations.put(
-            observation.id(),
+
+      for (final var poseObservation : inputs.poseObservations) {
+        if (poseObservation.ambiguity() > ApriltagVisionConfig.MAX_ALLOWABLE_AMBIGUITY) {
+          stats.rejectedAmbiguity++;
+          continue;
+        }
+
+        final var robotInField = poseObservation.cameraInField().transformBy(robotInCamera);
+
+        if (robotInField.getX() < -ApriltagVisionConfig.FIELD_BORDER_THRESHOLD_METER
+            || robotInField.getX()
+                > Field.LENGTH + ApriltagVisionConfig.FIELD_BORDER_THRESHOLD_METER
+            || robotInField.getY() < -ApriltagVisionConfig.FIELD_BORDER_THRESHOLD_METER
+            || robotInField.getY() > Field.WIDTH + ApriltagVisionConfig.FIELD_BORDER_THRESHOLD_METER
+            || robotInField.getZ() > ApriltagVisionConfig.ROBOT_POSE_Z_THRESHOLD_METER
+            || robotInField.getZ() < -ApriltagVisionConfig.ROBOT_POSE_Z_THRESHOLD_METER) {
+          stats.rejectedFieldBounds++;
+          badRobotInField.add(robotInField);
+          continue;
+        }
+
+        final var xyStdDev =
+            stdDevScale
+                * descriptor.xyStdDevCoeff()
+                * Math.pow(poseObservation.avgDistance(), 2)
+                / poseObservation.tagCount();
+
+        final var thetaStdDev =
+            poseObservation.tagCount() > 1
+                ? stdDevScale
+                    * descriptor.thetaStdDevCoeff()
+                    * Math.pow(poseObservation.avgDistance(), 2)
+                    / poseObservation.tagCount()
+                : Double.POSITIVE_INFINITY;
+
+        final var visionObservation =
+            new VisionObservation(
+                poseObservation.timestamp(),
+                robotInField.toPose2d(),
+                VecBuilder.fill(xyStdDev, xyStdDev, thetaStdDev));
+        goodVisionObservations.add(visionObservation);
+        goodRobotInField.add(robotInField);
+        gate(visionObservation, xyStdDev, thetaStdDev);
+      }
+
+      for (final var id : inputs.ids) {
+        final var tagInField = tagPoses.pose(id);
+        if (tagInField != null) {
+          usedTagInField.add(tagInField);
+        }
+      }
+
+      if (descriptor.role() != Role.REEF) {
+        return;
+      }
+
+      for (final var observation : inputs.txTyObservations) {
+        if (!TagVisibilityIndex.contains(expectedTags, observation.id())) {
+          stats.unexpectedTagSightings++;
+        }
+        final var tagInField = tagPoses.pose2d(observation.id());
+        if (tagInField == null || !wheeledHistory.sample(observation.timestamp(), wheeledSample)) {
+          continue;
+        }
+        final var oldWheeledPose =
+            new Pose2d(
+                wheeledSample[0], wheeledSample[1], Rotation2d.fromRadians(wheeledSample[2]));
+        final var robotRotation =
+            estimatedPose.transformBy(new Transform2d(wheeledPose, oldWheeledPose)).getRotation();
+
+        final var camToTagTranslation =
+            new Pose3d(
+                    Translation3d.kZero,
+                    new Rotation3d(0, observation.tyRad(), -observation.txRad()))
+                .transformBy(
+                    new Transform3d(
+                        new Translation3d(observation.distance(), 0, 0), Rotation3d.kZero))
+                .getTranslation()
+                .rotateBy(cameraPitch)
+                .toTranslation2d();
+
+        final var camToTagRotation =
+            robotRotation.plus(cameraInRobot2d.getRotation().plus(camToTagTranslation.getAngle()));
+
+        tagBearings.add(
+            new TagBearing(
+                observation.timestamp(),
+                tagInField.getTranslation(),
+                camToTagTranslation.getAngle().getRadians(),
+                camToTagTranslation.getNorm()));
+        final var cameraInFieldTranslation =
+            new Pose2d(tagInField.getTranslation(), camToTagRotation.plus(Rotation2d.kPi))
+                .transformBy(GeomUtil.toTransform2d(camToTagTranslation.getNorm(), 0.0))
+                .getTranslation();
+        var robotInField =
+            new Pose2d(cameraInFieldTranslation, robotRotation.plus(cameraInRobot2d.getRotation()))
+                .transformBy(robotInCamera2d);
+        robotInField = new Pose2d(robotInField.getTranslation(), robotRotation);
+
+        singleTagObservations.add(
             new SingleTagVisionObservation(
                 observation.timestamp(), robotInField, observation.id(), observation.distance()));
       }
     }
-  }
 
-  private boolean singleCameraHasTagById(ApriltagVisionIOInputsAutoLogged inputs, int id) {
-    if (!inputs.connected || inputs.ids == null) {
-      return false;
+    /** Runs the gate against the estimate at the observation time. */
+    private void gate(VisionObservation observation, double xyStdDev, double thetaStdDev) {
+      final var pose = observation.pose();
+      if (!wheeledHistory.sample(observation.timestamp(), wheeledSample)) {
+        // No history to compare against yet, leave it to the estimator
+        gatedVisionObservations.add(observation);
+        gatedAtNow.add(pose);
+        gatedCrossRejected.add(false);
+        return;
+      }
+
+      // Estimated pose at the observation time, wheel odometry carries it back from now
+      SE2Util.relative(
+          wheeledPose.getX(),
+          wheeledPose.getY(),
+          wheeledPose.getRotation().getRadians(),
+          wheeledSample[0],
+          wheeledSample[1],
+          wheeledSample[2],
+          relativeSample);
+      SE2Util.compose(
+          estimatedPose.getX(),
+          estimatedPose.getY(),
+          estimatedPose.getRotation().getRadians(),
+          relativeSample[0],
+          relativeSample[1],
+          relativeSample[2],
+          expectedSample);
+
+      if (!gate.test(
+          observation.timestamp(),
+          pose.getX(),
+          pose.getY(),
+          pose.getRotation().getRadians(),
+          xyStdDev,
+          xyStdDev,
+          thetaStdDev,
+          wheeledSample,
+          expectedSample,
+          estimatedCovariance)) {
+        stats.rejectedGate++;
+        gateRejectedRobotInField2d.add(pose);
+        return;
+      }
+
+      SE2Util.relative(
+          wheeledSample[0],
+          wheeledSample[1],
+          wheeledSample[2],
+          wheeledPose.getX(),
+          wheeledPose.getY(),
+          wheeledPose.getRotation().getRadians(),
+          relativeSample);
+      SE2Util.compose(
+          pose.getX(),
+          pose.getY(),
+          pose.getRotation().getRadians(),
+          relativeSample[0],
+          relativeSample[1],
+          relativeSample[2],
+          atNowSample);
+      gatedVisionObservations.add(observation);
+      gatedAtNow.add(
+          new Pose2d(atNowSample[0], atNowSample[1], Rotation2d.fromRadians(atNowSample[2])));
+      gatedCrossRejected.add(false);
     }
-    return Arrays.stream(inputs.ids).anyMatch(seemedId -> seemedId == id);
-  }
 
-  public boolean reefCameraHasTagById(int id) {
-    return singleCameraHasTagById(reefBackLeftInputs, id)
-        || singleCameraHasTagById(reefBackRightInputs, id)
-        || singleCameraHasTagById(casualMidLeftInputs, id)
-        || singleCameraHasTagById(casualMidRightInputs, id);
-  }
+    /** True if a tag of this frame is expected in view, always while the index is not trusted. */
+    private boolean anyTagExpected() {
+      for (final var id : inputs.ids) {
+        if (TagVisibilityIndex.contains(expectedTags, id)) {
+          return true;
+        }
+      }
+      return false;
+    }
 
-  private boolean anyCameraHasUpdate() {
-    return reefBackLeftInputs.hasUpdate
-        || reefBackRightInputs.hasUpdate
-        || casualMidLeftInputs.hasUpdate
-        || casualMidRightInputs.hasUpdate;
+    private boolean hasTagById(int id) {
+      if (!inputs.connected || inputs.ids == null) {
+        return false;
+      }
+      return Arrays.stream(inputs.ids).anyMatch(seemedId -> seemedId == id);
+    }
   }
 }
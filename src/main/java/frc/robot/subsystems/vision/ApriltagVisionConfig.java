@@ -3,6 +3,10 @@ package frc.robot.subsystems.vision;
 import edu.wpi.first.math.geometry.Pose3d;
 import edu.wpi.first.math.geometry.Rotation3d;
 import edu.wpi.first.math.util.Units;
+import frc.reefscape.Field;
+import frc.robot.subsystems.vision.ApriltagVision.CameraId;
+import frc.robot.subsystems.vision.CameraDescriptor.Role;
+import java.util.List;
 
 class ApriltagVisionConfig {
   static final Pose3d CASUAL_MID_LEFT_IN_ROBOT =
@@ -34,4 +38,81 @@ class ApriltagVisionConfig {
   static final double XY_STD_DEV_COEFF = 0.005;
   static final double THETA_STD_DEV_COEFF = 0.01;
   static final double MAX_ALLOWABLE_AMBIGUITY = 0.4;
+
+  // VisionGate, chi-square 99% quantiles for 2 and 3 degrees of freedom
+  static final double GATE_CHI2_XY = 9.21;
+  static final double GATE_CHI2_XY_THETA = 11.34;
+  static final double GATE_TEMPORAL_WINDOW_SEC = 0.5;
+  static final double GATE_TEMPORAL_TOLERANCE_METER = 0.15;
+  static final double GATE_TEMPORAL_TOLERANCE_RAD = Units.degreesToRadians(5.0);
+  static final int GATE_RECOVERY_STREAK = 5;
+  static final double GATE_STATS_ALPHA = 0.05;
+  static final double GATE_CROSS_CAMERA_WINDOW_SEC = 0.05;
+  static final double GATE_CROSS_CAMERA_TOLERANCE_METER = 0.3;
+
+  // Fusion batch size, a burst after a reconnect beyond this drops its oldest poses
+  static final int MAX_FUSED_OBSERVATIONS_PER_LOOP = 16;
+
+  // JointPoseSolver over the tag bearings of all cameras
+  static final double JOINT_WINDOW_SEC = 0.05;
+  static final int JOINT_MAX_OBSERVATIONS = 64;
+  static final int JOINT_MIN_OBSERVATIONS = 3;
+  static final int JOINT_MAX_ITERATIONS = 10;
+  static final double JOINT_BEARING_STD_DEV_RAD = Units.degreesToRadians(1.0);
+  static final double JOINT_DISTANCE_STD_DEV_COEFF = 0.1;
+  static final double JOINT_MAX_RMS_RESIDUAL = 3.0;
+  static final double JOINT_MIN_STD_DEV_METER = 0.02;
+  static final double JOINT_MIN_STD_DEV_RAD = Units.degreesToRadians(1.0);
+
+  static final TagPoseTable TAG_POSES = new TagPoseTable(Field.APRILTAG_LAYOUT.getLayout());
+
+  // OV9281 with a 75 degree diagonal lens at 1280x800
+  private static final double OV9281_HALF_FOV_TAN_PER_PIXEL =
+      Math.tan(Units.degreesToRadians(75.0) / 2.0) / Math.hypot(1280.0, 800.0);
+  static final double CAMERA_HORIZONTAL_FOV_RAD =
+      2.0 * Math.atan(OV9281_HALF_FOV_TAN_PER_PIXEL * 1280.0);
+  static final double CAMERA_VERTICAL_FOV_RAD =
+      2.0 * Math.atan(OV9281_HALF_FOV_TAN_PER_PIXEL * 800.0);
+
+  // TagVisibilityIndex resolution and range
+  static final double VISIBILITY_CELL_METER = 0.5;
+  static final int VISIBILITY_HEADING_BINS = 16;
+  static final double VISIBILITY_MAX_DISTANCE_METER = 7.0;
+  // The index is only trusted while the estimate is at least this certain and vision confirmed it
+  // this recently
+  static final double VISIBILITY_TRUST_STD_DEV_METER = 0.5;
+  static final double VISIBILITY_TRUST_MAX_VISION_AGE_SEC = 1.0;
+  // Poses from frames without any expected tag are kept, only weighted down
+  static final double UNEXPECTED_TAG_STD_DEV_SCALE = 4.0;
+  // Sim cameras with nothing in view still render every this many loops to stay connected
+  static final int SIM_IDLE_RENDER_DIVISOR = 5;
+
+  static final List<CameraDescriptor> CAMERAS =
+      List.of(
+          new CameraDescriptor(
+              CameraId.CASUAL_MID_LEFT,
+              CASUAL_MID_LEFT_IN_ROBOT,
+              Role.REEF,
+              XY_STD_DEV_COEFF,
+              THETA_STD_DEV_COEFF),
+          new CameraDescriptor(
+              CameraId.CASUAL_MID_RIGHT,
+              CASUAL_MID_RIGHT_IN_ROBOT,
+              Role.REEF,
+              XY_STD_DEV_COEFF,
+              THETA_STD_DEV_COEFF),
+          new CameraDescriptor(
+              CameraId.REEF_BACK_LEFT,
+              REEF_BACK_LEFT_IN_ROBOT,
+              Role.REEF,
+              XY_STD_DEV_COEFF,
+              THETA_STD_DEV_COEFF),
+          new CameraDescriptor(
+              CameraId.REEF_BACK_RIGHT,
+              REEF_BACK_RIGHT_IN_ROBOT,
+              Role.REEF,
+              XY_STD_DEV_COEFF,
+              THETA_STD_DEV_COEFF));
+
+  static final TagVisibilityIndex TAG_VISIBILITY = new TagVisibilityIndex(CAMERAS, TAG_POSES);
 }
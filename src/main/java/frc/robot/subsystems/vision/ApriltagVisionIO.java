@@ -14,6 +14,9 @@ public interface ApriltagVisionIO {
     public int[] ids;
 
     public TxTyObservation[] txTyObservations;
+
+    // Capture to receive time of every frame drained this loop
+    public double[] frameLatenciesSec;
   }
 
   record PoseObservation(
@@ -26,5 +29,6 @@ public interface ApriltagVisionIO {
     inputs.poseObservations = new PoseObservation[0];
     inputs.ids = new int[0];
     inputs.txTyObservations = new TxTyObservation[0];
+    inputs.frameLatenciesSec = new double[0];
   }
 }
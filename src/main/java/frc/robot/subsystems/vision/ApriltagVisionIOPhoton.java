@@ -1,23 +1,53 @@
 package frc.robot.subsystems.vision;
 
-import edu.wpi.first.apriltag.AprilTagFieldLayout;
 import edu.wpi.first.math.util.Units;
+import edu.wpi.first.networktables.NetworkTableEvent;
+import edu.wpi.first.networktables.NetworkTableInstance;
+import edu.wpi.first.networktables.NetworkTableListenerPoller;
+import edu.wpi.first.util.WPIUtilJNI;
+import edu.wpi.first.wpilibj.Timer;
 import frc.lib.math.GeomUtil;
-import frc.reefscape.Field;
+import frc.lib.utils.ObjectQueue;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashSet;
 import lombok.experimental.ExtensionMethod;
 import org.photonvision.PhotonCamera;
+import org.photonvision.targeting.PhotonPipelineResult;
 
+/**
+ * Each camera owns a listener thread that wakes up when PhotonVision publishes a frame, decodes it
+ * into observations and hands them to the main loop through an {@link ObjectQueue}, so {@link
+ * #updateInputs} only drains ready frames.
+ */
 @ExtensionMethod({GeomUtil.class})
 public class ApriltagVisionIOPhoton implements ApriltagVisionIO {
+  // ~0.7 s of frames at 45 FPS, only filled up if the main loop stalls
+  private static final int FRAME_QUEUE_CAPACITY = 32;
+  // Upper bound of a wait, so a camera that reconnects is picked up again
+  private static final double LISTENER_TIMEOUT_SEC = 0.1;
+
   protected final PhotonCamera camera;
-  private final AprilTagFieldLayout apriltagLayout = Field.APRILTAG_LAYOUT.getLayout();
+  private final TagPoseTable tagPoses = ApriltagVisionConfig.TAG_POSES;
+  private final ObjectQueue<Frame> frames = new ObjectQueue<>(FRAME_QUEUE_CAPACITY);
+
+  /** One decoded pipeline result, poseObservation is null if no pose could be solved. */
+  private record Frame(
+      double latencySec,
+      boolean hasTargets,
+      PoseObservation poseObservation,
+      int[] ids,
+      TxTyObservation[] txTyObservations) {}
 
   public ApriltagVisionIOPhoton(String cameraName) {
     PhotonCamera.setVersionCheckEnabled(false);
 
     camera = new PhotonCamera(cameraName);
+
+    final var listener = new Thread(this::runListener, "ApriltagVision/" + cameraName);
+    listener.setDaemon(true);
+    listener.start();
   }
 
   @Override
@@ -27,89 +57,44 @@ public class ApriltagVisionIOPhoton implements ApriltagVisionIO {
     inputs.hasUpdate = false;
 
     if (!inputs.connected) {
+      frames.clear();
       inputs.hasTargets = false;
       inputs.poseObservations = new PoseObservation[0];
       inputs.ids = new int[0];
       inputs.txTyObservations = new TxTyObservation[0];
+      inputs.frameLatenciesSec = new double[0];
       return;
     }
 
-    final var results = camera.getAllUnreadResults();
-    if (results.isEmpty()) {
+    // Only what was ready when the loop started, frames arriving meanwhile wait for the next loop
+    final var frameCount = frames.size();
+    if (frameCount == 0) {
       return;
     }
 
     inputs.hasUpdate = true;
     inputs.hasTargets = false;
 
-    final var ids = new HashSet<Short>();
-    final var poseObservations = new ArrayList<PoseObservation>(results.size());
-    final var txTyObservations = new ArrayList<TxTyObservation>(results.size() * 2);
+    final var ids = new HashSet<Integer>();
+    final var poseObservations = new ArrayList<PoseObservation>(frameCount);
+    final var txTyObservations = new ArrayList<TxTyObservation>(frameCount * 2);
+    inputs.frameLatenciesSec = new double[frameCount];
 
-    resultsLoop:
-    for (final var result : results) {
-      if (!result.hasTargets()) {
+    for (int i = 0; i < frameCount; ++i) {
+      final var frame = frames.poll();
+      inputs.frameLatenciesSec[i] = frame.latencySec();
+      if (!frame.hasTargets()) {
         continue;
-      } else {
-        inputs.hasTargets = true;
       }
+      inputs.hasTargets = true;
 
-      if (result.multitagResult.isPresent()) {
-        final var multiTagResult = result.multitagResult.get();
-
-        var sumDistance = 0.0;
-        final var cameraInField = multiTagResult.estimatedPose.best.toPose3d();
-        for (final var id : multiTagResult.fiducialIDsUsed) {
-          final var tagPose = apriltagLayout.getTagPose((int) id);
-          if (tagPose.isEmpty()) {
-            continue resultsLoop;
-          }
-          sumDistance += cameraInField.getTranslation().getDistance(tagPose.get().getTranslation());
-        }
-
-        final var tagCount = multiTagResult.fiducialIDsUsed.size();
-        poseObservations.add(
-            new PoseObservation(
-                result.getTimestampSeconds(),
-                cameraInField,
-                multiTagResult.estimatedPose.ambiguity,
-                tagCount,
-                sumDistance / tagCount));
-        ids.addAll(multiTagResult.fiducialIDsUsed);
-      } else {
-        final var singleTagTarget = result.getBestTarget();
-
-        final var apriltagIdUsed = singleTagTarget.getFiducialId();
-        final var tagInField = apriltagLayout.getTagPose(apriltagIdUsed);
-        final var tagInCamera = singleTagTarget.getBestCameraToTarget();
-        final var id = singleTagTarget.getFiducialId();
-
-        if (tagInField.isPresent()) {
-          final var cameraInField = tagInField.get().plus(tagInCamera.inverse());
-          poseObservations.add(
-              new PoseObservation(
-                  result.getTimestampSeconds(),
-                  cameraInField,
-                  singleTagTarget.getPoseAmbiguity(),
-                  1,
-                  cameraInField.getTranslation().getDistance(tagInField.get().getTranslation())));
-          ids.add((short) id);
-        }
+      if (frame.poseObservation() != null) {
+        poseObservations.add(frame.poseObservation());
       }
-
-      for (final var target : result.getTargets()) {
-        if (apriltagLayout.getTagPose(target.getFiducialId()).isEmpty()) {
-          continue;
-        }
-
-        txTyObservations.add(
-            new TxTyObservation(
-                result.getTimestampSeconds(),
-                target.getFiducialId(),
-                Units.degreesToRadians(target.getYaw()),
-                Units.degreesToRadians(target.getPitch()),
-                target.getBestCameraToTarget().getTranslation().getNorm()));
+      for (final var id : frame.ids()) {
+        ids.add(id);
       }
+      Collections.addAll(txTyObservations, frame.txTyObservations());
     }
 
     inputs.poseObservations = poseObservations.toArray(new PoseObservation[0]);
@@ -122,4 +107,96 @@ public class ApriltagVisionIOPhoton implements ApriltagVisionIO {
 
     inputs.txTyObservations = txTyObservations.toArray(new TxTyObservation[0]);
   }
+
+  private void runListener() {
+    try (var poller = new NetworkTableListenerPoller(NetworkTableInstance.getDefault())) {
+      poller.addListener(
+          camera.getCameraTable().getRawTopic("rawBytes"),
+          EnumSet.of(NetworkTableEvent.Kind.kValueAll));
+      while (!Thread.currentThread().isInterrupted()) {
+        WPIUtilJNI.waitForObjectTimeout(poller.getHandle(), LISTENER_TIMEOUT_SEC);
+        poller.readQueue();
+        for (final var result : camera.getAllUnreadResults()) {
+          frames.offer(decode(result, Timer.getFPGATimestamp() - result.getTimestampSeconds()));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private Frame decode(PhotonPipelineResult result, double latencySec) {
+    if (!result.hasTargets()) {
+      return new Frame(latencySec, false, null, new int[0], new TxTyObservation[0]);
+    }
+
+    if (result.multitagResult.isPresent()) {
+      final var multiTagResult = result.multitagResult.get();
+
+      var sumDistance = 0.0;
+      final var cameraInField = multiTagResult.estimatedPose.best.toPose3d();
+      final var ids = new int[multiTagResult.fiducialIDsUsed.size()];
+      for (int i = 0; i < ids.length; ++i) {
+        ids[i] = multiTagResult.fiducialIDsUsed.get(i);
+        final var tagPose = tagPoses.pose(ids[i]);
+        if (tagPose == null) {
+          return new Frame(latencySec, true, null, new int[0], new TxTyObservation[0]);
+        }
+        sumDistance += cameraInField.getTranslation().getDistance(tagPose.getTranslation());
+      }
+
+      return new Frame(
+          latencySec,
+          true,
+          new PoseObservation(
+              result.getTimestampSeconds(),
+              cameraInField,
+              multiTagResult.estimatedPose.ambiguity,
+              ids.length,
+              sumDistance / ids.length),
+          ids,
+          decodeTxTy(result));
+    }
+
+    final var singleTagTarget = result.getBestTarget();
+
+    final var id = singleTagTarget.getFiducialId();
+    final var tagInField = tagPoses.pose(id);
+    final var tagInCamera = singleTagTarget.getBestCameraToTarget();
+
+    if (tagInField == null) {
+      return new Frame(latencySec, true, null, new int[0], decodeTxTy(result));
+    }
+
+    final var cameraInField = tagInField.plus(tagInCamera.inverse());
+    return new Frame(
+        latencySec,
+        true,
+        new PoseObservation(
+            result.getTimestampSeconds(),
+            cameraInField,
+            singleTagTarget.getPoseAmbiguity(),
+            1,
+            cameraInField.getTranslation().getDistance(tagInField.getTranslation())),
+        new int[] {id},
+        decodeTxTy(result));
+  }
+
+  private TxTyObservation[] decodeTxTy(PhotonPipelineResult result) {
+    final var txTyObservations = new ArrayList<TxTyObservation>(result.getTargets().size());
+    for (final var target : result.getTargets()) {
+      if (!tagPoses.has(target.getFiducialId())) {
+        continue;
+      }
+
+      txTyObservations.add(
+          new TxTyObservation(
+              result.getTimestampSeconds(),
+              target.getFiducialId(),
+              Units.degreesToRadians(target.getYaw()),
+              Units.degreesToRadians(target.getPitch()),
+              target.getBestCameraToTarget().getTranslation().getNorm()));
+    }
+    return txTyObservations.toArray(new TxTyObservation[0]);
+  }
 }
@@ -1,37 +1,32 @@
 package frc.robot.subsystems.vision;
 
-import edu.wpi.first.math.geometry.Pose2d;
 import edu.wpi.first.math.geometry.Transform3d;
 import frc.reefscape.Field;
-import java.util.function.Supplier;
 import org.photonvision.simulation.PhotonCameraSim;
 import org.photonvision.simulation.SimCameraProperties;
-import org.photonvision.simulation.VisionSystemSim;
 
 public class ApriltagVisionIOPhotonSim extends ApriltagVisionIOPhoton {
-  private final Supplier<Pose2d> poseSupplier;
-  private final VisionSystemSim visionSystemSim;
+  private final VisionSimScheduler scheduler;
 
-  public ApriltagVisionIOPhotonSim(
+  ApriltagVisionIOPhotonSim(
       String cameraName,
+      int cameraIndex,
       SimCameraProperties simCameraProperties,
       Transform3d robot2Camera,
-      VisionSystemSim visionSystemSim,
-      Supplier<Pose2d> poseSupplier) {
+      VisionSimScheduler scheduler) {
     super(cameraName);
-    this.poseSupplier = poseSupplier;
 
     var sim =
         new PhotonCameraSim(super.camera, simCameraProperties, Field.APRILTAG_LAYOUT.getLayout());
     sim.enableProcessedStream(true);
 
-    this.visionSystemSim = visionSystemSim;
-    this.visionSystemSim.addCamera(sim, robot2Camera);
+    this.scheduler = scheduler;
+    this.scheduler.addCamera("apriltag/" + cameraName, cameraIndex, sim, robot2Camera);
   }
 
   @Override
   public void updateInputs(ApriltagVisionIOInputs inputs) {
-    visionSystemSim.update(poseSupplier.get());
+    scheduler.update();
     super.updateInputs(inputs);
   }
 }
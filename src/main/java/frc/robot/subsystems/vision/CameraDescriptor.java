@@ -0,0 +1,26 @@
+package frc.robot.subsystems.vision;
+
+import edu.wpi.first.math.geometry.Pose3d;
+import frc.robot.subsystems.vision.ApriltagVision.CameraId;
+
+/**
+ * Everything {@link ApriltagVision} needs to know about one camera, see {@link
+ * ApriltagVisionConfig#CAMERAS}.
+ *
+ * @param cameraInRobot Extrinsics
+ * @param xyStdDevCoeff Translation std dev per squared meter of average tag distance
+ * @param thetaStdDevCoeff Heading std dev per squared meter of average tag distance
+ */
+record CameraDescriptor(
+    CameraId id,
+    Pose3d cameraInRobot,
+    Role role,
+    double xyStdDevCoeff,
+    double thetaStdDevCoeff) {
+  enum Role {
+    /** Multi-tag field poses only. */
+    GLOBAL,
+    /** Also feeds tx/ty single tag poses for reef alignment. */
+    REEF
+  }
+}
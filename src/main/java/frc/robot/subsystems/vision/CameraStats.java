@@ -0,0 +1,67 @@
+package frc.robot.subsystems.vision;
+
+import frc.lib.utils.Histogram;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Per camera latency, throughput and rejection counts, accumulated every loop and logged once per
+ * {@link #PERIOD_SEC} so a match log shows where poses go wrong without per loop bandwidth.
+ */
+final class CameraStats {
+  private static final double PERIOD_SEC = 1.0;
+
+  // Capture to receive, 5 ms to ~430 ms
+  final Histogram latencyMs = Histogram.exponential(5.0, 1.5, 12);
+  // Pose processing of one loop, 0.05 ms to ~100 ms
+  final Histogram processMs = Histogram.exponential(0.05, 2.0, 12);
+  int frames = 0;
+  int accepted = 0;
+  int rejectedAmbiguity = 0;
+  int rejectedFieldBounds = 0;
+  int rejectedGate = 0;
+  int rejectedCrossCamera = 0;
+  // Seen although the visibility index did not expect them, kept but weighted down
+  int unexpectedTagFrames = 0;
+  int unexpectedTagSightings = 0;
+
+  private double periodStart = Double.NaN;
+
+  /** Logs and resets everything if a period has passed. */
+  void logPeriodically(String prefix, double timestamp) {
+    if (Double.isNaN(periodStart)) {
+      periodStart = timestamp;
+    }
+    final var elapsed = timestamp - periodStart;
+    if (elapsed < PERIOD_SEC) {
+      return;
+    }
+
+    Logger.recordOutput(prefix + "/Stats/FramesPerSec", frames / elapsed);
+    Logger.recordOutput(prefix + "/Stats/LatencyMsBuckets", latencyMs.getCounts());
+    Logger.recordOutput(prefix + "/Stats/LatencyMsP50", latencyMs.quantile(0.5));
+    Logger.recordOutput(prefix + "/Stats/LatencyMsP95", latencyMs.quantile(0.95));
+    Logger.recordOutput(prefix + "/Stats/LatencyMsMax", latencyMs.getMax());
+    Logger.recordOutput(prefix + "/Stats/ProcessMsBuckets", processMs.getCounts());
+    Logger.recordOutput(prefix + "/Stats/ProcessMsP95", processMs.quantile(0.95));
+    Logger.recordOutput(prefix + "/Stats/ProcessMsMax", processMs.getMax());
+    Logger.recordOutput(prefix + "/Stats/Accepted", accepted);
+    Logger.recordOutput(prefix + "/Stats/RejectedAmbiguity", rejectedAmbiguity);
+    Logger.recordOutput(prefix + "/Stats/RejectedFieldBounds", rejectedFieldBounds);
+    Logger.recordOutput(prefix + "/Stats/RejectedGate", rejectedGate);
+    Logger.recordOutput(prefix + "/Stats/RejectedCrossCamera", rejectedCrossCamera);
+    Logger.recordOutput(prefix + "/Stats/UnexpectedTagFrames", unexpectedTagFrames);
+    Logger.recordOutput(prefix + "/Stats/UnexpectedTagSightings", unexpectedTagSightings);
+
+    periodStart = timestamp;
+    latencyMs.reset();
+    processMs.reset();
+    frames = 0;
+    accepted = 0;
+    rejectedAmbiguity = 0;
+    rejectedFieldBounds = 0;
+    rejectedGate = 0;
+    rejectedCrossCamera = 0;
+    unexpectedTagFrames = 0;
+    unexpectedTagSightings = 0;
+  }
+}
@@ -0,0 +1,297 @@
+package frc.robot.subsystems.vision;
+
+import java.util.Arrays;
+
+/**
+ * Solves one robot pose from the tag bearings of every camera in a short frame window by iterative
+ * least squares. Each observation is a tag center seen at yaw/pitch (PhotonVision convention, yaw
+ * positive right, pitch positive up) and a rough distance, from a camera with known extrinsics, at
+ * a robot pose that differs from the solved one by a known odometry delta. Residuals are weighted
+ * by their std devs and a Huber loss, the pose starts from a warm start and refines with damped
+ * Gauss-Newton until the robust cost stops improving. Allocation-free after construction, not
+ * thread-safe.
+ */
+final class JointPoseSolver {
+  // Camera xyz, camera rotation (row major), delta x, y, theta, tag xyz, yaw, pitch, distance
+  private static final int ROW = 21;
+  private static final int RESIDUALS_PER_ROW = 3;
+  private static final double HUBER_THRESHOLD = 1.5;
+  private static final double DAMPING = 1e-6;
+  private static final double STEP = 1e-6;
+  private static final double CONVERGED_STEP = 1e-6;
+  private static final double CONVERGED_RELATIVE_COST = 1e-4;
+
+  private final double[] rows;
+  private final int capacity;
+  private int size = 0;
+
+  private final double[] residuals;
+  private final double[] plus;
+  private final double[] minus;
+  private final double[] jacobian;
+  private final double[] weights;
+  private final double[] pose = new double[3];
+  private final double[] lastPose = new double[3];
+  private final double[] probe = new double[3];
+  private final double[] hessian = new double[9];
+  private final double[] inverse = new double[9];
+  private final double[] gradient = new double[3];
+
+  private double bearingStdDev = 1.0;
+  private double distanceStdDevCoeff = 1.0;
+  private int iterations = 0;
+  private double rmsResidual = Double.NaN;
+
+  JointPoseSolver(int maxObservations) {
+    capacity = maxObservations;
+    rows = new double[maxObservations * ROW];
+    residuals = new double[maxObservations * RESIDUALS_PER_ROW];
+    plus = new double[maxObservations * RESIDUALS_PER_ROW];
+    minus = new double[maxObservations * RESIDUALS_PER_ROW];
+    jacobian = new double[maxObservations * RESIDUALS_PER_ROW * 3];
+    weights = new double[maxObservations * RESIDUALS_PER_ROW];
+  }
+
+  void clear() {
+    size = 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Adds one tag observation.
+   *
+   * @param cameraInRobot x, y, z of the camera in the robot frame
+   * @param cameraRotation Camera rotation in the robot frame, 3x3 row major
+   * @param deltaX Forward offset of the robot at the observation time from the solved pose
+   * @param deltaY Left offset of the robot at the observation time from the solved pose
+   * @param deltaTheta Heading of the robot at the observation time relative to the solved pose
+   * @return false if full
+   */
+  boolean add(
+      double[] cameraInRobot,
+      double[] cameraRotation,
+      double deltaX,
+      double deltaY,
+      double deltaTheta,
+      double tagX,
+      double tagY,
+      double tagZ,
+      double yawRad,
+      double pitchRad,
+      double distanceMeter) {
+    if (size == capacity) {
+      return false;
+    }
+    final var o = size * ROW;
+    System.arraycopy(cameraInRobot, 0, rows, o, 3);
+    System.arraycopy(cameraRotation, 0, rows, o + 3, 9);
+    rows[o + 12] = deltaX;
+    rows[o + 13] = deltaY;
+    rows[o + 14] = deltaTheta;
+    rows[o + 15] = tagX;
+    rows[o + 16] = tagY;
+    rows[o + 17] = tagZ;
+    rows[o + 18] = yawRad;
+    rows[o + 19] = pitchRad;
+    rows[o + 20] = distanceMeter;
+    size++;
+    return true;
+  }
+
+  /**
+   * Solves the pose. Stops once the step or the relative change of the robust cost is negligible,
+   * at the iteration limit the last iterate is returned, check {@link #getRmsResidual()}.
+   *
+   * @param bearingStdDevRad Std dev of yaw and pitch
+   * @param distanceStdDevCoeff Std dev of the distance per meter of distance
+   * @param out Receives x, y, theta and their variances at {@code out[0..5]}
+   * @return false if the problem is underdetermined
+   */
+  boolean solve(
+      double initialX,
+      double initialY,
+      double initialTheta,
+      double bearingStdDevRad,
+      double distanceStdDevCoeff,
+      int maxIterations,
+      double[] out) {
+    this.bearingStdDev = bearingStdDevRad;
+    this.distanceStdDevCoeff = distanceStdDevCoeff;
+    iterations = 0;
+    rmsResidual = Double.NaN;
+    final var m = size * RESIDUALS_PER_ROW;
+    if (m <= 3) {
+      return false;
+    }
+
+    pose[0] = initialX;
+    pose[1] = initialY;
+    pose[2] = initialTheta;
+    var converged = false;
+    var lastCost = Double.POSITIVE_INFINITY;
+    while (iterations < maxIterations && !converged) {
+      evaluate(pose, residuals);
+      var cost = 0.0;
+      for (int i = 0; i < m; ++i) {
+        final var magnitude = Math.abs(residuals[i]);
+        weights[i] = magnitude <= HUBER_THRESHOLD ? 1.0 : HUBER_THRESHOLD / magnitude;
+        cost +=
+            magnitude <= HUBER_THRESHOLD
+                ? 0.5 * magnitude * magnitude
+                : HUBER_THRESHOLD * (magnitude - 0.5 * HUBER_THRESHOLD);
+      }
+      if (iterations > 0 && lastCost - cost <= CONVERGED_RELATIVE_COST * lastCost) {
+        if (cost > lastCost) {
+          // The last step overshot, keep the iterate before it
+          System.arraycopy(lastPose, 0, pose, 0, 3);
+        }
+        break;
+      }
+      lastCost = cost;
+      System.arraycopy(pose, 0, lastPose, 0, 3);
+      iterations++;
+      buildNormalEquations(m);
+      for (int d = 0; d < 3; ++d) {
+        hessian[d * 4] += DAMPING;
+      }
+      if (!invert(hessian, inverse)) {
+        return false;
+      }
+      var stepNorm = 0.0;
+      for (int d = 0; d < 3; ++d) {
+        final var step =
+            -(inverse[d * 3] * gradient[0]
+                + inverse[d * 3 + 1] * gradient[1]
+                + inverse[d * 3 + 2] * gradient[2]);
+        pose[d] += step;
+        stepNorm += step * step;
+      }
+      converged = Math.sqrt(stepNorm) < CONVERGED_STEP;
+    }
+
+    // Covariance at the solution, scaled up if the residuals are larger than the noise model
+    evaluate(pose, residuals);
+    var sumSq = 0.0;
+    for (int i = 0; i < m; ++i) {
+      weights[i] = 1.0;
+      sumSq += residuals[i] * residuals[i];
+    }
+    rmsResidual = Math.sqrt(sumSq / m);
+    buildNormalEquations(m);
+    if (!invert(hessian, inverse)) {
+      return false;
+    }
+    final var scale = Math.max(1.0, sumSq / (m - 3));
+    out[0] = pose[0];
+    out[1] = pose[1];
+    out[2] = Math.atan2(Math.sin(pose[2]), Math.cos(pose[2]));
+    out[3] = inverse[0] * scale;
+    out[4] = inverse[4] * scale;
+    out[5] = inverse[8] * scale;
+    return true;
+  }
+
+  int getIterations() {
+    return iterations;
+  }
+
+  /** Root mean square of the normalized residuals of the last solve. */
+  double getRmsResidual() {
+    return rmsResidual;
+  }
+
+  /** Fills hessian with JtWJ and gradient with JtWr by central differences. */
+  private void buildNormalEquations(int m) {
+    for (int d = 0; d < 3; ++d) {
+      System.arraycopy(pose, 0, probe, 0, 3);
+      probe[d] += STEP;
+      evaluate(probe, plus);
+      probe[d] -= 2.0 * STEP;
+      evaluate(probe, minus);
+      for (int i = 0; i < m; ++i) {
+        jacobian[i * 3 + d] = (plus[i] - minus[i]) / (2.0 * STEP);
+      }
+    }
+
+    Arrays.fill(hessian, 0.0);
+    Arrays.fill(gradient, 0.0);
+    for (int i = 0; i < m; ++i) {
+      final var w = weights[i];
+      for (int a = 0; a < 3; ++a) {
+        final var ja = jacobian[i * 3 + a] * w;
+        gradient[a] += ja * residuals[i];
+        for (int b = 0; b < 3; ++b) {
+          hessian[a * 3 + b] += ja * jacobian[i * 3 + b];
+        }
+      }
+    }
+  }
+
+  /** Normalized residuals of every observation for a candidate pose. */
+  private void evaluate(double[] candidate, double[] out) {
+    final var cos0 = Math.cos(candidate[2]);
+    final var sin0 = Math.sin(candidate[2]);
+    for (int k = 0; k < size; ++k) {
+      final var o = k * ROW;
+      // Robot pose at the observation time
+      final var robotX = candidate[0] + rows[o + 12] * cos0 - rows[o + 13] * sin0;
+      final var robotY = candidate[1] + rows[o + 12] * sin0 + rows[o + 13] * cos0;
+      final var robotTheta = candidate[2] + rows[o + 14];
+      final var cos = Math.cos(robotTheta);
+      final var sin = Math.sin(robotTheta);
+
+      final var dx = rows[o + 15] - (robotX + rows[o] * cos - rows[o + 1] * sin);
+      final var dy = rows[o + 16] - (robotY + rows[o] * sin + rows[o + 1] * cos);
+      final var dz = rows[o + 17] - rows[o + 2];
+
+      // Columns of the camera rotation in the field are its axes: forward, left, up
+      final var forward =
+          (cos * rows[o + 3] - sin * rows[o + 6]) * dx
+              + (sin * rows[o + 3] + cos * rows[o + 6]) * dy
+              + rows[o + 9] * dz;
+      final var left =
+          (cos * rows[o + 4] - sin * rows[o + 7]) * dx
+              + (sin * rows[o + 4] + cos * rows[o + 7]) * dy
+              + rows[o + 10] * dz;
+      final var up =
+          (cos * rows[o + 5] - sin * rows[o + 8]) * dx
+              + (sin * rows[o + 5] + cos * rows[o + 8]) * dy
+              + rows[o + 11] * dz;
+
+      final var r = k * RESIDUALS_PER_ROW;
+      out[r] = wrap(Math.atan2(-left, forward) - rows[o + 18]) / bearingStdDev;
+      out[r + 1] = wrap(Math.atan2(up, forward) - rows[o + 19]) / bearingStdDev;
+      out[r + 2] =
+          (Math.sqrt(dx * dx + dy * dy + dz * dz) - rows[o + 20])
+              / Math.max(1e-3, distanceStdDevCoeff * rows[o + 20]);
+    }
+  }
+
+  private static double wrap(double angle) {
+    return Math.atan2(Math.sin(angle), Math.cos(angle));
+  }
+
+  /** Inverse of a 3x3 matrix through its adjugate, false if singular. */
+  private static boolean invert(double[] m, double[] out) {
+    final var c00 = m[4] * m[8] - m[5] * m[7];
+    final var c01 = m[2] * m[7] - m[1] * m[8];
+    final var c02 = m[1] * m[5] - m[2] * m[4];
+    final var det = m[0] * c00 + m[3] * c01 + m[6] * c02;
+    if (!(Math.abs(det) > 1e-12)) {
+      return false;
+    }
+    out[0] = c00 / det;
+    out[1] = c01 / det;
+    out[2] = c02 / det;
+    out[3] = (m[5] * m[6] - m[3] * m[8]) / det;
+    out[4] = (m[0] * m[8] - m[2] * m[6]) / det;
+    out[5] = (m[2] * m[3] - m[0] * m[5]) / det;
+    out[6] = (m[3] * m[7] - m[4] * m[6]) / det;
+    out[7] = (m[1] * m[6] - m[0] * m[7]) / det;
+    out[8] = (m[0] * m[4] - m[1] * m[3]) / det;
+    return true;
+  }
+}
@@ -0,0 +1,115 @@
+package frc.robot.subsystems.vision;
+
+import java.util.Arrays;
+
+/**
+ * Dense, allocation-free store of the latest single tag robot pose per camera and tag ID. Writers
+ * fill a pending table during the loop, {@link #publish()} copies it into the snapshot that all
+ * readers see, so every reader of one loop gets the same data regardless of call order.
+ */
+public final class SingleTagPoseStore {
+  private final int stride;
+  private final double[] pendingTimestamp;
+  private final double[] pendingX;
+  private final double[] pendingY;
+  private final double[] pendingTheta;
+  private final double[] pendingDistance;
+  private final double[] timestamp;
+  private final double[] x;
+  private final double[] y;
+  private final double[] theta;
+  private final double[] distance;
+
+  /**
+   * Creates an empty store.
+   *
+   * @param cameraCount Number of cameras, indexed from 0
+   * @param maxTagId Largest tag ID, IDs start at 1
+   */
+  public SingleTagPoseStore(int cameraCount, int maxTagId) {
+    stride = maxTagId + 1;
+    final var size = cameraCount * stride;
+    pendingTimestamp = new double[size];
+    pendingX = new double[size];
+    pendingY = new double[size];
+    pendingTheta = new double[size];
+    pendingDistance = new double[size];
+    timestamp = new double[size];
+    x = new double[size];
+    y = new double[size];
+    theta = new double[size];
+    distance = new double[size];
+    clear();
+  }
+
+  /**
+   * Records an observation into the pending table.
+   *
+   * @return false if the slot already holds a newer one or the tag ID is out of range
+   */
+  public boolean add(
+      int camera,
+      int tagId,
+      double observationTimestamp,
+      double poseX,
+      double poseY,
+      double poseTheta,
+      double tagDistance) {
+    if (tagId <= 0 || tagId >= stride) {
+      return false;
+    }
+    final var i = camera * stride + tagId;
+    if (pendingTimestamp[i] >= observationTimestamp) {
+      return false;
+    }
+    pendingTimestamp[i] = observationTimestamp;
+    pendingX[i] = poseX;
+    pendingY[i] = poseY;
+    pendingTheta[i] = poseTheta;
+    pendingDistance[i] = tagDistance;
+    return true;
+  }
+
+  /** Makes everything added so far visible to readers. */
+  public void publish() {
+    System.arraycopy(pendingTimestamp, 0, timestamp, 0, timestamp.length);
+    System.arraycopy(pendingX, 0, x, 0, x.length);
+    System.arraycopy(pendingY, 0, y, 0, y.length);
+    System.arraycopy(pendingTheta, 0, theta, 0, theta.length);
+    System.arraycopy(pendingDistance, 0, distance, 0, distance.length);
+  }
+
+  /** Forgets all observations, in both the pending table and the snapshot. */
+  public void clear() {
+    Arrays.fill(pendingTimestamp, Double.NEGATIVE_INFINITY);
+    Arrays.fill(pendingDistance, Double.POSITIVE_INFINITY);
+    Arrays.fill(timestamp, Double.NEGATIVE_INFINITY);
+    Arrays.fill(distance, Double.POSITIVE_INFINITY);
+  }
+
+  public boolean has(int camera, int tagId) {
+    return tagId > 0
+        && tagId < stride
+        && timestamp[camera * stride + tagId] > Double.NEGATIVE_INFINITY;
+  }
+
+  public double timestamp(int camera, int tagId) {
+    return timestamp[camera * stride + tagId];
+  }
+
+  public double x(int camera, int tagId) {
+    return x[camera * stride + tagId];
+  }
+
+  public double y(int camera, int tagId) {
+    return y[camera * stride + tagId];
+  }
+
+  public double theta(int camera, int tagId) {
+    return theta[camera * stride + tagId];
+  }
+
+  public double distance(int camera, int tagId) {
+    return distance[camera * stride + tagId];
+  }
+}
@@ -0,0 +1,42 @@
+package frc.robot.subsystems.vision;
+
+import edu.wpi.first.apriltag.AprilTagFieldLayout;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Pose3d;
+
+/**
+ * Tag poses of a layout in arrays indexed by tag ID, so the vision hot path does an array read
+ * instead of an {@link java.util.Optional} returning list scan. Immutable after construction and
+ * safe to read from any thread.
+ */
+final class TagPoseTable {
+  private final Pose3d[] poses;
+  private final Pose2d[] poses2d;
+
+  TagPoseTable(AprilTagFieldLayout layout) {
+    var maxId = 0;
+    for (final var tag : layout.getTags()) {
+      maxId = Math.max(maxId, tag.ID);
+    }
+    poses = new Pose3d[maxId + 1];
+    poses2d = new Pose2d[maxId + 1];
+    for (final var tag : layout.getTags()) {
+      poses[tag.ID] = tag.pose;
+      poses2d[tag.ID] = tag.pose.toPose2d();
+    }
+  }
+
+  boolean has(int id) {
+    return id >= 0 && id < poses.length && poses[id] != null;
+  }
+
+  /** Null if the layout has no such tag. */
+  Pose3d pose(int id) {
+    return has(id) ? poses[id] : null;
+  }
+
+  /** Null if the layout has no such tag. */
+  Pose2d pose2d(int id) {
+    return has(id) ? poses2d[id] : null;
+  }
+}
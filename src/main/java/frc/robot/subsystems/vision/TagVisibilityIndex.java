@@ -0,0 +1,139 @@
+package frc.robot.subsystems.vision;
+
+import frc.reefscape.Field;
+import java.util.List;
+
+/**
+ * Precomputed answer to "which tags could this camera see from here". The field is split into a
+ * grid of cells times heading bins, and each entry holds a bitset of tag IDs (bit {@code id}) that
+ * pass distance, facing and field of view checks from the center of the entry. The field of view
+ * is widened by the angular size of the entry, so a tag that is visible from anywhere in it is in
+ * the set. Immutable after construction and safe to read from any thread.
+ */
+final class TagVisibilityIndex {
+  /** Returned when a pose is off the grid, nothing can be ruled out there. */
+  static final long ALL_TAGS = -1L;
+
+  private final int cellsX;
+  private final int cellsY;
+  private final int headingBins;
+  private final double cellSize;
+  private final int camerasStride;
+  private final long[] visible;
+
+  /**
+   * Builds the index, this evaluates every entry and belongs in startup code.
+   *
+   * @param cameras Indexed in the same order by {@link #visibleTags}
+   */
+  TagVisibilityIndex(List<CameraDescriptor> cameras, TagPoseTable tags) {
+    cellSize = ApriltagVisionConfig.VISIBILITY_CELL_METER;
+    headingBins = ApriltagVisionConfig.VISIBILITY_HEADING_BINS;
+    cellsX = (int) Math.ceil(Field.LENGTH / cellSize);
+    cellsY = (int) Math.ceil(Field.WIDTH / cellSize);
+    camerasStride = cellsX * cellsY * headingBins;
+    visible = new long[cameras.size() * camerasStride];
+
+    final var tagIds = new int[Field.APRILTAG_COUNT];
+    final var tagPosition = new double[Field.APRILTAG_COUNT * 3];
+    final var tagNormal = new double[Field.APRILTAG_COUNT * 3];
+    var tagCount = 0;
+    for (int id = 1; id <= Field.APRILTAG_COUNT && id < Long.SIZE; ++id) {
+      final var pose = tags.pose(id);
+      if (pose == null) {
+        continue;
+      }
+      final var rotation = pose.getRotation().toMatrix();
+      tagIds[tagCount] = id;
+      tagPosition[tagCount * 3] = pose.getX();
+      tagPosition[tagCount * 3 + 1] = pose.getY();
+      tagPosition[tagCount * 3 + 2] = pose.getZ();
+      // The tag faces along its x axis
+      tagNormal[tagCount * 3] = rotation.get(0, 0);
+      tagNormal[tagCount * 3 + 1] = rotation.get(1, 0);
+      tagNormal[tagCount * 3 + 2] = rotation.get(2, 0);
+      ++tagCount;
+    }
+
+    final var headingMargin = Math.PI / headingBins;
+    final var halfCellDiagonal = cellSize * Math.sqrt(0.5);
+    final var halfHorizontalFov = ApriltagVisionConfig.CAMERA_HORIZONTAL_FOV_RAD / 2.0;
+    final var halfVerticalFov = ApriltagVisionConfig.CAMERA_VERTICAL_FOV_RAD / 2.0;
+    final var maxDistance = ApriltagVisionConfig.VISIBILITY_MAX_DISTANCE_METER;
+
+    for (int c = 0; c < cameras.size(); ++c) {
+      final var cameraInRobot = cameras.get(c).cameraInRobot();
+      final var r = cameraInRobot.getRotation().toMatrix();
+      for (int h = 0; h < headingBins; ++h) {
+        final var heading = (h + 0.5) * 2.0 * Math.PI / headingBins;
+        final var cos = Math.cos(heading);
+        final var sin = Math.sin(heading);
+        // Camera rotation in field, yaw of the robot applied to the extrinsic rotation
+        final var m00 = cos * r.get(0, 0) - sin * r.get(1, 0);
+        final var m01 = cos * r.get(0, 1) - sin * r.get(1, 1);
+        final var m02 = cos * r.get(0, 2) - sin * r.get(1, 2);
+        final var m10 = sin * r.get(0, 0) + cos * r.get(1, 0);
+        final var m11 = sin * r.get(0, 1) + cos * r.get(1, 1);
+        final var m12 = sin * r.get(0, 2) + cos * r.get(1, 2);
+        final var m20 = r.get(2, 0);
+        final var m21 = r.get(2, 1);
+        final var m22 = r.get(2, 2);
+
+        for (int i = 0; i < cellsX; ++i) {
+          for (int j = 0; j < cellsY; ++j) {
+            final var robotX = (i + 0.5) * cellSize;
+            final var robotY = (j + 0.5) * cellSize;
+            final var cameraX = robotX + cos * cameraInRobot.getX() - sin * cameraInRobot.getY();
+            final var cameraY = robotY + sin * cameraInRobot.getX() + cos * cameraInRobot.getY();
+            final var cameraZ = cameraInRobot.getZ();
+
+            var mask = 0L;
+            for (int t = 0; t < tagCount; ++t) {
+              final var dx = tagPosition[t * 3] - cameraX;
+              final var dy = tagPosition[t * 3 + 1] - cameraY;
+              final var dz = tagPosition[t * 3 + 2] - cameraZ;
+              final var distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+              if (distance > maxDistance + halfCellDiagonal) {
+                continue;
+              }
+              // Camera must be in front of the tag
+              if (dx * tagNormal[t * 3] + dy * tagNormal[t * 3 + 1] + dz * tagNormal[t * 3 + 2]
+                  > halfCellDiagonal) {
+                continue;
+              }
+
+              // Tag in camera frame, x forward, y left, z up
+              final var forward = m00 * dx + m10 * dy + m20 * dz;
+              final var left = m01 * dx + m11 * dy + m21 * dz;
+              final var up = m02 * dx + m12 * dy + m22 * dz;
+              final var margin =
+                  headingMargin + Math.atan2(halfCellDiagonal, Math.max(distance, 1e-3));
+              if (Math.abs(Math.atan2(left, forward)) > halfHorizontalFov + margin
+                  || Math.abs(Math.atan2(up, forward)) > halfVerticalFov + margin) {
+                continue;
+              }
+              mask |= 1L << tagIds[t];
+            }
+            visible[c * camerasStride + (i * cellsY + j) * headingBins + h] = mask;
+          }
+        }
+      }
+    }
+  }
+
+  /** Bitset of tag IDs the camera may see from the given robot pose. */
+  long visibleTags(int camera, double x, double y, double theta) {
+    final var i = (int) Math.floor(x / cellSize);
+    final var j = (int) Math.floor(y / cellSize);
+    if (i < 0 || i >= cellsX || j < 0 || j >= cellsY) {
+      return ALL_TAGS;
+    }
+    final var turns = theta / (2.0 * Math.PI);
+    final var h = (int) Math.floor((turns - Math.floor(turns)) * headingBins) % headingBins;
+    return visible[camera * camerasStride + (i * cellsY + j) * headingBins + h];
+  }
+
+  static boolean contains(long tags, int id) {
+    return id >= 0 && id < Long.SIZE && (tags & (1L << id)) != 0;
+  }
+}
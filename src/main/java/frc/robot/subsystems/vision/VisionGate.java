@@ -0,0 +1,140 @@
+package frc.robot.subsystems.vision;
+
+import edu.wpi.first.math.MathUtil;
+import frc.lib.math.SE2Util;
+import lombok.Getter;
+
+/**
+ * Per camera gate in front of the pose estimator. A pose passes if it is statistically plausible
+ * given the estimate at its timestamp (Mahalanobis distance under the summed covariance), or if the
+ * camera has produced a run of frames that agree with each other through wheel odometry, which lets
+ * vision pull a drifted estimate back instead of being locked out by it.
+ */
+final class VisionGate {
+  private final double[] lastVision = new double[3];
+  private final double[] lastWheeled = new double[3];
+  private final double[] relative = new double[3];
+  private final double[] predicted = new double[3];
+  private double lastTimestamp = Double.NEGATIVE_INFINITY;
+
+  @Getter private double lastMahalanobisSq = 0.0;
+  @Getter private double meanMahalanobisSq = 0.0;
+  @Getter private double acceptRatio = 1.0;
+  @Getter private int consistentStreak = 0;
+
+  /**
+   * Tests one pose and updates the rolling statistics.
+   *
+   * @param stdDevTheta Infinite if the heading is unobserved, only x and y are tested then
+   * @param wheeled Wheeled pose at the observation time
+   * @param expected Estimated pose at the observation time
+   * @param covariance 3x3 row major covariance of the estimate
+   * @return Whether the pose should be fused
+   */
+  boolean test(
+      double timestamp,
+      double x,
+      double y,
+      double theta,
+      double stdDevX,
+      double stdDevY,
+      double stdDevTheta,
+      double[] wheeled,
+      double[] expected,
+      double[] covariance) {
+    final var useTheta = Double.isFinite(stdDevTheta);
+    lastMahalanobisSq =
+        mahalanobisSq(
+            x - expected[0],
+            y - expected[1],
+            MathUtil.angleModulus(theta - expected[2]),
+            covariance[0] + stdDevX * stdDevX,
+            covariance[1],
+            covariance[2],
+            covariance[4] + stdDevY * stdDevY,
+            covariance[5],
+            useTheta ? covariance[8] + stdDevTheta * stdDevTheta : Double.NaN);
+
+    // Does this frame follow from the previous one of this camera through wheel odometry
+    var consistent = false;
+    if (timestamp > lastTimestamp
+        && timestamp - lastTimestamp <= ApriltagVisionConfig.GATE_TEMPORAL_WINDOW_SEC) {
+      SE2Util.relative(
+          lastWheeled[0],
+          lastWheeled[1],
+          lastWheeled[2],
+          wheeled[0],
+          wheeled[1],
+          wheeled[2],
+          relative);
+      SE2Util.compose(
+          lastVision[0],
+          lastVision[1],
+          lastVision[2],
+          relative[0],
+          relative[1],
+          relative[2],
+          predicted);
+      consistent =
+          Math.hypot(x - predicted[0], y - predicted[1])
+                  <= ApriltagVisionConfig.GATE_TEMPORAL_TOLERANCE_METER
+              && (!useTheta
+                  || Math.abs(MathUtil.angleModulus(theta - predicted[2]))
+                      <= ApriltagVisionConfig.GATE_TEMPORAL_TOLERANCE_RAD);
+    }
+    consistentStreak = consistent ? consistentStreak + 1 : 0;
+    lastTimestamp = timestamp;
+    lastVision[0] = x;
+    lastVision[1] = y;
+    lastVision[2] = theta;
+    System.arraycopy(wheeled, 0, lastWheeled, 0, 3);
+
+    final var threshold =
+        useTheta ? ApriltagVisionConfig.GATE_CHI2_XY_THETA : ApriltagVisionConfig.GATE_CHI2_XY;
+    // A degenerate covariance gives NaN, which must not lock vision out
+    final var accepted =
+        !(lastMahalanobisSq > threshold)
+            || consistentStreak >= ApriltagVisionConfig.GATE_RECOVERY_STREAK;
+
+    final var alpha = ApriltagVisionConfig.GATE_STATS_ALPHA;
+    if (Double.isFinite(lastMahalanobisSq)) {
+      meanMahalanobisSq += alpha * (lastMahalanobisSq - meanMahalanobisSq);
+    }
+    acceptRatio += alpha * ((accepted ? 1.0 : 0.0) - acceptRatio);
+    return accepted;
+  }
+
+  /** Squared Mahalanobis distance, 2D if {@code stt} is NaN. */
+  private static double mahalanobisSq(
+      double ex,
+      double ey,
+      double et,
+      double sxx,
+      double sxy,
+      double sxt,
+      double syy,
+      double syt,
+      double stt) {
+    if (Double.isNaN(stt)) {
+      final var det = sxx * syy - sxy * sxy;
+      return det > 0.0 ? (syy * ex * ex - 2.0 * sxy * ex * ey + sxx * ey * ey) / det : Double.NaN;
+    }
+
+    // Quadratic form through the adjugate of the symmetric 3x3 matrix
+    final var c00 = syy * stt - syt * syt;
+    final var c01 = sxt * syt - sxy * stt;
+    final var c02 = sxy * syt - sxt * syy;
+    final var c11 = sxx * stt - sxt * sxt;
+    final var c12 = sxy * sxt - sxx * syt;
+    final var c22 = sxx * syy - sxy * sxy;
+    final var det = sxx * c00 + sxy * c01 + sxt * c02;
+    if (!(det > 0.0)) {
+      return Double.NaN;
+    }
+    return (c00 * ex * ex
+            + c11 * ey * ey
+            + c22 * et * et
+            + 2.0 * (c01 * ex * ey + c02 * ex * et + c12 * ey * et))
+        / det;
+  }
+}
@@ -0,0 +1,93 @@
+package frc.robot.subsystems.vision;
+
+/**
+ * Reusable, allocation-free container for all vision pose observations of one loop, handed to
+ * {@link frc.robot.Odometry#addVisionObservations} so the estimator replays only once.
+ */
+public final class VisionObservationBatch {
+  private final double[] timestamp;
+  private final double[] x;
+  private final double[] y;
+  private final double[] theta;
+  private final double[] stdDevX;
+  private final double[] stdDevY;
+  private final double[] stdDevTheta;
+  private int size = 0;
+
+  public VisionObservationBatch(int capacity) {
+    timestamp = new double[capacity];
+    x = new double[capacity];
+    y = new double[capacity];
+    theta = new double[capacity];
+    stdDevX = new double[capacity];
+    stdDevY = new double[capacity];
+    stdDevTheta = new double[capacity];
+  }
+
+  /**
+   * Appends an observation.
+   *
+   * @return false if the batch is full and the observation was dropped
+   */
+  public boolean add(
+      double observationTimestamp,
+      double poseX,
+      double poseY,
+      double poseTheta,
+      double poseStdDevX,
+      double poseStdDevY,
+      double poseStdDevTheta) {
+    if (size == timestamp.length) {
+      return false;
+    }
+    timestamp[size] = observationTimestamp;
+    x[size] = poseX;
+    y[size] = poseY;
+    theta[size] = poseTheta;
+    stdDevX[size] = poseStdDevX;
+    stdDevY[size] = poseStdDevY;
+    stdDevTheta[size] = poseStdDevTheta;
+    size++;
+    return true;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return timestamp.length;
+  }
+
+  public double timestamp(int i) {
+    return timestamp[i];
+  }
+
+  public double x(int i) {
+    return x[i];
+  }
+
+  public double y(int i) {
+    return y[i];
+  }
+
+  public double theta(int i) {
+    return theta[i];
+  }
+
+  public double stdDevX(int i) {
+    return stdDevX[i];
+  }
+
+  public double stdDevY(int i) {
+    return stdDevY[i];
+  }
+
+  public double stdDevTheta(int i) {
+    return stdDevTheta[i];
+  }
+}
@@ -0,0 +1,471 @@
+package frc.robot.subsystems.vision;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Quaternion;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.geometry.Transform3d;
+import edu.wpi.first.math.geometry.Translation3d;
+import edu.wpi.first.util.datalog.DataLogReader;
+import frc.lib.math.SE2Util;
+import frc.reefscape.Field;
+import frc.robot.Odometry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Offline tuning of the vision filter. Loads the camera pose observations and the wheeled pose from
+ * WPILOG files, then re-runs the per camera filter, the {@link VisionGate} and the robot pose
+ * estimator under every combination of a parameter grid, in parallel across cores. Combinations
+ * are ranked by how much vision shakes the estimate from loop to loop plus how far accepted poses
+ * land from where wheel odometry carried the estimate, among those that accept enough poses.
+ *
+ * <p>Run with {@code ./gradlew visionSweep --args="[options] <log.wpilog>..."}. Options take comma
+ * separated values: {@code --xy}, {@code --theta} and {@code --ambiguity} for the grid, {@code
+ * --min-accept}, {@code --threads} and {@code --top} for a single value.
+ */
+public final class VisionParameterSweep {
+  private static final String WHEELED_POSE_KEY = "RealOutputs/Odometry/WheeledPose";
+  private static final String POSE_OBSERVATIONS_KEY = "/PoseObservations";
+  // Timestamp, Translation3d, Quaternion, ambiguity, tag count, average distance
+  private static final int POSE_OBSERVATION_BYTES = 8 + 8 * 3 + 8 * 4 + 8 + 4 + 8;
+  private static final int POSE2D_BYTES = 8 * 3;
+  // Startup snap from the reset pose onto the field is not scored
+  private static final double SETTLE_SEC = 2.0;
+
+  private static final double[] DEFAULT_XY_STD_DEV_COEFFS = {0.002, 0.005, 0.01, 0.02};
+  private static final double[] DEFAULT_THETA_STD_DEV_COEFFS = {0.005, 0.01, 0.02, 0.05};
+  private static final double[] DEFAULT_MAX_AMBIGUITIES = {0.2, 0.3, 0.4};
+  private static final double DEFAULT_MIN_ACCEPT_RATIO = 0.3;
+  private static final int DEFAULT_TOP = 20;
+
+  record Parameters(double xyStdDevCoeff, double thetaStdDevCoeff, double maxAmbiguity) {
+    boolean isCurrent() {
+      return xyStdDevCoeff == ApriltagVisionConfig.XY_STD_DEV_COEFF
+          && thetaStdDevCoeff == ApriltagVisionConfig.THETA_STD_DEV_COEFF
+          && maxAmbiguity == ApriltagVisionConfig.MAX_ALLOWABLE_AMBIGUITY;
+    }
+  }
+
+  record Score(
+      Parameters parameters,
+      int observations,
+      int accepted,
+      double jitterRmsMeter,
+      double residualRmsMeter) {
+    double acceptRatio() {
+      return observations == 0 ? 0.0 : (double) accepted / observations;
+    }
+
+    double cost() {
+      return jitterRmsMeter + residualRmsMeter;
+    }
+  }
+
+  /** Robot pose implied by one camera pose observation. */
+  private record Observation(
+      int camera,
+      double timestamp,
+      double ambiguity,
+      int tagCount,
+      double avgDistance,
+      Pose3d robotInField) {}
+
+  /** Wheeled pose of every loop and all observations sorted by time. */
+  private record Log(
+      String name,
+      double[] wheeledT,
+      double[] wheeledX,
+      double[] wheeledY,
+      double[] wheeledTheta,
+      Observation[] observations) {}
+
+  private VisionParameterSweep() {}
+
+  public static void main(String... args) throws Exception {
+    var xyStdDevCoeffs = DEFAULT_XY_STD_DEV_COEFFS;
+    var thetaStdDevCoeffs = DEFAULT_THETA_STD_DEV_COEFFS;
+    var maxAmbiguities = DEFAULT_MAX_AMBIGUITIES;
+    var minAcceptRatio = DEFAULT_MIN_ACCEPT_RATIO;
+    var threads = Runtime.getRuntime().availableProcessors();
+    var top = DEFAULT_TOP;
+    final var paths = new ArrayList<Path>();
+    for (int i = 0; i < args.length; ++i) {
+      if (!args[i].startsWith("--")) {
+        paths.add(Path.of(args[i]));
+        continue;
+      }
+      if (i + 1 == args.length) {
+        throw new IllegalArgumentException("[VisionParameterSweep]: " + args[i] + " needs a value");
+      }
+      final var value = args[++i];
+      switch (args[i - 1]) {
+        case "--xy" -> xyStdDevCoeffs = parseList(value);
+        case "--theta" -> thetaStdDevCoeffs = parseList(value);
+        case "--ambiguity" -> maxAmbiguities = parseList(value);
+        case "--min-accept" -> minAcceptRatio = Double.parseDouble(value);
+        case "--threads" -> threads = Integer.parseInt(value);
+        case "--top" -> top = Integer.parseInt(value);
+        default ->
+            throw new IllegalArgumentException(
+                "[VisionParameterSweep]: unknown option " + args[i - 1]);
+      }
+    }
+    if (paths.isEmpty()) {
+      throw new IllegalArgumentException("[VisionParameterSweep]: no log files given");
+    }
+
+    final var logs = new ArrayList<Log>();
+    for (final var path : paths) {
+      final var log = load(path);
+      System.out.printf(
+          "%s: %d loops, %d pose observations%n",
+          log.name(), log.wheeledT().length, log.observations().length);
+      logs.add(log);
+    }
+
+    final var grid = new ArrayList<Parameters>();
+    for (final var xy : xyStdDevCoeffs) {
+      for (final var theta : thetaStdDevCoeffs) {
+        for (final var ambiguity : maxAmbiguities) {
+          grid.add(new Parameters(xy, theta, ambiguity));
+        }
+      }
+    }
+
+    // Logs are shared read-only, every combination owns its estimator and gates
+    final var start = System.nanoTime();
+    final var pool = new ForkJoinPool(threads);
+    final List<Score> scores;
+    try {
+      scores = pool.submit(() -> grid.parallelStream().map(p -> evaluate(p, logs)).toList()).get();
+    } finally {
+      pool.shutdown();
+    }
+    System.out.printf(
+        "%d combinations on %d threads in %.1f s%n",
+        grid.size(), threads, (System.nanoTime() - start) * 1e-9);
+
+    final var finalMinAcceptRatio = minAcceptRatio;
+    final var ranked = new ArrayList<>(scores);
+    ranked.sort(
+        Comparator.comparing((Score score) -> score.acceptRatio() < finalMinAcceptRatio)
+            .thenComparingDouble(Score::cost));
+
+    System.out.printf(
+        "%4s %8s %8s %9s %7s %10s %11s %9s%n",
+        "rank", "xyCoeff", "thCoeff", "maxAmbig", "accept", "jitterRms", "residualRms", "cost");
+    for (int i = 0; i < ranked.size(); ++i) {
+      final var score = ranked.get(i);
+      final var parameters = score.parameters();
+      if (i >= top && !parameters.isCurrent()) {
+        continue;
+      }
+      System.out.printf(
+          "%4d %8.4f %8.4f %9.3f %7.3f %10.4f %11.4f %9.4f%s%s%n",
+          i + 1,
+          parameters.xyStdDevCoeff(),
+          parameters.thetaStdDevCoeff(),
+          parameters.maxAmbiguity(),
+          score.acceptRatio(),
+          score.jitterRmsMeter(),
+          score.residualRmsMeter(),
+          score.cost(),
+          parameters.isCurrent() ? " current" : "",
+          score.acceptRatio() < minAcceptRatio ? " too few accepted" : "");
+    }
+  }
+
+  private static double[] parseList(String value) {
+    return Arrays.stream(value.split(",")).mapToDouble(Double::parseDouble).toArray();
+  }
+
+  /** Reads the wheeled pose output and the pose observation inputs of every camera. */
+  static Log load(Path path) throws IOException {
+    final var reader = new DataLogReader(path.toString());
+    if (!reader.isValid()) {
+      throw new IOException("[VisionParameterSweep]: " + path + " is not a WPILOG file");
+    }
+
+    final var cameras = ApriltagVisionConfig.CAMERAS;
+    final var robotInCamera = new Transform3d[cameras.size()];
+    for (int i = 0; i < cameras.size(); ++i) {
+      robotInCamera[i] = cameras.get(i).cameraInRobot().toTransform3d().inverse();
+    }
+
+    final var entryCamera = new HashMap<Integer, Integer>();
+    var wheeledEntry = -1;
+    final var wheeled = new ArrayList<double[]>();
+    final var observations = new ArrayList<Observation>();
+    for (final var record : reader) {
+      if (record.isStart()) {
+        final var data = record.getStartData();
+        final var name = data.name.startsWith("/") ? data.name.substring(1) : data.name;
+        if (name.equals(WHEELED_POSE_KEY)) {
+          wheeledEntry = data.entry;
+        }
+        for (int i = 0; i < cameras.size(); ++i) {
+          final var key = "ApriltagVision/" + cameras.get(i).id() + POSE_OBSERVATIONS_KEY;
+          if (name.equals(key)) {
+            entryCamera.put(data.entry, i);
+          }
+        }
+        continue;
+      }
+      if (record.isControl()) {
+        continue;
+      }
+
+      final var buffer = ByteBuffer.wrap(record.getRaw()).order(ByteOrder.LITTLE_ENDIAN);
+      if (record.getEntry() == wheeledEntry) {
+        final var timestamp = record.getTimestamp() * 1e-6;
+        if (buffer.remaining() >= POSE2D_BYTES
+            && (wheeled.isEmpty() || timestamp > wheeled.get(wheeled.size() - 1)[0])) {
+          wheeled.add(
+              new double[] {timestamp, buffer.getDouble(), buffer.getDouble(), buffer.getDouble()});
+        }
+        continue;
+      }
+
+      final var camera = entryCamera.get(record.getEntry());
+      if (camera == null) {
+        continue;
+      }
+      while (buffer.remaining() >= POSE_OBSERVATION_BYTES) {
+        final var timestamp = buffer.getDouble();
+        final var translation =
+            new Translation3d(buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+        final var rotation =
+            new Rotation3d(
+                new Quaternion(
+                    buffer.getDouble(),
+                    buffer.getDouble(),
+                    buffer.getDouble(),
+                    buffer.getDouble()));
+        final var ambiguity = buffer.getDouble();
+        final var tagCount = buffer.getInt();
+        final var avgDistance = buffer.getDouble();
+        observations.add(
+            new Observation(
+                camera,
+                timestamp,
+                ambiguity,
+                tagCount,
+                avgDistance,
+                new Pose3d(translation, rotation).transformBy(robotInCamera[camera])));
+      }
+    }
+    if (wheeled.size() < 2) {
+      throw new IOException("[VisionParameterSweep]: " + path + " has no " + WHEELED_POSE_KEY);
+    }
+
+    observations.sort(Comparator.comparingDouble(Observation::timestamp));
+    final var size = wheeled.size();
+    final var log =
+        new Log(
+            path.getFileName().toString(),
+            new double[size],
+            new double[size],
+            new double[size],
+            new double[size],
+            observations.toArray(Observation[]::new));
+    for (int i = 0; i < size; ++i) {
+      final var sample = wheeled.get(i);
+      log.wheeledT()[i] = sample[0];
+      log.wheeledX()[i] = sample[1];
+      log.wheeledY()[i] = sample[2];
+      log.wheeledTheta()[i] = sample[3];
+    }
+    return log;
+  }
+
+  /**
+   * Replays every log loop by loop: wheel motion first, then the observations that had arrived by
+   * the end of the loop through the same filter, gate and estimator as on the robot.
+   */
+  static Score evaluate(Parameters parameters, List<Log> logs) {
+    final var relative = new double[3];
+    final var predicted = new double[3];
+    final var wheeledSample = new double[3];
+    final var expected = new double[3];
+    final var covariance = new double[9];
+    var observationCount = 0;
+    var acceptedCount = 0;
+    var jitterSq = 0.0;
+    var jitterCount = 0;
+    var residualSq = 0.0;
+    var residualCount = 0;
+
+    for (final var log : logs) {
+      final var t = log.wheeledT();
+      final var wx = log.wheeledX();
+      final var wy = log.wheeledY();
+      final var wtheta = log.wheeledTheta();
+      final var observations = log.observations();
+      final var gates = new VisionGate[ApriltagVisionConfig.CAMERAS.size()];
+      for (int i = 0; i < gates.length; ++i) {
+        gates[i] = new VisionGate();
+      }
+      final var estimator = Odometry.createPoseEstimator();
+      estimator.reset(wx[0], wy[0], wtheta[0]);
+      var settleUntil = Double.POSITIVE_INFINITY;
+      var next = 0;
+      while (next < observations.length && observations[next].timestamp() <= t[0]) {
+        next++;
+      }
+
+      for (int i = 1; i < t.length; ++i) {
+        SE2Util.relative(wx[i - 1], wy[i - 1], wtheta[i - 1], wx[i], wy[i], wtheta[i], relative);
+        // Where the estimate goes from wheel motion alone, vision moving it further is jitter
+        SE2Util.compose(
+            estimator.getX(),
+            estimator.getY(),
+            estimator.getTheta(),
+            relative[0],
+            relative[1],
+            relative[2],
+            predicted);
+        estimator.addOdometry(t[i], relative[0], relative[1], relative[2]);
+        estimator.getCovariance(covariance);
+        final var scoring = t[i] >= settleUntil;
+
+        var fused = false;
+        for (; next < observations.length && observations[next].timestamp() <= t[i]; ++next) {
+          final var observation = observations[next];
+          observationCount++;
+          if (!passesFilter(observation, parameters)
+              || !interpolateWheeled(log, observation.timestamp(), wheeledSample)) {
+            continue;
+          }
+
+          final var distanceSq = observation.avgDistance() * observation.avgDistance();
+          final var xyStdDev = parameters.xyStdDevCoeff() * distanceSq / observation.tagCount();
+          final var thetaStdDev =
+              observation.tagCount() > 1
+                  ? parameters.thetaStdDevCoeff() * distanceSq / observation.tagCount()
+                  : Double.POSITIVE_INFINITY;
+          SE2Util.relative(
+              wx[i],
+              wy[i],
+              wtheta[i],
+              wheeledSample[0],
+              wheeledSample[1],
+              wheeledSample[2],
+              relative);
+          SE2Util.compose(
+              predicted[0],
+              predicted[1],
+              predicted[2],
+              relative[0],
+              relative[1],
+              relative[2],
+              expected);
+
+          final var pose = observation.robotInField();
+          final var theta = pose.getRotation().getZ();
+          if (!gates[observation.camera()].test(
+              observation.timestamp(),
+              pose.getX(),
+              pose.getY(),
+              theta,
+              xyStdDev,
+              xyStdDev,
+              thetaStdDev,
+              wheeledSample,
+              expected,
+              covariance)) {
+            continue;
+          }
+
+          acceptedCount++;
+          if (scoring) {
+            residualSq += square(pose.getX() - expected[0]) + square(pose.getY() - expected[1]);
+            residualCount++;
+          }
+          estimator.insertMeasurement(
+              observation.timestamp(),
+              pose.getX(),
+              pose.getY(),
+              theta,
+              xyStdDev,
+              xyStdDev,
+              thetaStdDev);
+          fused = true;
+        }
+
+        if (fused) {
+          estimator.replay();
+          settleUntil = Math.min(settleUntil, t[i] + SETTLE_SEC);
+        }
+        if (scoring) {
+          jitterSq +=
+              square(estimator.getX() - predicted[0]) + square(estimator.getY() - predicted[1]);
+          jitterCount++;
+        }
+      }
+    }
+
+    return new Score(
+        parameters,
+        observationCount,
+        acceptedCount,
+        jitterCount == 0 ? 0.0 : Math.sqrt(jitterSq / jitterCount),
+        residualCount == 0 ? 0.0 : Math.sqrt(residualSq / residualCount));
+  }
+
+  /** Same ambiguity and field bound checks as {@link ApriltagVision}. */
+  private static boolean passesFilter(Observation observation, Parameters parameters) {
+    if (observation.ambiguity() > parameters.maxAmbiguity()) {
+      return false;
+    }
+    final var pose = observation.robotInField();
+    final var border = ApriltagVisionConfig.FIELD_BORDER_THRESHOLD_METER;
+    return pose.getX() >= -border
+        && pose.getX() <= Field.LENGTH + border
+        && pose.getY() >= -border
+        && pose.getY() <= Field.WIDTH + border
+        && Math.abs(pose.getZ()) <= ApriltagVisionConfig.ROBOT_POSE_Z_THRESHOLD_METER;
+  }
+
+  /**
+   * Wheeled pose at a time between two logged loops.
+   *
+   * @return false if the time is outside the log
+   */
+  private static boolean interpolateWheeled(Log log, double timestamp, double[] out) {
+    final var t = log.wheeledT();
+    var index = Arrays.binarySearch(t, timestamp);
+    if (index < 0) {
+      index = -index - 1;
+      if (index == 0 || index == t.length) {
+        return false;
+      }
+    } else {
+      out[0] = log.wheeledX()[index];
+      out[1] = log.wheeledY()[index];
+      out[2] = log.wheeledTheta()[index];
+      return true;
+    }
+
+    final var from = index - 1;
+    final var ratio = (timestamp - t[from]) / (t[index] - t[from]);
+    out[0] = MathUtil.interpolate(log.wheeledX()[from], log.wheeledX()[index], ratio);
+    out[1] = MathUtil.interpolate(log.wheeledY()[from], log.wheeledY()[index], ratio);
+    out[2] =
+        log.wheeledTheta()[from]
+            + ratio * MathUtil.angleModulus(log.wheeledTheta()[index] - log.wheeledTheta()[from]);
+    return true;
+  }
+
+  private static double square(double value) {
+    return value * value;
+  }
+}
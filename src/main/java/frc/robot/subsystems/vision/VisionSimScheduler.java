@@ -0,0 +1,102 @@
+package frc.robot.subsystems.vision;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Transform3d;
+import edu.wpi.first.wpilibj.Timer;
+import frc.lib.interfaces.VirtualSubsystem;
+import frc.reefscape.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+import org.photonvision.simulation.PhotonCameraSim;
+import org.photonvision.simulation.VisionSystemSim;
+
+/**
+ * Steps the simulated cameras at most once per loop no matter how many IOs ask for it. Every camera
+ * lives in its own {@link VisionSystemSim}, so their target projections render in parallel on the
+ * {@link VirtualSubsystem} pool, and each frame reaches its IO through the normal PhotonVision NT
+ * path. Cameras that cannot see any tag from the true pose render only every few loops, enough to
+ * stay connected.
+ */
+final class VisionSimScheduler {
+  private final Supplier<Pose2d> poseSupplier;
+  private final List<Step> steps = new ArrayList<>();
+  private final RecursiveAction stepAll =
+      new RecursiveAction() {
+        @Override
+        protected void compute() {
+          invokeAll(steps);
+        }
+      };
+  private double lastTimestamp = Double.NaN;
+  private long loopCount = 0;
+  private Pose2d robotPose = Pose2d.kZero;
+
+  VisionSimScheduler(Supplier<Pose2d> poseSupplier) {
+    this.poseSupplier = poseSupplier;
+  }
+
+  /**
+   * Adds a camera with its own simulated system.
+   *
+   * @param cameraIndex Index of the camera in {@link ApriltagVisionConfig#CAMERAS}
+   */
+  void addCamera(
+      String name, int cameraIndex, PhotonCameraSim cameraSim, Transform3d robotToCamera) {
+    final var system = new VisionSystemSim(name);
+    system.addAprilTags(Field.APRILTAG_LAYOUT.getLayout());
+    system.addCamera(cameraSim, robotToCamera);
+    steps.add(new Step(cameraIndex, system));
+  }
+
+  /** Renders every camera for the current loop, later calls in the same loop return at once. */
+  void update() {
+    final var timestamp = Timer.getTimestamp();
+    if (timestamp == lastTimestamp || steps.isEmpty()) {
+      return;
+    }
+    lastTimestamp = timestamp;
+    robotPose = poseSupplier.get();
+    final var idleRender = loopCount++ % ApriltagVisionConfig.SIM_IDLE_RENDER_DIVISOR == 0;
+
+    for (final var step : steps) {
+      step.render =
+          idleRender
+              || ApriltagVisionConfig.TAG_VISIBILITY.visibleTags(
+                      step.cameraIndex,
+                      robotPose.getX(),
+                      robotPose.getY(),
+                      robotPose.getRotation().getRadians())
+                  != 0;
+      step.reinitialize();
+    }
+    final var pool = VirtualSubsystem.getPool();
+    if (pool != null) {
+      stepAll.reinitialize();
+      pool.invoke(stepAll);
+    } else {
+      for (final var step : steps) {
+        step.invoke();
+      }
+    }
+  }
+
+  private final class Step extends RecursiveAction {
+    private final int cameraIndex;
+    private final VisionSystemSim system;
+    private boolean render = true;
+
+    private Step(int cameraIndex, VisionSystemSim system) {
+      this.cameraIndex = cameraIndex;
+      this.system = system;
+    }
+
+    @Override
+    protected void compute() {
+      if (render) {
+        system.update(robotPose);
+      }
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package frc.lib.math;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.math.MathUtil;
+import org.junit.jupiter.api.Test;
+
+class ParticleRelocalizerTest {
+  private static final int MAX_ITERATIONS = 200;
+  private static final double[] NO_BACK = {0.0, 0.0, 0.0};
+  private static final double TRUE_X = 5.0;
+  private static final double TRUE_Y = 1.5;
+  private static final double TRUE_THETA = 2.0;
+
+  /**
+   * Feeds one pose measurement of the true pose per iteration, waiting for each iteration so no
+   * input depends on timing.
+   *
+   * @return Converged pose followed by the translation spread after every iteration
+   */
+  private static double[] relocalize(ParticleRelocalizer relocalizer) {
+    relocalizer.start(0.0, 0.0, 8.0, 4.0);
+    final var result = new double[3 + MAX_ITERATIONS];
+    for (int i = 0; i < MAX_ITERATIONS; ++i) {
+      relocalizer.addPoseMeasurement(NO_BACK, TRUE_X, TRUE_Y, TRUE_THETA, 0.05, 0.05, 0.05);
+      assertTrue(relocalizer.update());
+      while (relocalizer.isIterating()) {
+        Thread.onSpinWait();
+      }
+      result[3 + i] = relocalizer.getTranslationStdDev();
+      if (relocalizer.pollConverged(result)) {
+        return result;
+      }
+    }
+    throw new AssertionError("did not converge");
+  }
+
+  /** Budget far above an iteration so no particle is left unscored. */
+  private static double[] relocalize(long seed) {
+    return relocalize(new ParticleRelocalizer(1024, 8, 2, 10.0, seed));
+  }
+
+  @Test
+  void convergesOnTheMeasuredPose() {
+    final var pose = relocalize(1);
+    assertEquals(TRUE_X, pose[0], 0.2);
+    assertEquals(TRUE_Y, pose[1], 0.2);
+    assertEquals(0.0, MathUtil.angleModulus(pose[2] - TRUE_THETA), 0.1);
+  }
+
+  @Test
+  void sameSeedGivesTheSameParticles() {
+    assertArrayEquals(relocalize(42), relocalize(42));
+  }
+
+  @Test
+  void scoredParticlesWinTimedOutIterations() {
+    // No budget, every chunk only scores its first block
+    final var relocalizer = new ParticleRelocalizer(4096, 8, 1, 0.0, 1);
+    final var pose = relocalize(relocalizer);
+    assertTrue(relocalizer.getTimedOutCount() > 0);
+    assertEquals(TRUE_X, pose[0], 0.2);
+    assertEquals(TRUE_Y, pose[1], 0.2);
+    assertEquals(0.0, MathUtil.angleModulus(pose[2] - TRUE_THETA), 0.1);
+  }
+}
@@ -0,0 +1,70 @@
+package frc.lib.math;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class ReplayPoseEstimatorTest {
+  private static final double EPSILON = 1e-12;
+
+  private static ReplayPoseEstimator createEstimator() {
+    final var filter = new DiagonalPoseFilter(0.1, 0.1, 0.05, new double[] {0.1, 0.1, 0.05});
+    final var estimator = new ReplayPoseEstimator(2.0, 64, 16, filter);
+    estimator.reset(0.0, 0.0, 0.0);
+    return estimator;
+  }
+
+  private static void assertSameState(ReplayPoseEstimator expected, ReplayPoseEstimator actual) {
+    assertEquals(expected.getX(), actual.getX(), EPSILON);
+    assertEquals(expected.getY(), actual.getY(), EPSILON);
+    assertEquals(expected.getTheta(), actual.getTheta(), EPSILON);
+  }
+
+  @Test
+  void measurementOnAppendedStepBoundaryIsAppliedOnce() {
+    // Measurement arrives before the odometry step that starts exactly at its timestamp
+    final var early = createEstimator();
+    early.addOdometry(1.0, 1.0, 0.0, 0.0);
+    early.addMeasurement(2.0, 3.0, 0.5, 0.2, 0.1, 0.1, 0.1);
+    early.addOdometry(2.0, 1.0, 0.0, 0.0);
+
+    final var late = createEstimator();
+    late.addOdometry(1.0, 1.0, 0.0, 0.0);
+    late.addOdometry(2.0, 1.0, 0.0, 0.0);
+    late.addMeasurement(2.0, 3.0, 0.5, 0.2, 0.1, 0.1, 0.1);
+
+    assertSameState(late, early);
+  }
+
+  @Test
+  void measurementAfterAppendedStepMovesToIt() {
+    final var early = createEstimator();
+    early.addOdometry(1.0, 1.0, 0.0, 0.0);
+    early.addMeasurement(2.5, 3.0, 0.5, 0.2, 0.1, 0.1, 0.1);
+    early.addOdometry(2.0, 1.0, 0.0, 0.0);
+    early.addOdometry(3.0, 1.0, 0.0, 0.0);
+
+    final var late = createEstimator();
+    late.addOdometry(1.0, 1.0, 0.0, 0.0);
+    late.addOdometry(2.0, 1.0, 0.0, 0.0);
+    late.addOdometry(3.0, 1.0, 0.0, 0.0);
+    late.addMeasurement(2.5, 3.0, 0.5, 0.2, 0.1, 0.1, 0.1);
+
+    assertSameState(late, early);
+  }
+
+  @Test
+  void measurementBeforeAppendedStepStaysWithPreviousStep() {
+    final var early = createEstimator();
+    early.addOdometry(1.0, 1.0, 0.0, 0.0);
+    early.addMeasurement(1.5, 3.0, 0.5, 0.2, 0.1, 0.1, 0.1);
+    early.addOdometry(2.0, 1.0, 0.0, 0.0);
+
+    final var late = createEstimator();
+    late.addOdometry(1.0, 1.0, 0.0, 0.0);
+    late.addOdometry(2.0, 1.0, 0.0, 0.0);
+    late.addMeasurement(1.5, 3.0, 0.5, 0.2, 0.1, 0.1, 0.1);
+
+    assertSameState(late, early);
+  }
+}
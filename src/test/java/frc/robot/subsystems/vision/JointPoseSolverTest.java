@@ -0,0 +1,96 @@
+package frc.robot.subsystems.vision;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class JointPoseSolverTest {
+  private static final double BEARING_STD_DEV = Math.toRadians(1.0);
+  private static final double DISTANCE_STD_DEV_COEFF = 0.1;
+  private static final double[] CAMERA_IN_ROBOT = {0.2, 0.1, 0.5};
+  // Camera looking along the robot x axis
+  private static final double[] CAMERA_ROTATION = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+  private static final double[][] TAGS = {{5.0, 2.0, 1.0}, {5.0, 4.0, 0.5}, {4.5, 3.5, 1.2}};
+  private static final double TRUE_X = 1.0;
+  private static final double TRUE_Y = 2.5;
+  private static final double TRUE_THETA = 0.1;
+
+  /** Adds every tag as seen from the true pose, with yaw/pitch offsets in std devs. */
+  private static JointPoseSolver createSolver(double bearingNoise) {
+    final var solver = new JointPoseSolver(TAGS.length);
+    final var cos = Math.cos(TRUE_THETA);
+    final var sin = Math.sin(TRUE_THETA);
+    for (int i = 0; i < TAGS.length; ++i) {
+      final var dx = TAGS[i][0] - (TRUE_X + CAMERA_IN_ROBOT[0] * cos - CAMERA_IN_ROBOT[1] * sin);
+      final var dy = TAGS[i][1] - (TRUE_Y + CAMERA_IN_ROBOT[0] * sin + CAMERA_IN_ROBOT[1] * cos);
+      final var dz = TAGS[i][2] - CAMERA_IN_ROBOT[2];
+      final var forward = cos * dx + sin * dy;
+      final var left = -sin * dx + cos * dy;
+      final var sign = i % 2 == 0 ? 1.0 : -1.0;
+      solver.add(
+          CAMERA_IN_ROBOT,
+          CAMERA_ROTATION,
+          0.0,
+          0.0,
+          0.0,
+          TAGS[i][0],
+          TAGS[i][1],
+          TAGS[i][2],
+          Math.atan2(-left, forward) + sign * bearingNoise * BEARING_STD_DEV,
+          Math.atan2(dz, forward) - sign * bearingNoise * BEARING_STD_DEV,
+          Math.sqrt(dx * dx + dy * dy + dz * dz));
+    }
+    return solver;
+  }
+
+  @Test
+  void solvesExactObservationsFromAnOffsetStart() {
+    final var solver = createSolver(0.0);
+    final var out = new double[6];
+    assertTrue(
+        solver.solve(
+            TRUE_X + 0.3,
+            TRUE_Y - 0.2,
+            TRUE_THETA + 0.05,
+            BEARING_STD_DEV,
+            DISTANCE_STD_DEV_COEFF,
+            10,
+            out));
+    assertEquals(TRUE_X, out[0], 1e-3);
+    assertEquals(TRUE_Y, out[1], 1e-3);
+    assertEquals(TRUE_THETA, out[2], 1e-3);
+  }
+
+  @Test
+  void stopsOnceNoisyObservationsStopImproving() {
+    final var reference = new double[6];
+    assertTrue(
+        createSolver(0.5)
+            .solve(
+                TRUE_X + 0.3,
+                TRUE_Y - 0.2,
+                TRUE_THETA + 0.05,
+                BEARING_STD_DEV,
+                DISTANCE_STD_DEV_COEFF,
+                100,
+                reference));
+
+    final var solver = createSolver(0.5);
+    final var out = new double[6];
+    assertTrue(
+        solver.solve(
+            TRUE_X + 0.3,
+            TRUE_Y - 0.2,
+            TRUE_THETA + 0.05,
+            BEARING_STD_DEV,
+            DISTANCE_STD_DEV_COEFF,
+            10,
+            out));
+    assertTrue(solver.getIterations() < 10);
+    assertTrue(solver.getRmsResidual() < 1.0);
+    assertEquals(reference[0], out[0], 1e-3);
+    assertEquals(reference[1], out[1], 1e-3);
+    assertEquals(reference[2], out[2], 1e-3);
+  }
+}